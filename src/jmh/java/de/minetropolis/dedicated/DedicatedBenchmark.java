@@ -0,0 +1,55 @@
+package de.minetropolis.dedicated;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.minetropolis.newutil.Corpus;
+import de.minetropolis.newutil.InterpretedPattern;
+import de.minetropolis.newutil.RuleSet;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DedicatedBenchmark {
+	@Param({ "10000" })
+	public int lineCount;
+
+	private RuleSet ruleSet;
+	private RuleSet counterRuleSet;
+	private List<String> lines;
+
+	@Setup
+	public void setup() {
+		ruleSet = new RuleSet(Corpus.rules());
+		List<InterpretedPattern> rules = new ArrayList<>(Corpus.rules());
+		rules.add(new InterpretedPattern(Corpus.COUNTER_RULE[0], Corpus.COUNTER_RULE[1], Corpus.COUNTER_RULE[2]).compile());
+		counterRuleSet = new RuleSet(rules);
+		lines = Corpus.commands(lineCount, 42);
+	}
+
+	@Benchmark
+	public String getNewContent() {
+		return DedicatedCorrector.getNewContent(lines, 0, ruleSet, null, new StringBuilder());
+	}
+
+	@Benchmark
+	public String getNewContentWithCounters() {
+		return DedicatedCorrector.getNewContent(lines, 0, counterRuleSet, counterRuleSet.initCounters(), new StringBuilder());
+	}
+}
@@ -0,0 +1,96 @@
+package de.minetropolis.newutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading the entries of a config, without compiling them: {@link ConfigParser} against the regular
+ * expression Statics.processFile used before. Then compiling them, with and without
+ * {@link RuleCache}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigBenchmark {
+	private static final Pattern LEGACY_PATTERN = Pattern.compile("(?<=^|\\n)[ \\t]*\"(.+)\"[ \\t]*\\n?[ \\t]*:[ \\t]*\\n?[ \\t]*\"(.*?)\"(?:[ \\t]*\\n?[ \\t]*\\|[ \\t]*\\n?[ \\t]*\"(.*)\")?[ \\t]*(?=$|\\n)");
+
+	@Param({ "100", "10000" })
+	public int ruleCount;
+
+	private String config;
+	private List<ConfigParser.Entry> entries;
+	private RuleCache cache;
+
+	@Setup
+	public void setup() throws IOException {
+		StringBuilder sb = new StringBuilder("# generated benchmark config\n\n");
+		for (int i = 0; i < ruleCount; i++) {
+			String[] rule = Corpus.RULES[i % Corpus.RULES.length];
+			if (i % 3 == 0)
+				sb.append("# rule ").append(i).append(", written over three lines\n\"").append(rule[0]).append("\"\n\t: \"").append(rule[1])
+					.append("\"\n\t| \"").append(rule[2]).append("\"\n\n");
+			else
+				sb.append('"').append(rule[0]).append("\" : \"").append(rule[1]).append("\" | \"").append(rule[2]).append("\"\n");
+		}
+		config = sb.toString();
+		if (legacy().size() != ruleCount || parser().size() != ruleCount)
+			throw new IllegalStateException("generated config does not parse");
+
+		entries = parser();
+		File file = File.createTempFile("rules", ".cache");
+		file.delete();
+		file.deleteOnExit();
+		cache = new RuleCache(file);
+		cache.compile(entries, new ArrayList<>());
+	}
+
+	@Benchmark
+	public List<String[]> legacy() {
+		List<String[]> entries = new ArrayList<>();
+		Matcher matcher = LEGACY_PATTERN.matcher(config);
+		while (matcher.find())
+			entries.add(new String[] { matcher.group(1), matcher.group(2), matcher.group(3) == null ? "" : matcher.group(3) });
+		return entries;
+	}
+
+	@Benchmark
+	public List<ConfigParser.Entry> parser() throws IOException {
+		return new ConfigParser(new ArrayList<>()).parse(config);
+	}
+
+	@Benchmark
+	public List<InterpretedPattern> interpret() {
+		List<InterpretedPattern> rules = new ArrayList<>();
+		for (ConfigParser.Entry entry : entries)
+			rules.add(new InterpretedPattern(entry.pattern, entry.target, entry.assertion).compile());
+		return rules;
+	}
+
+	@Benchmark
+	public List<InterpretedPattern> cached() {
+		List<InterpretedPattern> rules = cache.compile(entries, new ArrayList<>());
+		if (!cache.wasCached())
+			throw new IllegalStateException("cache missed");
+		return rules;
+	}
+}
@@ -0,0 +1,110 @@
+package de.minetropolis.newutil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generated benchmark input: the 1.12 to 1.13 rules from CommandTester and a deterministic mix of
+ * commands that do and do not match them.
+ */
+public final class Corpus {
+	public static final String[][] RULES = {
+		{
+			";?([\\[,]{1});?(?: *);>(g|gamemode)<;;?(?: *)=;?(?: *);>(0|s|survival)|(1|c|creative)|(2|a|adventure)|(3|sp|spectator)<;;?(?: *);?([\\],]{1})",
+			";:(1);:(2)=;:(3);:(4)",
+			""
+		},
+		{
+			"@;?(\\w)[;?(.*)score_;?(\\w+)_min=;?(-?\\d+);?(?:, *);?(.*)score_;?(?:\\3)=;?(-?\\d+);?(.*)]",
+			"@;:(1)[;:(2);:(5)scores=[;:(3)=;:(4)..;:(6)];:(7)]",
+			"(scores=\\[.*\\])"
+		},
+		{
+			"@;?(\\w)[;?(.*)score_;?(\\w+)_min=;?(-?\\d+);?(.*)]",
+			"@;:(1)[;:(2)scores=[;:(3)=;:(4)..];:(5)]",
+			"(scores=\\[.*\\])|(score_\\w+(?!_min).{4}=-?\\d+)"
+		},
+		{
+			"@;?(\\w)[;?(.*)score_;?(\\w+)=;?(-?\\d+);?(.*)]",
+			"@;:(1)[;:(2)scores=[;:(3)=..;:(4)];:(5)]",
+			"(scores=\\[.*\\])|(score_\\w+_min=-?\\d+)"
+		},
+		{
+			";?(?:\\/?)setblock ;?((?:~?-?\\d* *){3});?((?:minecraft\\:)?\\w+);?(?: *);?((?:\\d+|(?:\\w+=\\w+,?)+)?);?(?: *);?((?:\\w+)?);?(?: *);?((?:\\{.+\\})?)",
+			"setblock ;:(1);:(2)[;!(Add Block State);:(3)];:(5) ;:(4)",
+			""
+		}
+	};
+
+	public static final String[] COUNTER_RULE = {
+		"score_test_min=X,score_test=X",
+		";*(test,0)score_test_min=;+(test,0),score_test=;+(test,1)",
+		""
+	};
+
+	private static final String[] SELECTORS = { "@a", "@e", "@p", "@r", "@s" };
+	private static final String[] GAMEMODES = { "0", "s", "survival", "1", "c", "creative", "2", "a", "adventure", "3", "sp", "spectator" };
+	private static final String[] BLOCKS = { "stone", "minecraft:redstone_block", "command_block", "air", "minecraft:wool" };
+
+	private Corpus() {
+	}
+
+	public static List<InterpretedPattern> rules() {
+		List<InterpretedPattern> rules = new ArrayList<>();
+		for (String[] rule : RULES)
+			rules.add(new InterpretedPattern(rule[0], rule[1], rule[2]).compile());
+		return rules;
+	}
+
+	/**
+	 * @return the rules as config.yml content, as read by Statics.loadConfig
+	 */
+	public static String config() {
+		StringBuilder sb = new StringBuilder("# generated benchmark config\n\n");
+		for (String[] rule : RULES)
+			sb.append('"').append(rule[0]).append("\" : \"").append(rule[1]).append("\" | \"").append(rule[2]).append("\"\n\n");
+		return sb.toString();
+	}
+
+	public static List<String> commands(int count, long seed) {
+		Random random = new Random(seed);
+		List<String> commands = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			switch (random.nextInt(5)) {
+			case 0:
+				commands.add("tp " + selector(random) + " ~ ~" + random.nextInt(10) + " ~");
+				break;
+			case 1:
+				commands.add("scoreboard players add " + selector(random) + " points " + random.nextInt(100));
+				break;
+			case 2:
+				commands.add("setblock ~" + random.nextInt(5) + " ~" + random.nextInt(5) + " ~" + random.nextInt(5) + " "
+					+ BLOCKS[random.nextInt(BLOCKS.length)] + (random.nextBoolean() ? " " + random.nextInt(16) + " replace" : ""));
+				break;
+			case 3:
+				commands.add("execute " + selector(random) + " ~ ~ ~ say hello");
+				break;
+			default:
+				commands.add("say nothing to see here " + i);
+			}
+		}
+		return commands;
+	}
+
+	private static String selector(Random random) {
+		String selector = SELECTORS[random.nextInt(SELECTORS.length)];
+		List<String> args = new ArrayList<>();
+		if (random.nextInt(3) == 0)
+			args.add((random.nextBoolean() ? "g=" : "gamemode=") + GAMEMODES[random.nextInt(GAMEMODES.length)]);
+		if (random.nextInt(3) == 0)
+			args.add("score_kills_min=" + random.nextInt(10));
+		if (random.nextInt(3) == 0)
+			args.add("score_kills=" + (10 + random.nextInt(10)));
+		if (random.nextInt(4) == 0)
+			args.add("r=" + random.nextInt(20));
+		if (random.nextInt(4) == 0)
+			args.add("tag=player");
+		return args.isEmpty() ? selector : selector + "[" + String.join(",", args) + "]";
+	}
+}
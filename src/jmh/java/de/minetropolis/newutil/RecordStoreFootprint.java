@@ -0,0 +1,78 @@
+package de.minetropolis.newutil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.Location;
+
+/**
+ * Heap retained per command block by the snapshots of a job between scanning and applying, once as
+ * the former list of Snapshot objects and once as a RecordStore. Both hold what the job held: the
+ * command of every block and the rewrites of the corpus rules, which the former layout kept for
+ * every block and the RecordStore only where the job applies them. Run with a fixed heap, e.g.
+ * -Xms1g -Xmx1g.
+ */
+public class RecordStoreFootprint {
+	private static final int COUNT = 200000;
+
+	public static void main(String[] args) {
+		List<String> commands = Corpus.commands(COUNT, 42);
+		RuleSet ruleSet = new RuleSet(Corpus.rules());
+
+		long base = used();
+		List<Snapshot> snapshots = new ArrayList<>();
+		for (int i = 0; i < COUNT; i++)
+			snapshots.add(new Snapshot(new Location(null, i % 512, 64 + i % 7, i / 512), new String(commands.get(i))));
+		for (Snapshot snapshot : snapshots)
+			snapshot.rewrite = ruleSet.apply(snapshot.command, null);
+		long before = used() - base;
+		report("List<Snapshot>", before);
+		if (snapshots.size() != COUNT)
+			throw new IllegalStateException();
+		snapshots = null;
+
+		base = used();
+		RecordStore store = new RecordStore();
+		for (int i = 0; i < COUNT; i++)
+			store.add("world", i % 512, 64 + i % 7, i / 512, commands.get(i));
+		Rewrite[] rewrites = new Rewrite[store.size()];
+		int kept = 0;
+		for (int i = 0; i < store.size(); i++) {
+			Rewrite rewrite = ruleSet.apply(store.getCommand(i), null);
+			if (rewrite.isChanged() || !rewrite.notifications.isEmpty() || !rewrite.timeouts.isEmpty() || !rewrite.stable) {
+				rewrites[i] = rewrite;
+				kept++;
+			}
+		}
+		long after = used() - base;
+		report("RecordStore + sparse Rewrite[]", after);
+		System.out.printf("%d of %d commands are rewritten%n", kept, COUNT);
+		if (rewrites.length != store.size())
+			throw new IllegalStateException();
+	}
+
+	private static void report(String name, long bytes) {
+		System.out.printf("%-46s %8.1f bytes per command block%n", name, (double) bytes / COUNT);
+	}
+
+	private static long used() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * The snapshot CorrectionJob kept per command block before the RecordStore.
+	 */
+	private static class Snapshot {
+		private final Location location;
+		private final String command;
+		private Rewrite rewrite;
+
+		private Snapshot(Location location, String command) {
+			this.location = location;
+			this.command = command;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package de.minetropolis.newutil;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleBenchmark {
+	@Param({ "1000" })
+	public int commandCount;
+
+	private List<InterpretedPattern> rules;
+	private List<String> commands;
+	private List<String> changed;
+	private String config;
+	private Pattern scorePattern;
+	private NfaPattern scoreAutomaton;
+	private String longSelector;
+	private RuleSet renames;
+	private List<String> renameCommands;
+	private RuleSet corpus;
+	private List<String> copies;
+	private RewriteCache<Rewrite> cache;
+
+	@Setup
+	public void setup() {
+		rules = Corpus.rules();
+		commands = Corpus.commands(commandCount, 42);
+		config = Corpus.config();
+		if (Statics.processFile(config).size() != Corpus.RULES.length)
+			throw new IllegalStateException("generated config does not parse");
+
+		changed = new ArrayList<>();
+		for (String command : commands) {
+			for (InterpretedPattern ip : rules)
+				command = Statics.changeCommand(ip, command, null);
+			changed.add(command);
+		}
+
+		// the score_ migration rule on a selector without its closing bracket, which java.util.regex
+		// has to try at every split of the three .* groups
+		scorePattern = Pattern.compile("@(\\w)\\[(.*)score_(\\w+)_min=(-?\\d+)(.*)\\]");
+		scoreAutomaton = NfaPattern.compile(scorePattern.pattern());
+		StringBuilder sb = new StringBuilder("@a[");
+		for (int i = 0; i < 200; i++)
+			sb.append("score_x").append(i).append("_min=1,");
+		longSelector = sb.toString();
+
+		// block renames like those of 1.13, which all match fixed strings and are fused into one pass
+		List<InterpretedPattern> renameRules = new ArrayList<>();
+		for (int i = 0; i < 80; i++)
+			renameRules.add(new InterpretedPattern(String.format("legacy_block_%02d", i), String.format("modern_block_%02d", i), "").compile());
+		renames = new RuleSet(renameRules);
+		if (renames.getFusions().size() != 2)
+			throw new IllegalStateException("renames are not fused");
+		renameCommands = new ArrayList<>();
+		for (int i = 0; i < commands.size(); i++)
+			renameCommands.add(i % 2 == 0 ? commands.get(i)
+				: String.format("fill ~ ~%d ~ ~4 ~4 ~4 legacy_block_%02d 0 replace legacy_block_%02d", i % 7, i % 80, (i * 7) % 80));
+
+		// an adventure map: the same 50 commands over and over
+		corpus = new RuleSet(rules);
+		copies = new ArrayList<>();
+		for (int i = 0; i < commands.size(); i++)
+			copies.add(commands.get(i % 50));
+		cache = new RewriteCache<>(16 << 20, RewriteCache::estimate);
+	}
+
+	@Benchmark
+	public void compile(Blackhole blackhole) {
+		for (String[] rule : Corpus.RULES)
+			blackhole.consume(new InterpretedPattern(rule[0], rule[1], rule[2]).compile());
+	}
+
+	@Benchmark
+	public void changeCommand(Blackhole blackhole) {
+		for (String command : commands) {
+			for (InterpretedPattern ip : rules)
+				command = Statics.changeCommand(ip, command, null);
+			blackhole.consume(command);
+		}
+	}
+
+	/**
+	 * changeCommand as the worker pool of a job runs it, with every thread recording into the
+	 * shared metrics.
+	 */
+	@Benchmark
+	@Threads(4)
+	public void changeCommandParallel(Blackhole blackhole) {
+		changeCommand(blackhole);
+	}
+
+	@Benchmark
+	public void renamesSequential(Blackhole blackhole) {
+		List<InterpretedPattern> list = renames.getRules();
+		for (String command : renameCommands) {
+			BitSet candidates = renames.candidates(command);
+			for (int i = 0; i < list.size(); i++) {
+				if (candidates.get(i))
+					command = Statics.changeCommand(list.get(i), command, null);
+			}
+			blackhole.consume(command);
+		}
+	}
+
+	@Benchmark
+	public void renamesFused(Blackhole blackhole) {
+		for (String command : renameCommands)
+			blackhole.consume(renames.apply(command, null));
+	}
+
+	@Benchmark
+	public void copiesUncached(Blackhole blackhole) {
+		for (String command : copies)
+			blackhole.consume(corpus.apply(command, null));
+	}
+
+	@Benchmark
+	public void copiesCached(Blackhole blackhole) {
+		for (String command : copies)
+			blackhole.consume(cache.get(corpus, 1, command, uncached -> corpus.apply(uncached, null)));
+	}
+
+	@Benchmark
+	public void notify(Blackhole blackhole) {
+		for (String command : changed)
+			blackhole.consume(Statics.notify(command));
+	}
+
+	@Benchmark
+	public Map<String, Double> initCounters() {
+		return Statics.initCounters(rules);
+	}
+
+	@Benchmark
+	public List<InterpretedPattern> processFile() {
+		return Statics.processFile(config);
+	}
+
+	@Benchmark
+	public boolean longSelectorBacktracking() {
+		Matcher matcher = scorePattern.matcher(longSelector);
+		return matcher.find();
+	}
+
+	@Benchmark
+	public boolean longSelectorAutomaton() {
+		return scoreAutomaton.matcher(longSelector).find();
+	}
+}
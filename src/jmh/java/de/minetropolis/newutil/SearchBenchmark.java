@@ -0,0 +1,65 @@
+package de.minetropolis.newutil;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * /ccf over a whole world through the trigram index, against checking every command.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+	private static final int BORDER = 30000000;
+
+	@Param({ "100000" })
+	public int blockCount;
+
+	private BlockIndex index;
+	private List<String> commands;
+	private CommandSearch text;
+	private CommandSearch pattern;
+
+	@Setup
+	public void setup() {
+		index = new BlockIndex();
+		commands = Corpus.commands(blockCount, 42);
+		for (int i = 0; i < blockCount; i++)
+			index.put("world", i % 1024, 4 + i % 200, i / 1024, commands.get(i));
+		text = CommandSearch.text("score_");
+		pattern = CommandSearch.pattern("score_;?(\\w+)_min=;?(\\d+)");
+	}
+
+	@Benchmark
+	public List<BlockIndex.Entry> searchText() {
+		return index.search("world", text, -BORDER, 0, -BORDER, BORDER, 255, BORDER);
+	}
+
+	@Benchmark
+	public List<BlockIndex.Entry> searchPattern() {
+		return index.search("world", pattern, -BORDER, 0, -BORDER, BORDER, 255, BORDER);
+	}
+
+	@Benchmark
+	public int scanText() {
+		int found = 0;
+		for (String command : commands)
+			found += text.count(command) > 0 ? 1 : 0;
+		return found;
+	}
+}
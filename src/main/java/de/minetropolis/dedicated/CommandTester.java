@@ -8,6 +8,7 @@ import java.util.Map;
 import de.minetropolis.newutil.InterpretedPattern;
 import de.minetropolis.newutil.Notification;
 import de.minetropolis.newutil.NotificationEntry;
+import de.minetropolis.newutil.RuleTimeoutException;
 import de.minetropolis.newutil.Statics;
 
 public class CommandTester {
@@ -132,7 +133,13 @@ public class CommandTester {
 			for (int i = 0; i < commands.length; i++) {
 				System.out.println(commands[i]);
 				for (InterpretedPattern ip : patterns) {
-					Notification notification = Statics.notify(Statics.changeCommand(ip, commands[i], counters));
+					Notification notification;
+					try {
+						notification = Statics.notify(Statics.changeCommand(ip, commands[i], counters));
+					} catch (RuleTimeoutException e) {
+						System.out.println("Command " + i + ": " + e.getMessage());
+						continue;
+					}
 					for (NotificationEntry entry : notification.entries)
 						System.out.println("Command " + i + " notifies: " + entry.message + "; at -> " + entry.normalText);
 					result = notification.command;
@@ -2,19 +2,45 @@ package de.minetropolis.dedicated;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import de.minetropolis.newutil.InterpretedPattern;
+import de.minetropolis.newutil.Metrics;
 import de.minetropolis.newutil.Notification;
+import de.minetropolis.newutil.RewriteCache;
+import de.minetropolis.newutil.RuleFusion;
+import de.minetropolis.newutil.RuleSet;
+import de.minetropolis.newutil.RuleTimeoutException;
+import de.minetropolis.newutil.Settings;
 import de.minetropolis.newutil.Statics;
 
 public class DedicatedCorrector {
     static boolean appendLines = false;
+    static final String TEMP_SUFFIX = ".cc-tmp";
+    private static final int BATCH_SIZE = 1024;
+    private static final Pattern LINE_BREAK = Pattern.compile(";\\\\|\n");
+
+    private final int threads = Runtime.getRuntime().availableProcessors();
+    private final RuleSet ruleSet;
+    private final RewriteCache<Line> cache;
+    private ExecutorService workers;
 
     public static void main(String[] args) {
         if (args.length > 0)
@@ -29,10 +55,14 @@ public class DedicatedCorrector {
 
     private DedicatedCorrector() throws Exception {
         System.out.println("Dedicated Corrector: Loading Config");
-        List<InterpretedPattern> list = Statics.loadConfig();
-        System.out.println("Dedicated Corrector: Found " + list.size() + " ChangeRules");
+        List<String> errors = new ArrayList<>();
+        ruleSet = new RuleSet(Statics.loadConfig(errors, errors, Logger.getLogger("Dedicated Corrector")));
+        errors.forEach(error -> System.out.println("Dedicated Corrector: config.yml " + error));
+        System.out.println("Dedicated Corrector: Found " + ruleSet.getRules().size() + " ChangeRules");
+        ruleSet.explainFusion().forEach(line -> System.out.println("Dedicated Corrector: " + line));
+        cache = new RewriteCache<>(Settings.load().getLong("cache.memory-limit", 16777216), Line::estimate);
         File folder = new File(new File(getClass().getProtectionDomain().getCodeSource().getLocation().toURI()).getParentFile().toURI().getPath(), "CommandCorrector");
-        File[] content = new File(folder.toURI().getPath(), "Dedicated").listFiles();
+        File[] content = new File(folder.toURI().getPath(), "Dedicated").listFiles(file -> file.isFile() && !file.getName().endsWith(TEMP_SUFFIX));
         if (content.length == 0) {
             System.out.println("Dedicated Corrector: \"CommandCorrector\\Dedicated\" folder does not contain any files");
             return;
@@ -40,39 +70,225 @@ public class DedicatedCorrector {
         System.out.print("Dedicated Corrector: Found " + content.length + " Files: ");
         System.out.println(Arrays.asList(content).stream().map(File::getName).collect(Collectors.joining(" ,")));
         System.out.println("\n");
-        for (File file : content) {
-            System.out.println("Dedicated Corrector: Correcting " + file.getName());
-            List<String> fillLines = new ArrayList<>();
-            try {
-                fillLines = Files.readAllLines(file.toPath());
-            } catch (IOException e) {
-                e.printStackTrace();
+
+        workers = Executors.newFixedThreadPool(threads);
+        ExecutorService files = Executors.newFixedThreadPool(Math.min(content.length, threads));
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (File file : content)
+                results.add(files.submit(() -> {
+                    correctFile(file);
+                    return null;
+                }));
+            for (int i = 0; i < content.length; i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    System.out.println("Dedicated Corrector: Could not correct " + content[i].getName() + ", it was left untouched");
+                    e.getCause().printStackTrace();
+                }
+            }
+        } finally {
+            files.shutdown();
+            workers.shutdown();
+        }
+        for (InterpretedPattern rule : ruleSet.getQuarantined())
+            System.out.println("Dedicated Corrector: Rule \"" + rule.pattern + "\" ran out of its match budget " + rule.getTimeouts() + " times and was quarantined");
+        Metrics.report(ruleSet.getRules(), 10).forEach(line -> System.out.println("Dedicated Corrector: " + line));
+        System.out.println("Dedicated Corrector: " + cache.report());
+        try {
+            Metrics.dump(new File(folder, "metrics"), ruleSet.getRules());
+        } catch (IOException e) {
+            System.out.println("Dedicated Corrector: Could not write the metrics");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Streams the file through the rule set in batches of lines and writes the result to a temporary
+     * file next to it, which then replaces the original. At most two batches per worker thread are
+     * held in memory at once, unless lines are appended to a single one.
+     */
+    private void correctFile(File file) throws IOException, InterruptedException, ExecutionException {
+        System.out.println("Dedicated Corrector: Correcting " + file.getName());
+        Path temp = Files.createTempFile(file.toPath().getParent(), file.getName() + ".cc", TEMP_SUFFIX);
+        try {
+            boolean written;
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+                Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                written = correct(reader, writer);
             }
-            if (appendLines)
-                fillLines = Arrays.asList(fillLines.stream().collect(Collectors.joining("\n")));
-            if (fillLines.size() > 0) {
-                file.delete();
-                OutputStreamWriter fileWriter = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
-                fileWriter.write(getNewContent(fillLines, list));
-                fileWriter.close();
+            if (written)
+                replace(temp, file.toPath());
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private boolean correct(BufferedReader reader, Writer writer) throws IOException, InterruptedException, ExecutionException {
+        Map<String, Double> counters = ruleSet.initCounters();
+        boolean ordered = ruleSet.usesCounters();
+        Deque<Future<Batch>> pending = new ArrayDeque<>();
+        int lineCount = 0;
+
+        List<String> lines;
+        while (!(lines = readBatch(reader)).isEmpty()) {
+            Batch batch = new Batch(lineCount, lines);
+            lineCount += lines.size();
+            if (ordered) {
+                batch.write(writer, counters);
+                continue;
             }
+            pending.add(workers.submit(() -> batch.correct(null)));
+            if (pending.size() >= 2 * threads)
+                pending.poll().get().write(writer);
+        }
+        while (!pending.isEmpty())
+            pending.poll().get().write(writer);
+        return lineCount > 0;
+    }
+
+    private List<String> readBatch(BufferedReader reader) throws IOException {
+        long start = Metrics.start();
+        List<String> lines = new ArrayList<>();
+        String line;
+        if (appendLines) {
+            List<String> all = reader.lines().collect(Collectors.toList());
+            if (!all.isEmpty())
+                lines.add(all.stream().collect(Collectors.joining("\n")));
+        } else {
+            while (lines.size() < BATCH_SIZE && (line = reader.readLine()) != null)
+                lines.add(line);
+        }
+        Metrics.stop(Metrics.READS, start);
+        Metrics.BLOCKS_READ.add(lines.size());
+        return lines;
+    }
+
+    private void replace(Path temp, Path file) throws IOException {
+        try {
+            Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(file));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system, the temporary file keeps its default permissions
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
-    private String getNewContent(List<String> lines, List<InterpretedPattern> list) {
+    static String getNewContent(List<String> lines, int firstLine, RuleSet ruleSet, Map<String, Double> counters, RewriteCache<Line> cache, StringBuilder log) {
         List<String> returnString = new ArrayList<>();
-        Map<String,Double> counters = Statics.initCounters(list);
+        StringBuilder out = new StringBuilder();
         for (int i = 0; i < lines.size(); i++) {
-            String newline = lines.get(i);
-            final int finalI = i;
-            for (InterpretedPattern ip : list) {
-                Notification notification = Statics.notify(Statics.changeCommand(ip, newline, counters));
-                notification.entries.forEach(notif -> System.out.println("Line " + finalI + " notifies: " + notif.message + ", at: " + notif.normalText));
+            Line line = cache == null ? correctLine(lines.get(i), ruleSet, counters, out)
+                : cache.get(ruleSet, 1, lines.get(i), uncached -> correctLine(uncached, ruleSet, null, out));
+            for (String message : line.log)
+                log.append("Line " + (firstLine + i) + message).append(System.lineSeparator());
+            returnString.add(line.text);
+        }
+        return returnString.stream().collect(Collectors.joining(System.lineSeparator()));
+    }
+
+    private static Line correctLine(String line, RuleSet ruleSet, Map<String, Double> counters, StringBuilder out) {
+        List<InterpretedPattern> list = ruleSet.getRules();
+        List<String> log = new ArrayList<>();
+        boolean timedOut = false;
+        String newline = line;
+        BitSet candidates = ruleSet.candidates(newline);
+        for (int rule = 0; rule < list.size(); rule++) {
+            RuleFusion fusion = ruleSet.getFusion(rule);
+            if (fusion != null && fusion.accepts(newline)) {
+                rule = fusion.to - 1;
+                int candidate = candidates.nextSetBit(fusion.from);
+                if (candidate >= 0 && candidate < fusion.to) {
+                    String unchanged = newline;
+                    newline = fusion.apply(newline, candidates, new BitSet());
+                    if (!newline.equals(unchanged))
+                        candidates = ruleSet.candidates(newline);
+                }
+                continue;
+            }
+            String unchanged = newline;
+            if (candidates.get(rule)) {
+                try {
+                    newline = Statics.changeCommand(list.get(rule), newline, counters, out);
+                } catch (RuleTimeoutException e) {
+                    log.add(": " + e.getMessage());
+                    timedOut = true;
+                }
+            }
+            if (newline.contains(";!(")) {
+                Notification notification = Statics.notify(newline);
+                notification.entries.forEach(notif -> log.add(" notifies: " + notif.message + ", at: " + notif.normalText));
                 newline = notification.command;
-                newline = newline.replaceAll(";\\\\|\n", System.lineSeparator());
             }
-            returnString.add(newline);
+            newline = LINE_BREAK.matcher(newline).replaceAll(System.lineSeparator());
+            if (!newline.equals(unchanged))
+                candidates = ruleSet.candidates(newline);
+        }
+        return new Line(line, newline, log, timedOut);
+    }
+
+    /**
+     * A corrected line and what to log about it, each message following "Line " and its number.
+     */
+    static class Line {
+        private final String before;
+        private final String text;
+        private final List<String> log;
+        private final boolean timedOut;
+
+        private Line(String before, String text, List<String> log, boolean timedOut) {
+            this.before = before;
+            this.text = text;
+            this.log = log;
+            this.timedOut = timedOut;
+        }
+
+        /**
+         * Lines on which a rule ran out of its match budget are not cached, like in
+         * {@link RewriteCache#estimate(de.minetropolis.newutil.Rewrite)}.
+         */
+        private static long estimate(Line line) {
+            if (line.timedOut)
+                return -1;
+            long bytes = 120 + 2L * line.before.length() + (line.text == line.before ? 0 : 40 + 2L * line.text.length());
+            for (String message : line.log)
+                bytes += 40 + 2L * message.length();
+            return bytes;
+        }
+    }
+
+    private class Batch {
+        private final int firstLine;
+        private final List<String> lines;
+        private final StringBuilder log = new StringBuilder();
+        private String content;
+
+        private Batch(int firstLine, List<String> lines) {
+            this.firstLine = firstLine;
+            this.lines = lines;
+        }
+
+        private Batch correct(Map<String, Double> counters) {
+            content = getNewContent(lines, firstLine, ruleSet, counters, counters == null ? cache : null, log);
+            return this;
+        }
+
+        private void write(Writer writer, Map<String, Double> counters) throws IOException {
+            correct(counters).write(writer);
+        }
+
+        private void write(Writer writer) throws IOException {
+            System.out.print(log);
+            long start = Metrics.start();
+            if (firstLine > 0)
+                writer.write(System.lineSeparator());
+            writer.write(content);
+            Metrics.stop(Metrics.WRITES, start);
+            Metrics.BLOCKS_WRITTEN.add(lines.size());
         }
-        return returnString.stream().collect(Collectors.joining(System.lineSeparator()));
     }
-}
\ No newline at end of file
+}
@@ -8,20 +8,21 @@ public class Autoconvert extends Group {
 
 	@Override
 	public String apply() {
-		String applied = "(" + content.substring(2, content.length() - 2) + ")";
+		String wrapped = "(" + content.substring(2, content.length() - 2) + ")";
+		StringBuilder applied = new StringBuilder(wrapped.length() + 8);
 		int count = 0;
-		for (int i = 0; i < applied.length(); i++) {
-			if (applied.charAt(i) == '(') {
-				if (count == 1) {
-					applied = applied.substring(0, i + 1) + "?:" + applied.substring(i + 1);
-					i += 2;
-				}
+		for (int i = 0; i < wrapped.length(); i++) {
+			char c = wrapped.charAt(i);
+			applied.append(c);
+			if (c == '(') {
+				if (count == 1)
+					applied.append("?:");
 				count++;
 			}
-			if (applied.charAt(i) == ')')
+			if (c == ')')
 				count--;
 		}
-		return applied;
+		return applied.toString();
 	}
 
 	@Override
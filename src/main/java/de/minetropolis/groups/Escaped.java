@@ -11,7 +11,7 @@ public class Escaped extends Group {
 		String escapable = "\\/()[]{}?*+.$^|";
 		StringBuilder sb = new StringBuilder();
 		for (int i = 0; i < content.length(); i++) {
-			if (escapable.contains("" + content.charAt(i)))
+			if (escapable.indexOf(content.charAt(i)) >= 0)
 				sb.append("\\");
 			sb.append(content.charAt(i));
 		} 
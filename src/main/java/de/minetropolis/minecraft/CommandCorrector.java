@@ -1,38 +1,62 @@
 package de.minetropolis.minecraft;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.block.CommandBlock;
 import org.bukkit.command.CommandSender;
+import org.bukkit.command.ConsoleCommandSender;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
 
 import com.sk89q.worldedit.bukkit.WorldEditPlugin;
 import com.sk89q.worldedit.bukkit.selections.Selection;
 
-import de.minetropolis.newutil.Corrections;
+import de.minetropolis.newutil.BlockIndex;
+import de.minetropolis.newutil.InterpretedPattern;
+import de.minetropolis.newutil.Metrics;
+import de.minetropolis.newutil.Rewrite;
+import de.minetropolis.newutil.RewriteCache;
+import de.minetropolis.newutil.RuleFusion;
+import de.minetropolis.newutil.RuleSet;
+import de.minetropolis.newutil.Settings;
 import de.minetropolis.newutil.Statics;
 import net.md_5.bungee.api.chat.ClickEvent;
-import net.md_5.bungee.api.chat.ComponentBuilder;
 import net.md_5.bungee.api.chat.HoverEvent;
-import net.md_5.bungee.api.chat.TextComponent;
 import org.bukkit.util.Vector;
 
 public class CommandCorrector extends JavaPlugin {
 
+    private static final int WORLD_BORDER = 30000000;
+
     private CommandblockCorrectCommand correctorCommand;
     private CommandblockFindCommand findCommand;
     private CommandblockTestCommand testCommand;
     private CommandblockUndoCommand undoCommand;
-    Corrections corrections = new Corrections();
-    Messenger messenger = new Messenger();
+    BlockIndex index;
+    private CommandblockIndexListener indexListener;
+    private ConfigWatcher configWatcher;
+    private BukkitTask metricsDump;
+    JobScheduler jobs = new JobScheduler(this);
+    final RewriteCache<Rewrite> cache = new RewriteCache<>(0, RewriteCache::estimate);
+    ExecutorService workers;
+    volatile Settings settings;
     WorldEditPlugin worldedit;
 
     public static Map<String, String> abrvSwitch = new HashMap<String, String>() {
@@ -69,18 +93,181 @@ public class CommandCorrector extends JavaPlugin {
         testCommand = new CommandblockTestCommand(this);
         undoCommand = new CommandblockUndoCommand(this);
         reloadConfig();
+        workers = createWorkers(settings.getInt("workers.threads", 0));
+        if (settings.getBoolean("index.enabled", true))
+            enableIndex();
+        if (settings.getBoolean("config.watch", true))
+            watchConfig();
         getCommand("commandblockcorrect").setExecutor(correctorCommand);
         getCommand("commandblockcorrectfind").setExecutor(findCommand);
         getCommand("commandblockcorrecttest").setExecutor(testCommand);
         getCommand("commandblockcorrectundo").setExecutor(undoCommand);
         getCommand("commandblockcorrectorconfigreload").setExecutor(new ReloadConfigCommand(this));
+        getCommand("commandblockcorrectstats").setExecutor(new CommandblockStatsCommand(this));
         
         getLogger().log(Level.INFO, "CommmandCorrector enabled. " + (worldedit == null?"No ":"") + "Worldedit found!");
     }
 
+    @Override
+    public void onDisable() {
+        if (configWatcher != null) {
+            try {
+                configWatcher.close();
+            } catch (IOException e) {
+                getLogger().log(Level.WARNING, "Could not stop watching config.yml", e);
+            }
+        }
+        jobs.cancelAll("plugin disabled");
+        if (metricsDump != null)
+            metricsDump.cancel();
+        if (Metrics.isEnabled() && correctorCommand != null && getDefaultChangeRules() != null) {
+            try {
+                dumpMetrics();
+            } catch (IOException e) {
+                getLogger().log(Level.WARNING, "Could not write the metrics", e);
+            }
+        }
+        if (workers != null)
+            workers.shutdownNow();
+        if (indexListener != null)
+            indexListener.save();
+    }
+
+    private void enableIndex() {
+        try {
+            index = BlockIndex.load(getIndexFile());
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Could not read the command block index, it is rebuilt from scratch", e);
+            index = new BlockIndex();
+        }
+        for (World world : Bukkit.getWorlds())
+            for (Chunk chunk : world.getLoadedChunks())
+                CommandblockIndexListener.index(index, chunk, chunk.getTileEntities());
+        indexListener = new CommandblockIndexListener(this);
+        Bukkit.getPluginManager().registerEvents(indexListener, this);
+        getLogger().log(Level.INFO, "Command block index holds " + index.size() + " command blocks.");
+    }
+
+    private void watchConfig() {
+        try {
+            configWatcher = new ConfigWatcher(this, Statics.getConfigFile());
+            configWatcher.watch(Statics.getConfigFiles());
+            configWatcher.start();
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Could not watch config.yml, use /ccr after changing it", e);
+        }
+    }
+
+    static File getIndexFile() {
+        return new File(Statics.getDataFolder(), "index.dat");
+    }
+
+    static File getMetricsFolder() {
+        return new File(Statics.getDataFolder(), "metrics");
+    }
+
+    RuleSet getDefaultChangeRules() {
+        return correctorCommand.getDefaultChangeRules();
+    }
+
+    void dumpMetrics() throws IOException {
+        Metrics.dump(getMetricsFolder(), getDefaultChangeRules().getRules());
+    }
+
+    private ExecutorService createWorkers(int threads) {
+        if (threads <= 0)
+            threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "CommandCorrector-Worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     @Override
     public void reloadConfig() {
-        correctorCommand.setDefaultChangeRules(Statics.loadConfig());
+        reloadSettings();
+        reloadRules(null);
+    }
+
+    void reloadSettings() {
+        settings = Settings.load();
+        Statics.setMatchBudget(settings.getLong("rules.match-budget", 10000000));
+        Metrics.setEnabled(settings.getBoolean("metrics.enabled", true));
+        cache.setMemoryLimit(settings.getLong("cache.memory-limit", 16777216));
+        jobs.setRetention(settings.getInt("undo.max-corrections", 20), settings.getLong("undo.max-bytes", 0));
+
+        if (metricsDump != null)
+            metricsDump.cancel();
+        metricsDump = null;
+        long interval = settings.getLong("metrics.dump-interval", 300) * 20;
+        if (interval > 0) {
+            metricsDump = Bukkit.getScheduler().runTaskTimerAsynchronously(this, () -> {
+                try {
+                    dumpMetrics();
+                } catch (IOException e) {
+                    getLogger().log(Level.WARNING, "Could not write the metrics", e);
+                }
+            }, interval, interval);
+        }
+    }
+
+    /**
+     * Compiles config.yml on the calling thread. The rules of /cc are only replaced if every rule
+     * compiles, and then all at once; running jobs keep the rules they were started with. Only the
+     * first load publishes the rules that compile despite broken ones, as there are no older rules
+     * to keep. Malformed entries are skipped with a warning. The result is logged and sent to the sender, or to
+     * everyone allowed to reload if sender is null.
+     * <p>
+     * The config watcher and /ccr reload on different threads, so reloads run one at a time: the
+     * rules of the reload that read config.yml last are the ones that stay.
+     */
+    synchronized void reloadRules(CommandSender sender) {
+        List<String> errors = new ArrayList<>();
+        List<String> warnings = new ArrayList<>();
+        List<String> report = new ArrayList<>();
+        try {
+            List<InterpretedPattern> rules = Statics.loadConfig(errors, warnings, getLogger());
+            if (errors.isEmpty() || !correctorCommand.hasDefaultChangeRules()) {
+                RuleSet ruleSet = new RuleSet(rules);
+                correctorCommand.setDefaultChangeRules(ruleSet);
+                report.add("Loaded " + rules.size() + " rules from config.yml.");
+                if (!errors.isEmpty())
+                    report.add(errors.size() + " broken rules were left out, fix them and reload with /ccr:");
+                errors.forEach(error -> report.add("  " + error));
+                List<RuleFusion> fusions = ruleSet.getFusions();
+                if (!fusions.isEmpty())
+                    report.add(fusions.stream().mapToInt(fusion -> fusion.to - fusion.from).sum() + " of them are applied in " + fusions.size()
+                        + " fused passes, /ccstats fusion tells which.");
+                if (!warnings.isEmpty())
+                    report.add(warnings.size() + " malformed entries were skipped:");
+                warnings.forEach(warning -> report.add("  " + warning));
+            } else {
+                report.add("config.yml has " + errors.size() + " broken rules, the rules were not changed:");
+                errors.forEach(error -> report.add("  " + error));
+            }
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Could not read config.yml", e);
+            errors.add(e.toString());
+            report.add("config.yml could not be read, " + (correctorCommand.hasDefaultChangeRules() ? "the rules were not changed." : "/cc has no rules until it is reloaded.")
+                    + " See server log.");
+        }
+        try {
+            if (configWatcher != null)
+                configWatcher.watch(Statics.getConfigFiles());
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Could not watch the files included by config.yml, use /ccr after changing them", e);
+        }
+        report.forEach(line -> getLogger().log(errors.isEmpty() && warnings.isEmpty() ? Level.INFO : Level.WARNING, line));
+        if (sender instanceof ConsoleCommandSender)
+            return;
+        Bukkit.getScheduler().runTask(this, () -> report.forEach(line -> {
+            if (sender != null)
+                sender.sendMessage(line);
+            else
+                Bukkit.broadcast(line, "commandcorrect.reload");
+        }));
     }
 
     private WorldEditPlugin findWorldEdit() {
@@ -89,10 +276,21 @@ public class CommandCorrector extends JavaPlugin {
                 .filter(plugin -> plugin instanceof WorldEditPlugin).findFirst().orElse(null);
     }
 
-    Location[] getBounds(String range, Vector[] vectors, CommandSender sender) {
+    Location[] getBounds(String range, Vector[] vectors, Messenger messenger) {
+        CommandSender sender = messenger.getReceiver();
         Location[] bounds = new Location[2];
-        if (range.toLowerCase().equals("selection")) {
-            if (assertSelection(sender)) {
+        if (range.toLowerCase().equals("all")) {
+            Location origin = Statics.getLocation(sender);
+            if (index == null) {
+                messenger.message("\"all\" needs the command block index, enable index.enabled in settings.properties.");
+                return null;
+            }
+            if (origin == null)
+                return null;
+            bounds[0] = new Location(origin.getWorld(), -WORLD_BORDER, 0, -WORLD_BORDER);
+            bounds[1] = new Location(origin.getWorld(), WORLD_BORDER, 255, WORLD_BORDER);
+        } else if (range.toLowerCase().equals("selection")) {
+            if (assertSelection(messenger)) {
                 Selection selection = worldedit.getSelection((Player) sender);
                 bounds[0] = selection.getMinimumPoint();
                 bounds[1] = selection.getMaximumPoint();
@@ -151,7 +349,8 @@ public class CommandCorrector extends JavaPlugin {
             return bounds[1];
     }
 
-    private boolean assertSelection(CommandSender sender) {
+    private boolean assertSelection(Messenger messenger) {
+        CommandSender sender = messenger.getReceiver();
         if (worldedit != null) {
             if (sender instanceof Player) {
                 if (worldedit.getSelection((Player) sender) != null) {
@@ -179,45 +378,3 @@ public class CommandCorrector extends JavaPlugin {
         return "";
     }
 }
-
-class Messenger {
-    private CommandSender receiver = null;
-
-    public void setReceiver(CommandSender r) {
-        receiver = r;
-    }
-
-    public CommandSender getReceiver() {
-        return receiver;
-    }
-
-    public void reset() {
-        receiver = null;
-    }
-
-    public boolean hasReceiver() {
-        return receiver != null;
-    }
-
-    public void message(String content) {
-        message(content, null, null, null, null);
-    }
-
-    public void message(String content, String hoverText, String command) {
-        message(content, HoverEvent.Action.SHOW_TEXT, hoverText, ClickEvent.Action.RUN_COMMAND, command);
-    }
-
-    public void message(String content, HoverEvent.Action hoverAction, String hoverText, ClickEvent.Action clickAction, String command) {
-        if (receiver instanceof Player) {
-            TextComponent message = new TextComponent(content);
-            if (hoverAction != null && hoverText != null)
-                message.setHoverEvent(
-                        new HoverEvent(hoverAction, new ComponentBuilder(hoverText).create()));
-            if (clickAction != null && command != null)
-                message.setClickEvent(new ClickEvent(clickAction, command));
-            receiver.spigot().sendMessage(message);
-            return;
-        }
-        Bukkit.getLogger().log(Level.WARNING, "Couldn't send message to " + receiver.getName());
-    }
-}
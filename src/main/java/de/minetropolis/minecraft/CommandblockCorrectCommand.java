@@ -1,25 +1,30 @@
 package de.minetropolis.minecraft;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.logging.Level;
 
+import org.bukkit.Bukkit;
 import org.bukkit.Location;
-import org.bukkit.block.BlockState;
-import org.bukkit.block.CommandBlock;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 
+import de.minetropolis.newutil.DiffBuffer;
+import de.minetropolis.newutil.DiffBuffer.Diff;
 import de.minetropolis.newutil.InterpretedPattern;
-import de.minetropolis.newutil.Notification;
+import de.minetropolis.newutil.RuleSet;
 import de.minetropolis.newutil.Statics;
-import de.minetropolis.newutil.Corrections.Correction;
 import org.bukkit.util.Vector;
 
 public class CommandblockCorrectCommand implements CommandExecutor {
 
+	private static final int DIFF_PAGE_SIZE = 10;
+
 	private final CommandCorrector plugin;
-	private List<InterpretedPattern> defaultChangeRules = Collections.emptyList();
+	private volatile RuleSet defaultChangeRules = new RuleSet(Collections.emptyList());
+	private volatile boolean defaultChangeRulesLoaded;
 
 	private Map<Character, Vector> directionToVector = new HashMap<Character, Vector>() {
 		private static final long serialVersionUID = 1L;
@@ -38,16 +43,29 @@ public class CommandblockCorrectCommand implements CommandExecutor {
 		this.plugin = plugin;
 	}
 
-	public void setDefaultChangeRules(List<InterpretedPattern> changes) {
-		this.defaultChangeRules = new ArrayList<>(Objects.requireNonNull(changes));
+	/**
+	 * Replaces the rules of config.yml. May be called from any thread, jobs keep the rule set they
+	 * were started with.
+	 */
+	public void setDefaultChangeRules(RuleSet changes) {
+		this.defaultChangeRules = Objects.requireNonNull(changes);
+		defaultChangeRulesLoaded = true;
+	}
+
+	/**
+	 * @return whether the rules of config.yml were loaded at least once
+	 */
+	boolean hasDefaultChangeRules() {
+		return defaultChangeRulesLoaded;
+	}
+
+	RuleSet getDefaultChangeRules() {
+		return defaultChangeRules;
 	}
 
 	@Override
 	public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
-		plugin.messenger.setReceiver(sender);
-		boolean result = doCommand(sender, command, label, args);
-		plugin.messenger.reset();
-		return result;
+		return doCommand(sender, command, label, args);
 	}
 
 	public boolean doCommand(CommandSender sender, Command command, String label, String[] args) {
@@ -55,47 +73,77 @@ public class CommandblockCorrectCommand implements CommandExecutor {
 			sender.sendMessage("You don't have the required Permissions!");
 			return true;
 		}
+		Messenger messenger = new Messenger(sender);
 
 		if (args == null || args.length == 0)
 			return false;
 
 		args = Statics.process(args);
 
+		// the options come before the range, later arguments are rule text that may contain them
+		boolean dryRun = false, fixpoint = false;
+		int options = 0;
+		for (; options < args.length; options++) {
+			if (args[options].equalsIgnoreCase("--dry-run"))
+				dryRun = true;
+			else if (args[options].equalsIgnoreCase("--fixpoint"))
+				fixpoint = true;
+			else
+				break;
+		}
+		args = Arrays.copyOfRange(args, options, args.length);
+		if (args.length == 0)
+			return false;
+
+		switch (args[0].toLowerCase()) {
+		case "jobs":
+		case "pause":
+		case "resume":
+		case "cancel":
+			return controlJobs(messenger, args[0].toLowerCase(), args);
+		case "diff":
+			return showDiff(messenger, label, args);
+		}
+
 		Vector[] vectorPriorities = new Vector[3];
 
 		String[] prioSplit = args[0].split(";");
 		if (prioSplit.length > 1) {
 			args[0] = prioSplit[0];
-			vectorPriorities = getPreferredPriorities(prioSplit[1].toUpperCase());
+			vectorPriorities = getPreferredPriorities(messenger, prioSplit[1].toUpperCase());
 		} else
-			vectorPriorities = getPreferredPriorities("");
+			vectorPriorities = getPreferredPriorities(messenger, "");
 
-		final List<InterpretedPattern> changeRules;
-		Location[] bounds = plugin.getBounds(args[0], vectorPriorities, sender);
+		final RuleSet changeRules;
+		Location[] bounds = plugin.getBounds(args[0], vectorPriorities, messenger);
 
 		if (bounds == null)
 			return false;
 
 		switch (args.length) {
 		case 1:
-			changeRules = getChangeRule(null, null, null);
+			changeRules = getChangeRule(messenger, null, null, null);
+			if (changeRules == null)
+				return true;
 			break;
 		case 3:
 			args = Arrays.copyOf(args, 4);
 			args[3] = "";
 		case 4:
-			changeRules = getChangeRule(args[1], args[2], args[3]);
+			changeRules = getChangeRule(messenger, args[1], args[2], args[3]);
+			if (changeRules == null)
+				return true;
 			break;
 		default:
 			return false;
 		}
 
-		correctCommandblocks(bounds[0], bounds[1], vectorPriorities, changeRules);
+		correctCommandblocks(messenger, bounds[0], bounds[1], vectorPriorities, changeRules, dryRun, fixpoint);
 
 		return true;
 	}
 
-	private Vector[] getPreferredPriorities(String prio) {
+	private Vector[] getPreferredPriorities(Messenger messenger, String prio) {
 		Vector[] vectors = new Vector[3];
 		int prioCount = prio.length();
 		boolean x = false;
@@ -103,22 +151,22 @@ public class CommandblockCorrectCommand implements CommandExecutor {
 		boolean z = false;
 		for (char c : prio.toCharArray()) {
 			if (!directionToVector.containsKey(Character.toUpperCase(c))) {
-				plugin.messenger.message(c + " is not a direction. Use N S W E U D. Using default directions.");
-				return getPreferredPriorities("");
+				messenger.message(c + " is not a direction. Use N S W E U D. Using default directions.");
+				return getPreferredPriorities(messenger, "");
 			}
 			if (Character.toUpperCase(c) == 'E' || Character.toUpperCase(c) == 'W') {
 				if (x)
-					return sameAxisDoDefault("X");
+					return sameAxisDoDefault(messenger, "X");
 				x = true;
 			}
 			if (Character.toUpperCase(c) == 'U' || Character.toUpperCase(c) == 'D') {
 				if (y)
-					return sameAxisDoDefault("Y");
+					return sameAxisDoDefault(messenger, "Y");
 				y = true;
 			}
 			if (Character.toUpperCase(c) == 'N' || Character.toUpperCase(c) == 'S') {
 				if (z)
-					return sameAxisDoDefault("Z");
+					return sameAxisDoDefault(messenger, "Z");
 				z = true;
 			}
 		}
@@ -147,94 +195,144 @@ public class CommandblockCorrectCommand implements CommandExecutor {
 		return vectors;
 	}
 	
-	private Vector[] sameAxisDoDefault(String axis) {
-		plugin.messenger.message("Can't use " + axis + "-Axis twice. Using default directions.");
-		return getPreferredPriorities("");
+	private Vector[] sameAxisDoDefault(Messenger messenger, String axis) {
+		messenger.message("Can't use " + axis + "-Axis twice. Using default directions.");
+		return getPreferredPriorities(messenger, "");
 	}
 
-	private List<InterpretedPattern> getChangeRule(String pattern, String target, String assertion) {
+	private RuleSet getChangeRule(Messenger messenger, String pattern, String target, String assertion) {
 		if (pattern != null && target != null && assertion != null && !pattern.isEmpty()) {
-			List<InterpretedPattern> changeRule = new ArrayList<>();
-			changeRule.add(new InterpretedPattern(pattern, target, assertion).compile());
-			return changeRule;
+			InterpretedPattern rule = new InterpretedPattern(pattern, target, assertion);
+			if (rule.compile() == null) {
+				messenger.message("Invalid rule: " + rule.getError());
+				return null;
+			}
+			return new RuleSet(Collections.singletonList(rule));
+		} else if (!defaultChangeRulesLoaded) {
+			messenger.message("config.yml failed to load, so there are no rules to apply. Fix it and reload with /ccr, or give a rule inline.");
+			return null;
 		} else {
-			return Collections.unmodifiableList(defaultChangeRules);
+			return defaultChangeRules;
 		}
 	}
 
-	private void correctCommandblocks(Location start, Location end, Vector[] vectors, List<InterpretedPattern> changeRules) {
-		int blocksFound = 0;
-		int blocksChanges = 0;
-		int blocksModified = 0;
-		Map<String, Double> counters = Statics.initCounters(changeRules);
-		Correction correction = plugin.corrections.makeNew();
-		Location current = start.clone();
-
-		while (locationSmaller(current, end, vectors[2])) {
-			while (locationSmaller(current, end, vectors[1])) {
-				while (locationSmaller(current, end, vectors[0])) {
-					BlockState commandBlock = current.getBlock().getState();
-					if (commandBlock instanceof CommandBlock) {
-						blocksFound++;
-						Set<String> blockChanges = correctCommandblock((CommandBlock) commandBlock, changeRules, correction, counters);
-						blocksChanges += blockChanges.size();
-						if (blockChanges.size() != 0)
-							blocksModified++;
-					}
-					current.add(vectors[0]);
-				}
-				resetLocation(current, start, vectors[0]);
-				current.add(vectors[1]);
-			}
-			resetLocation(current, start, vectors[1]);
-			current.add(vectors[2]);
+	private void correctCommandblocks(Messenger messenger, Location start, Location end, Vector[] vectors, RuleSet changeRules, boolean dryRun, boolean fixpoint) {
+		CorrectionJob job;
+		try {
+			job = plugin.jobs.submit(plugin.jobs.session(messenger.getReceiver()), start, end, vectors, changeRules, dryRun, fixpoint);
+		} catch (IOException e) {
+			plugin.getLogger().log(Level.SEVERE, "Could not create an undo journal", e);
+			messenger.message("Could not create an undo journal, nothing was changed. See server log.");
+			return;
 		}
-
-		plugin.getLogger().log(Level.INFO, "{0} has applied {1} modifications to {2} of {3} commandblocks!",
-			new Object[] { plugin.messenger.getReceiver().getName(), blocksChanges, blocksModified, blocksFound });
-		plugin.messenger.message(blocksModified + " / " + blocksFound + " commandblocks were modified with " + blocksChanges + " modifications. Undo with /ccu");
+		messenger.message("Started " + (dryRun ? "dry run" : "job") + " #" + job.getId() + ". Control it with /cc pause|resume|cancel " + job.getId());
 	}
 
-	private void resetLocation(Location current, Location start, Vector direction) {
-		if (direction.getX() != 0)
-			current.setX(start.getX());
-		if (direction.getY() != 0)
-			current.setY(start.getY());
-		if (direction.getZ() != 0)
-			current.setZ(start.getZ());
+	/**
+	 * /cc diff [&lt;job&gt;] [&lt;page&gt; | export]
+	 */
+	private boolean showDiff(Messenger messenger, String label, String[] args) {
+		Session session = plugin.jobs.session(messenger.getReceiver());
+		Integer id = session.getLastReportId();
+		int page = 1;
+		boolean export = false;
+		try {
+			if (args.length > 1)
+				id = Integer.parseInt(args[1]);
+			if (args.length > 2 && args[2].equalsIgnoreCase("export"))
+				export = true;
+			else if (args.length > 2)
+				page = Integer.parseInt(args[2]);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		DiffBuffer report = id == null ? null : session.getReport(id);
+		if (report == null) {
+			messenger.message(id == null ? "There are no dry-run reports. Start a dry run with /cc --dry-run" : "There is no report for dry run #" + id + ".");
+			return true;
+		}
+
+		try {
+			if (export) {
+				export(messenger, id, report);
+				return true;
+			}
+			int pages = Math.max(1, (report.size() + DIFF_PAGE_SIZE - 1) / DIFF_PAGE_SIZE);
+			page = Math.max(1, Math.min(page, pages));
+			messenger.message("Dry run #" + id + ", page " + page + " / " + pages + " (" + report.size() + " commandblocks):");
+			for (Diff diff : report.get((page - 1) * DIFF_PAGE_SIZE, DIFF_PAGE_SIZE)) {
+				String at = " " + diff.x + " " + diff.y + " " + diff.z;
+				messenger.message("CommandBlock at" + at + ":", "Teleport there", "/tp @p" + at);
+				if (!diff.before.equals(diff.after)) {
+					messenger.message("- " + diff.before);
+					messenger.message("+ " + diff.after);
+				}
+				diff.notifications.forEach(note -> messenger.message("! " + note));
+			}
+			if (page < pages)
+				messenger.message("Next page", "Show page " + (page + 1), "/" + label + " diff " + id + " " + (page + 1));
+		} catch (IOException e) {
+			plugin.getLogger().log(Level.SEVERE, "Could not read the report of dry run #" + id, e);
+			messenger.message("Could not read the report, see server log.");
+		}
+		return true;
 	}
 
-	private boolean locationSmaller(Location start, Location end, Vector vec) {
-		return start.getX() * vec.getX() + start.getY() * vec.getY() + start.getZ() * vec.getZ() <= end.getX() * vec.getX() + end.getY() * vec.getY() + end.getZ() * vec.getZ();
+	/**
+	 * Writes the report on another thread, it may hold more diffs than fit in memory.
+	 */
+	private void export(Messenger messenger, int id, DiffBuffer report) {
+		File file = new File(Statics.getDataFolder(), "dry-run-" + id + ".txt");
+		messenger.message("Exporting " + report.size() + " diffs of dry run #" + id + "...");
+		Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+			String result;
+			try {
+				report.export(file);
+				result = "Exported " + report.size() + " diffs of dry run #" + id + " to " + file.getPath();
+			} catch (IOException e) {
+				plugin.getLogger().log(Level.SEVERE, "Could not export the report of dry run #" + id, e);
+				result = "Could not export the report, see server log.";
+			}
+			String message = result;
+			Bukkit.getScheduler().runTask(plugin, () -> messenger.message(message));
+		});
 	}
 
-	private Set<String> correctCommandblock(CommandBlock commandBlock, List<InterpretedPattern> changeRules,
-		Correction correction, Map<String, Double> counters) {
-		Set<String> changes = new HashSet<>();
-		String command = commandBlock.getCommand();
-		String changed = command;
-		for (InterpretedPattern ip : changeRules) {
-			String unchanged = changed;
-			Notification notification = Statics.notify(Statics.changeCommand(ip, changed, counters));
-			notification.entries.forEach(entry -> plugin.messenger.message("CommandBlock at" + Statics.locationToString(commandBlock.getLocation()) + " notifies: " + entry.message,
-				entry.colorText, "/tp @p" + Statics.locationToString(commandBlock.getLocation())));
-
-			changed = notification.command;
-
-			if (!changed.equals(unchanged))
-				changes.add(ip.pattern);
+	private boolean controlJobs(Messenger messenger, String action, String[] args) {
+		Session session = plugin.jobs.session(messenger.getReceiver());
+		if (action.equals("jobs")) {
+			if (session.getJobs().isEmpty())
+				messenger.message("No jobs running.");
+			session.getJobs().forEach(job -> messenger.message(job.getProgress() + (job.isPaused() ? " (paused)" : "")));
+			return true;
 		}
-		if (!changed.equals(command)) {
-			commandBlock.setCommand(changed);
-			if (commandBlock.update(true, false)) {
-				correction.add(commandBlock.getLocation(), plugin.getCBDataString(commandBlock), command, changed);
-				return Collections.unmodifiableSet(changes);
-			} else {
-				plugin.messenger.message("Couldn't modify commandblock at:" + Statics.locationToString(commandBlock.getLocation()), null, "tp @p" + Statics.locationToString(commandBlock.getLocation()));
-				plugin.getLogger().log(Level.WARNING, "Couldn't modify commandblock at {0}", commandBlock.getLocation());
+
+		Integer id = null;
+		if (args.length > 1) {
+			try {
+				id = Integer.parseInt(args[1]);
+			} catch (NumberFormatException e) {
+				return false;
 			}
 		}
-		return Collections.emptySet();
+		CorrectionJob job = session.getJob(id);
+		if (job == null) {
+			messenger.message(id == null ? "No jobs running." : "There is no job #" + id + ".");
+			return true;
+		}
+
+		switch (action) {
+		case "pause":
+			job.pause();
+			break;
+		case "resume":
+			job.resume();
+			break;
+		case "cancel":
+			job.cancel("cancelled by " + messenger.getReceiver().getName());
+			break;
+		}
+		return true;
 	}
 
 }
@@ -1,14 +1,15 @@
 package de.minetropolis.minecraft;
 
+import org.bukkit.Chunk;
 import org.bukkit.Location;
-import org.bukkit.block.BlockState;
-import org.bukkit.block.CommandBlock;
-import org.bukkit.command.BlockCommandSender;
+import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
-import org.bukkit.entity.Player;
 
+import de.minetropolis.newutil.BlockIndex;
+import de.minetropolis.newutil.CommandSearch;
+import de.minetropolis.newutil.RecordStore;
 import de.minetropolis.newutil.Statics;
 import org.bukkit.util.Vector;
 
@@ -16,6 +17,9 @@ import java.util.*;
 
 public class CommandblockFindCommand implements CommandExecutor {
 
+	private static final String REGEX_PREFIX = "regex:";
+	private static final int PAGE_SIZE = 10;
+
 	private final CommandCorrector plugin;
 
 	public CommandblockFindCommand(CommandCorrector plugin) {
@@ -24,10 +28,7 @@ public class CommandblockFindCommand implements CommandExecutor {
 
 	@Override
 	public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
-		plugin.messenger.setReceiver(sender);
-		boolean result = doCommand(sender, command, label, args);
-		plugin.messenger.reset();
-		return result;
+		return doCommand(sender, command, label, args);
 	}
 
 	public boolean doCommand(CommandSender sender, Command command, String label, String[] args) {
@@ -36,60 +37,108 @@ public class CommandblockFindCommand implements CommandExecutor {
 			return true;
 		}
 
+		Messenger messenger = new Messenger(sender);
 		args = Statics.process(args);
-		if (args == null || args.length != 2)
+		if (args == null || args.length < 2 || args.length > 3)
 			return false;
 
 		Vector[] vectors = {new Vector(1,0,0),new Vector(0,0,1),new Vector(0,1,0)};
-		Location[] bounds = plugin.getBounds(args[0], vectors, sender);
-		final String pattern = args[1];
+		Location[] bounds = plugin.getBounds(args[0], vectors, messenger);
+		final CommandSearch search = args[1].startsWith(REGEX_PREFIX) ? CommandSearch.pattern(args[1].substring(REGEX_PREFIX.length()))
+				: CommandSearch.text(args[1]);
+		int page;
+		try {
+			page = args.length == 3 ? Math.max(1, Integer.parseInt(args[2])) : 1;
+		} catch (NumberFormatException e) {
+			return false;
+		}
 
 		if (bounds == null)
 			return false;
+		if (search == null) {
+			sender.sendMessage("Invalid pattern: " + args[1].substring(REGEX_PREFIX.length()));
+			return true;
+		}
 
-		Set<Location> locations = findCommandblocks(bounds[0], bounds[1], pattern);
-
-		if (locations.size() > 0) {
-			if (sender instanceof Player) {
-				for (Location loc : locations) {
-					plugin.messenger.message(
-							"Found command at:" + Statics.locationToString(loc),
-							"Teleport there!",
-							"/tp @p" + Statics.locationToString(loc));
-				}
-			} else if (sender instanceof BlockCommandSender) {
-				StringBuilder message = new StringBuilder("Found command at:");
-				locations.forEach(loc -> message.append(Statics.locationToString(loc)).append(" ;"));
-			}
-		} else {
+		Location origin = Statics.getLocation(sender);
+		if (origin != null && origin.getWorld() != bounds[0].getWorld())
+			origin = null;
+		List<Match> matches = rank(findCommandblocks(bounds[0], bounds[1], vectors, search, messenger), origin);
+
+		if (matches.isEmpty()) {
 			sender.sendMessage("No command found.");
+			return true;
+		}
+
+		int pages = (matches.size() + PAGE_SIZE - 1) / PAGE_SIZE;
+		page = Math.min(page, pages);
+		messenger.message("Found " + matches.size() + " commands, page " + page + " / " + pages + ":", null, null);
+		for (Match match : matches.subList((page - 1) * PAGE_SIZE, Math.min(page * PAGE_SIZE, matches.size()))) {
+			messenger.message("Found command at:" + Statics.locationToString(match.location) + (match.count > 1 ? " (" + match.count + " matches)" : ""),
+					"Teleport there!", "/tp @p" + Statics.locationToString(match.location));
+		}
+		if (page < pages) {
+			String next = "/" + label + " " + args[0] + " ;/" + args[1] + " ;/" + (page + 1);
+			messenger.message("Next page: " + next, "Show page " + (page + 1), next);
 		}
 
 		return true;
 	}
 
-	private Set<Location> findCommandblocks(Location min, Location max, String pattern) {
-
-		Set<Location> locations = new HashSet<>();
+	/**
+	 * Orders the matches by how often the search matches their command, then by their distance to
+	 * the origin.
+	 */
+	private List<Match> rank(List<Match> matches, Location origin) {
+		Comparator<Match> order = Comparator.comparingInt(match -> -match.count);
+		if (origin != null)
+			order = order.thenComparingDouble(match -> match.location.distanceSquared(origin));
+		matches.sort(order);
+		return matches;
+	}
 
-		for (int x = min.getBlockX(); x <= max.getBlockX(); x++) {
-			for (int y = min.getBlockY(); y <= max.getBlockY(); y++) {
-				for (int z = min.getBlockZ(); z <= max.getBlockZ(); z++) {
+	private List<Match> findCommandblocks(Location min, Location max, Vector[] vectors, CommandSearch search, Messenger messenger) {
 
-					Location blockLocation = new Location(min.getWorld(), x, y, z);
-					BlockState commandBlock = blockLocation.getBlock().getState();
+		List<Match> matches = new ArrayList<>();
 
-					if (commandBlock instanceof CommandBlock)
-						if (checkCommand((CommandBlock) commandBlock, pattern))
-							locations.add(commandBlock.getLocation());
-				}
+		if (plugin.index == null) {
+			RegionScanner scanner = new RegionScanner(min, max);
+			RecordStore records = scanner.getRecords();
+			for (int i : scanner.scan(vectors)) {
+				int count = search.count(records.getCommand(i));
+				if (count > 0)
+					matches.add(new Match(new Location(min.getWorld(), records.getX(i), records.getY(i), records.getZ(i)), count));
 			}
+			return matches;
 		}
 
-		return locations;
+		World world = min.getWorld();
+		int minX = Math.min(min.getBlockX(), max.getBlockX()), maxX = Math.max(min.getBlockX(), max.getBlockX());
+		int minY = Math.min(min.getBlockY(), max.getBlockY()), maxY = Math.max(min.getBlockY(), max.getBlockY());
+		int minZ = Math.min(min.getBlockZ(), max.getBlockZ()), maxZ = Math.max(min.getBlockZ(), max.getBlockZ());
+		if (RegionScanner.isIndexOnly(plugin.index, minX, minZ, maxX, maxZ))
+			messenger.message(RegionScanner.INDEX_ONLY);
+		// loaded chunks may have changed without an event since they were indexed, unloaded ones are answered from the index
+		for (long key : RegionScanner.chunks(world, plugin.index, minX, minZ, maxX, maxZ, true)) {
+			Chunk chunk = world.getChunkAt(BlockIndex.chunkX(key), BlockIndex.chunkZ(key));
+			CommandblockIndexListener.index(plugin.index, chunk, chunk.getTileEntities());
+		}
+
+		List<BlockIndex.Entry> entries = plugin.index.search(world.getName(), search, minX, minY, minZ, maxX, maxY, maxZ);
+		entries.sort(RegionScanner.indexOrder(vectors));
+		for (BlockIndex.Entry entry : entries)
+			matches.add(new Match(new Location(world, entry.x, entry.y, entry.z), search.count(entry.command)));
+
+		return matches;
 	}
 
-	private boolean checkCommand(CommandBlock commandBlock, String pattern) {
-		return commandBlock.getCommand().contains(pattern);
+	private static class Match {
+		private final Location location;
+		private final int count;
+
+		private Match(Location location, int count) {
+			this.location = location;
+			this.count = count;
+		}
 	}
 }
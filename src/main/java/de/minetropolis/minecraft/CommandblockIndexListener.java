@@ -0,0 +1,87 @@
+package de.minetropolis.minecraft;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.CommandBlock;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldSaveEvent;
+
+import de.minetropolis.newutil.BlockIndex;
+
+/**
+ * Keeps the command block index current. Chunks are reindexed when they load and again when they
+ * unload, which also picks up commands edited in-game while the chunk was loaded.
+ */
+class CommandblockIndexListener implements Listener {
+
+	private final CommandCorrector plugin;
+
+	CommandblockIndexListener(CommandCorrector plugin) {
+		this.plugin = plugin;
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onChunkLoad(ChunkLoadEvent event) {
+		index(plugin.index, event.getChunk(), event.getChunk().getTileEntities());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onChunkUnload(ChunkUnloadEvent event) {
+		index(plugin.index, event.getChunk(), event.getChunk().getTileEntities());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onBlockPlace(BlockPlaceEvent event) {
+		Block block = event.getBlockPlaced();
+		if (isCommandBlock(block.getType()))
+			plugin.index.put(block.getWorld().getName(), block.getX(), block.getY(), block.getZ(), "");
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onBlockBreak(BlockBreakEvent event) {
+		Block block = event.getBlock();
+		if (isCommandBlock(block.getType()))
+			plugin.index.remove(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onWorldSave(WorldSaveEvent event) {
+		save();
+	}
+
+	void save() {
+		if (!plugin.index.isDirty())
+			return;
+		try {
+			plugin.index.save(CommandCorrector.getIndexFile());
+		} catch (IOException e) {
+			plugin.getLogger().log(Level.WARNING, "Could not save the command block index", e);
+		}
+	}
+
+	static void index(BlockIndex index, Chunk chunk, BlockState[] tileEntities) {
+		List<BlockIndex.Entry> entries = new ArrayList<>();
+		for (BlockState state : tileEntities) {
+			if (state instanceof CommandBlock)
+				entries.add(new BlockIndex.Entry(state.getX(), state.getY(), state.getZ(), ((CommandBlock) state).getCommand()));
+		}
+		index.indexChunk(chunk.getWorld().getName(), chunk.getX(), chunk.getZ(), entries);
+	}
+
+	static boolean isCommandBlock(Material material) {
+		return material == Material.COMMAND || material == Material.COMMAND_CHAIN || material == Material.COMMAND_REPEATING;
+	}
+}
@@ -0,0 +1,74 @@
+package de.minetropolis.minecraft;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.logging.Level;
+
+import org.bukkit.Bukkit;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+
+import de.minetropolis.newutil.InterpretedPattern;
+import de.minetropolis.newutil.Metrics;
+
+/**
+ * /ccstats shows the {@link Metrics} of the config rules, "reset" starts them over and "dump"
+ * writes them to CommandCorrector/metrics right away instead of at the next
+ * {@code metrics.dump-interval}. "fusion" tells which rules are applied in a fused pass.
+ */
+public class CommandblockStatsCommand implements CommandExecutor {
+
+	private static final int TOP_RULES = 10;
+
+	private final CommandCorrector plugin;
+
+	public CommandblockStatsCommand(CommandCorrector plugin) {
+		this.plugin = Objects.requireNonNull(plugin);
+	}
+
+	@Override
+	public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+		if (!sender.hasPermission("commandcorrect.stats")) {
+			sender.sendMessage("You don't have the required Permissions!");
+			return true;
+		}
+		Messenger messenger = new Messenger(sender);
+		List<InterpretedPattern> rules = plugin.getDefaultChangeRules().getRules();
+
+		if (args.length == 0) {
+			if (!Metrics.isEnabled())
+				messenger.message("metrics.enabled is off, durations are not measured.");
+			Metrics.report(rules, TOP_RULES).forEach(messenger::message);
+			messenger.message(plugin.cache.report());
+			return true;
+		}
+		switch (args[0].toLowerCase()) {
+		case "reset":
+			Metrics.reset(rules);
+			plugin.cache.resetStats();
+			messenger.message("Metrics reset.");
+			return true;
+		case "fusion":
+			plugin.getDefaultChangeRules().explainFusion().forEach(messenger::message);
+			return true;
+		case "dump":
+			Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+				String result;
+				try {
+					plugin.dumpMetrics();
+					result = "Metrics written to " + CommandCorrector.getMetricsFolder().getPath() + ".";
+				} catch (IOException e) {
+					plugin.getLogger().log(Level.WARNING, "Could not write the metrics", e);
+					result = "The metrics could not be written, see server log.";
+				}
+				String message = result;
+				Bukkit.getScheduler().runTask(plugin, () -> messenger.message(message));
+			});
+			return true;
+		default:
+			return false;
+		}
+	}
+}
@@ -6,6 +6,7 @@ import org.bukkit.command.CommandSender;
 
 import de.minetropolis.newutil.InterpretedPattern;
 import de.minetropolis.newutil.Notification;
+import de.minetropolis.newutil.RuleTimeoutException;
 import de.minetropolis.newutil.Statics;
 
 import java.util.*;
@@ -20,10 +21,7 @@ public class CommandblockTestCommand implements CommandExecutor {
 
 	@Override
 	public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
-		plugin.messenger.setReceiver(sender);
-		boolean result = doCommand(sender, command, label, args);
-		plugin.messenger.reset();
-		return result;
+		return doCommand(sender, command, label, args);
 	}
 
 	public boolean doCommand(CommandSender sender, Command command, String label, String[] args) {
@@ -31,6 +29,7 @@ public class CommandblockTestCommand implements CommandExecutor {
 			sender.sendMessage("You don't have the required Permissions!");
 			return true;
 		}
+		Messenger messenger = new Messenger(sender);
 
 		if (args == null || args.length == 0)
 			return false;
@@ -40,10 +39,20 @@ public class CommandblockTestCommand implements CommandExecutor {
 			args = Arrays.copyOf(args, 4);
 			args[3] = "";
 		case 4:
-			InterpretedPattern ip = new InterpretedPattern(args[1], args[2], args[3]).compile();
-			Notification notification = Statics.notify(Statics.changeCommand(ip, args[0], null));
-			notification.entries.forEach(entry -> plugin.messenger.message("command notifies: " + entry.message + ", at: " + entry.colorText));
-			plugin.messenger.message("Result would be: " + notification.command);
+			InterpretedPattern ip = new InterpretedPattern(args[1], args[2], args[3]);
+			if (ip.compile() == null) {
+				messenger.message("Invalid rule: " + ip.getError());
+				break;
+			}
+			Notification notification;
+			try {
+				notification = Statics.notify(Statics.changeCommand(ip, args[0], null));
+			} catch (RuleTimeoutException e) {
+				messenger.message("The rule backtracks too much: " + e.getMessage());
+				break;
+			}
+			notification.entries.forEach(entry -> messenger.message("command notifies: " + entry.message + ", at: " + entry.colorText));
+			messenger.message("Result would be: " + notification.command);
 			break;
 		default:
 			return false;
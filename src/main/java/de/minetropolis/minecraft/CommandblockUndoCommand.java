@@ -11,8 +11,11 @@ import org.bukkit.command.CommandSender;
 import de.minetropolis.newutil.Statics;
 import de.minetropolis.newutil.Corrections.CommandData;
 import de.minetropolis.newutil.Corrections.Correction;
+import de.minetropolis.newutil.Corrections.Replay;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.logging.Level;
 
 public class CommandblockUndoCommand implements CommandExecutor {
 
@@ -24,10 +27,7 @@ public class CommandblockUndoCommand implements CommandExecutor {
 
     @Override
     public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
-        plugin.messenger.setReceiver(sender);
-        boolean result = doCommand(sender, command, label, args);
-        plugin.messenger.reset();
-        return result;
+        return doCommand(sender, command, label, args);
     }
 
     public boolean doCommand(CommandSender sender, Command command, String label, String[] args) {
@@ -42,34 +42,75 @@ public class CommandblockUndoCommand implements CommandExecutor {
             forceUndo = args[0] == "force";
         }
 
-        undoCommandblocks(forceUndo);
+        Messenger messenger = Messenger.buffered(plugin, sender);
+        undoCommandblocks(messenger, plugin.jobs.session(sender), forceUndo);
+        messenger.close();
 
         return true;
     }
 
-    private void undoCommandblocks(boolean force) {
-        Correction correction = plugin.corrections.getLast();
+    private void undoCommandblocks(Messenger messenger, Session session, boolean force) {
+        Correction correction = session.corrections.getLast();
         int undos = 0;
         if (correction == null) {
-            plugin.messenger.message("Nothing to undo");
+            messenger.message("Nothing to undo");
             return;
         }
 
+        try {
+            CorrectionJob job = getLockingJob(correction);
+            if (job != null) {
+                messenger.message("Job #" + job.getId() + " is correcting commandblocks of your last correction. Undo again when it has finished.");
+                return;
+            }
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not read the undo journal", e);
+            messenger.message("The undo journal is unreadable, nothing was undone. See server log.");
+            return;
+        }
 
-        for (CommandData commandData : correction.getCorrections().keySet()) {
-            boolean success = undoCommandblock(commandData, force);
-            if (success) {
-                undos++;
-                plugin.messenger.message(
-                        "Undid from " + correction.getCorrections().get(commandData) + " to " + commandData.getCommand() +
-                                " in CB at:" + Statics.locationToString(commandData.getLocation()), "Teleport there", "/tp @p" + Statics.locationToString(commandData.getLocation()));
+        try (Replay replay = correction.replay()) {
+            CommandData commandData;
+            while ((commandData = replay.next()) != null) {
+                boolean success = undoCommandblock(messenger, commandData, force);
+                if (success) {
+                    undos++;
+                    messenger.notify("commandblocks undone.",
+                            "Undid from " + commandData.getCorrected() + " to " + commandData.getCommand() +
+                                    " in CB at:" + Statics.locationToString(commandData.getLocation()), "Teleport there", "/tp @p" + Statics.locationToString(commandData.getLocation()));
+                }
             }
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not read the undo journal", e);
+            messenger.message("Undid " + undos + " of " + correction.size() + " Command-Blocks before the undo journal became unreadable. See server log.");
+            return;
         }
-        plugin.messenger.message("Undid " + undos + " command changes from " + correction.getCorrections().size() + " Command-Blocks");
-        plugin.corrections.undone();
+        messenger.message("Undid " + undos + " command changes from " + correction.size() + " Command-Blocks");
+        session.corrections.undone();
     }
 
-    private boolean undoCommandblock(CommandData commandData, boolean force) {
+    /**
+     * @return a running job that has locked a block of the correction, or null
+     */
+    private CorrectionJob getLockingJob(Correction correction) throws IOException {
+        try (Replay replay = correction.replay()) {
+            CommandData commandData;
+            while ((commandData = replay.next()) != null) {
+                int[] position = commandData.getPosition();
+                Object owner = plugin.jobs.locks.getOwner(commandData.getWorld(), position[0], position[1], position[2]);
+                if (owner != null)
+                    return (CorrectionJob) owner;
+            }
+        }
+        return null;
+    }
+
+    private boolean undoCommandblock(Messenger messenger, CommandData commandData, boolean force) {
+        if (commandData.getLocation() == null) {
+            messenger.notify("commandblocks could not be undone, their world is not loaded.",
+                    "Commandblock at " + commandData.getWorld() + Arrays.toString(commandData.getPosition()) + " could not be undone, its world is not loaded.", null, null);
+            return false;
+        }
         if (force) {
             Block block = commandData.getLocation().getBlock();
             block.setType(Material.COMMAND);
@@ -81,9 +122,11 @@ public class CommandblockUndoCommand implements CommandExecutor {
             CommandBlock commandBlock = (CommandBlock) commandState;
             commandBlock.setCommand(commandData.getCommand());
             commandBlock.update(true, false);
+            if (plugin.index != null)
+                plugin.index.put(commandData.getWorld(), commandBlock.getX(), commandBlock.getY(), commandBlock.getZ(), commandData.getCommand());
             return true;
         } else {
-            plugin.messenger.message(
+            messenger.notify("commandblocks could not be undone.",
                     "Commandblock at:" + Statics.locationToString(commandData.getLocation()) + " could not be undone.", "Teleport there", "/tp @p" + Statics.locationToString(commandData.getLocation()));
         }
         return false;
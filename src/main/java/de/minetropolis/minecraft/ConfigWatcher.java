@@ -0,0 +1,98 @@
+package de.minetropolis.minecraft;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recompiles the rules whenever config.yml or a file it includes changes. Runs on its own daemon
+ * thread, and waits until the files have not changed for a moment so an editor that saves in
+ * several steps only causes one reload.
+ */
+class ConfigWatcher implements Runnable, Closeable {
+
+	private static final long SETTLE_MILLIS = 250;
+
+	private final CommandCorrector plugin;
+	private final Path config;
+	private final WatchService watchService;
+	private final Thread thread;
+	private final Set<Path> folders = new HashSet<>();
+	private volatile Set<Path> files;
+
+	ConfigWatcher(CommandCorrector plugin, File config) throws IOException {
+		this.plugin = plugin;
+		this.config = config.toPath().toAbsolutePath().normalize();
+		watchService = FileSystems.getDefault().newWatchService();
+		watch(Collections.emptySet());
+		thread = new Thread(this, "CommandCorrector-ConfigWatcher");
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Watches config.yml and the given files from now on, such as those included by the last
+	 * reload. Folders of files that are no longer included stay registered, their events are
+	 * ignored.
+	 */
+	synchronized void watch(Collection<File> included) throws IOException {
+		Set<Path> files = new HashSet<>();
+		files.add(config);
+		for (File file : included)
+			files.add(file.toPath().toAbsolutePath().normalize());
+		for (Path file : files) {
+			Path folder = file.getParent();
+			if (folder != null && folder.toFile().isDirectory() && folders.add(folder))
+				folder.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+		}
+		this.files = files;
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				boolean changed = concernsConfig(watchService.take());
+				WatchKey key;
+				while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null)
+					changed |= concernsConfig(key);
+				if (changed)
+					plugin.reloadRules(null);
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	private boolean concernsConfig(WatchKey key) {
+		boolean changed = false;
+		Path folder = (Path) key.watchable();
+		for (WatchEvent<?> event : key.pollEvents())
+			changed |= event.context() instanceof Path && files.contains(folder.resolve((Path) event.context()));
+		key.reset();
+		return changed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		thread.interrupt();
+		watchService.close();
+	}
+}
@@ -0,0 +1,369 @@
+package de.minetropolis.minecraft;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.CommandBlock;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.util.Vector;
+
+import de.minetropolis.newutil.Corrections.Correction;
+import de.minetropolis.newutil.DiffBuffer;
+import de.minetropolis.newutil.DiffBuffer.Diff;
+import de.minetropolis.newutil.InterpretedPattern;
+import de.minetropolis.newutil.Metrics;
+import de.minetropolis.newutil.RecordStore;
+import de.minetropolis.newutil.Rewrite;
+import de.minetropolis.newutil.RewriteCache;
+import de.minetropolis.newutil.RuleSet;
+import de.minetropolis.newutil.Statics;
+
+/**
+ * A /cc run, split into these stages:
+ * <ol>
+ * <li>the job waits until no other job is writing to an overlapping region, then locks its own,</li>
+ * <li>the main thread scans the region and snapshots every command block's location and command,</li>
+ * <li>the worker pool rewrites the snapshots, in parallel unless the rules use counters,</li>
+ * <li>the main thread writes back only the blocks that changed.</li>
+ * </ol>
+ * The main thread stages do at most {@code job.tick-budget} milliseconds of work per tick. The
+ * correction only becomes undoable once the job has ended. A dry run skips the lock and goes
+ * through the other stages, but only records the diffs it would apply and leaves them with its
+ * {@link Session} as a report. A fixed-point run applies the rules to each command until it
+ * settles, see {@link RuleSet#applyUntilStable}. Unless the rules use counters, commands are
+ * looked up in the {@link RewriteCache} of the plugin first, so identical command blocks are only
+ * rewritten once.
+ */
+class CorrectionJob extends BukkitRunnable {
+
+	enum Phase {
+		WAITING, SCANNING, EVALUATING, APPLYING, FINISHED, CANCELLED
+	}
+
+	private static final int BATCH_SIZE = 64;
+
+	private final int id;
+	private final CommandCorrector plugin;
+	private final Session session;
+	private final Messenger messenger;
+	private final World world;
+	private final int[] bounds;
+	private final RegionScanner scanner;
+	private final Vector[] vectors;
+	private final RuleSet ruleSet;
+	private final boolean dryRun;
+	/**
+	 * 1 unless this is a fixed-point run
+	 */
+	private final int maxPasses;
+	private final Correction correction;
+	private final DiffBuffer diffs;
+	private final RecordStore snapshots;
+	/**
+	 * the indices of the snapshots in the order they are applied
+	 */
+	private int[] order;
+	private Rewrite[] rewrites;
+	private final AtomicInteger evaluated = new AtomicInteger();
+	private CompletableFuture<Void> evaluation;
+	private volatile Phase phase;
+	private CorrectionJob blockedBy;
+	private boolean paused = false;
+	private int position = 0;
+	private int blocksChanges = 0;
+	private int blocksModified = 0;
+	private long ticks = 0;
+
+	CorrectionJob(int id, CommandCorrector plugin, Session session, Location start, Location end, Vector[] vectors, RuleSet ruleSet, boolean dryRun,
+		boolean fixpoint) throws IOException {
+		this.id = id;
+		this.plugin = plugin;
+		this.session = session;
+		this.vectors = vectors;
+		this.ruleSet = ruleSet;
+		messenger = Messenger.buffered(plugin, session.getSender());
+		world = start.getWorld();
+		bounds = new int[] { Math.min(start.getBlockX(), end.getBlockX()), Math.min(start.getBlockY(), end.getBlockY()), Math.min(start.getBlockZ(), end.getBlockZ()),
+			Math.max(start.getBlockX(), end.getBlockX()), Math.max(start.getBlockY(), end.getBlockY()), Math.max(start.getBlockZ(), end.getBlockZ()) };
+		scanner = new RegionScanner(start, end, plugin.index);
+		snapshots = scanner.getRecords();
+		if (scanner.isIndexOnly())
+			messenger.message(RegionScanner.INDEX_ONLY);
+		this.dryRun = dryRun;
+		maxPasses = fixpoint ? Math.max(1, plugin.settings.getInt("rules.max-passes", 10)) : 1;
+		phase = dryRun ? Phase.SCANNING : Phase.WAITING;
+		correction = dryRun ? null : session.corrections.makeNew();
+		diffs = dryRun ? new DiffBuffer(new File(Statics.getDataFolder(), "dry-run"), plugin.settings.getLong("dryrun.memory-limit", 1048576)) : null;
+	}
+
+	@Override
+	public void run() {
+		if (paused || !isRunning())
+			return;
+
+		long deadline = System.nanoTime() + plugin.settings.getLong("job.tick-budget", 10) * 1000000L;
+		do {
+			if (!step())
+				break;
+		} while (System.nanoTime() < deadline);
+		if (correction != null)
+			correction.flush();
+
+		if (isRunning() && ++ticks % plugin.settings.getInt("job.progress-interval", 100) == 0)
+			messenger.message(getProgress());
+	}
+
+	/**
+	 * @return false if the job has to wait for the next tick
+	 */
+	private boolean step() {
+		switch (phase) {
+		case WAITING:
+			Object owner = plugin.jobs.locks.tryLock(this, world.getName(), bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5]);
+			if (owner != null) {
+				if (blockedBy != owner)
+					messenger.message("Job #" + id + " waits for job #" + ((CorrectionJob) owner).getId() + ", which is correcting an overlapping region.");
+				blockedBy = (CorrectionJob) owner;
+				return false;
+			}
+			phase = Phase.SCANNING;
+			return true;
+		case SCANNING:
+			if (scanner.hasNextChunk()) {
+				long start = Metrics.start();
+				scanner.scanNextChunk();
+				Metrics.stop(Metrics.READS, start);
+			} else {
+				evaluate();
+			}
+			return true;
+		case EVALUATING:
+			if (!evaluation.isDone())
+				return false;
+			try {
+				evaluation.join();
+			} catch (CompletionException e) {
+				plugin.getLogger().log(Level.SEVERE, "Job #" + id + " failed to evaluate", e.getCause());
+				cancel("evaluation failed, see server log");
+				return false;
+			}
+			phase = Phase.APPLYING;
+			return true;
+		case APPLYING:
+			if (position >= snapshots.size()) {
+				end(Phase.FINISHED);
+				return false;
+			}
+			apply(order[position++]);
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private void evaluate() {
+		order = scanner.getOrder(vectors);
+		Metrics.BLOCKS_READ.add(snapshots.size());
+		rewrites = new Rewrite[snapshots.size()];
+		Map<String, Double> counters = ruleSet.initCounters();
+		phase = Phase.EVALUATING;
+
+		if (ruleSet.usesCounters()) {
+			evaluation = CompletableFuture.runAsync(() -> rewrite(0, snapshots.size(), counters), plugin.workers);
+			return;
+		}
+		List<CompletableFuture<Void>> batches = new ArrayList<>();
+		for (int i = 0; i < snapshots.size(); i += BATCH_SIZE) {
+			int from = i, to = Math.min(i + BATCH_SIZE, snapshots.size());
+			batches.add(CompletableFuture.runAsync(() -> rewrite(from, to, null), plugin.workers));
+		}
+		evaluation = CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0]));
+	}
+
+	/**
+	 * Only rewrites that change the command, notify, hit a rule that ran out of its match budget or
+	 * did not settle are kept, all other entries stay null.
+	 */
+	private void rewrite(int from, int to, Map<String, Double> counters) {
+		for (int i = from; i < to; i++) {
+			if (phase == Phase.CANCELLED)
+				return;
+			Rewrite rewrite = rewrite(snapshots.getCommand(i), counters);
+			if (rewrite.isChanged() || !rewrite.notifications.isEmpty() || !rewrite.timeouts.isEmpty() || !rewrite.stable)
+				rewrites[i] = rewrite;
+			evaluated.incrementAndGet();
+		}
+	}
+
+	private Rewrite rewrite(String command, Map<String, Double> counters) {
+		if (!ruleSet.usesCounters())
+			return plugin.cache.get(ruleSet, maxPasses, command, uncached -> applyRules(uncached, null));
+		return applyRules(command, counters);
+	}
+
+	private Rewrite applyRules(String command, Map<String, Double> counters) {
+		return maxPasses == 1 ? ruleSet.apply(command, counters) : ruleSet.applyUntilStable(command, counters, maxPasses);
+	}
+
+	private void apply(int index) {
+		Rewrite rewrite = rewrites[index];
+		if (rewrite == null)
+			return;
+		rewrites[index] = null;
+		Location location = new Location(world, snapshots.getX(index), snapshots.getY(index), snapshots.getZ(index));
+		String at = Statics.locationToString(location);
+		rewrite.timeouts.forEach(rule -> messenger.notify("rules ran out of their match budget and were quarantined.",
+			"Rule \"" + rule + "\" ran out of its match budget on the commandblock at" + at + " and was quarantined.", "Teleport there", "/tp @p" + at));
+		if (!rewrite.stable)
+			messenger.notify("commandblocks did not settle and were left unchanged.", "CommandBlock at" + at + (rewrite.cyclic ? " turned back into an earlier form"
+				: " still changed after " + rewrite.passes + " passes") + " and was left unchanged.", "Teleport there", "/tp @p" + at);
+		if (dryRun) {
+			record(index, rewrite);
+			return;
+		}
+		rewrite.notifications.forEach(entry -> messenger.notify("commandblocks notified: " + entry.message, "CommandBlock at" + at + " notifies: " + entry.message,
+			entry.colorText, "/tp @p" + at));
+
+		if (!rewrite.isChanged())
+			return;
+
+		long start = Metrics.start();
+		BlockState state = location.getBlock().getState();
+		if (!(state instanceof CommandBlock) || !((CommandBlock) state).getCommand().equals(rewrite.before)) {
+			messenger.notify("commandblocks changed while they were evaluated and were skipped.", "CommandBlock at" + at + " changed while it was evaluated and was skipped.",
+				"Teleport there", "/tp @p" + at);
+			return;
+		}
+
+		CommandBlock commandBlock = (CommandBlock) state;
+		commandBlock.setCommand(rewrite.after);
+		boolean updated = commandBlock.update(true, false);
+		Metrics.stop(Metrics.WRITES, start);
+		if (updated) {
+			Metrics.BLOCKS_WRITTEN.increment();
+			correction.add(world.getName(), commandBlock.getX(), commandBlock.getY(), commandBlock.getZ(), plugin.getCBDataString(commandBlock), rewrite.before, rewrite.after);
+			if (plugin.index != null)
+				plugin.index.put(world.getName(), commandBlock.getX(), commandBlock.getY(), commandBlock.getZ(), rewrite.after);
+			blocksChanges += rewrite.changes.size();
+			blocksModified++;
+		} else {
+			messenger.notify("commandblocks could not be modified.", "Couldn't modify commandblock at:" + at, null, "/tp @p" + at);
+			plugin.getLogger().log(Level.WARNING, "Couldn't modify commandblock at {0}", commandBlock.getLocation());
+		}
+	}
+
+	private void record(int index, Rewrite rewrite) {
+		List<String> notifications = new ArrayList<>();
+		rewrite.notifications.forEach(entry -> notifications.add(entry.message));
+		try {
+			diffs.add(new Diff(snapshots.getX(index), snapshots.getY(index), snapshots.getZ(index), rewrite.before, rewrite.after, notifications));
+		} catch (IOException e) {
+			plugin.getLogger().log(Level.SEVERE, "Job #" + id + " could not write its dry-run report", e);
+			cancel("the report could not be written, see server log");
+			return;
+		}
+		if (rewrite.isChanged()) {
+			blocksChanges += rewrite.changes.size();
+			blocksModified++;
+		}
+	}
+
+	void pause() {
+		paused = true;
+		messenger.message("Job #" + id + " paused. " + getProgress());
+	}
+
+	void resume() {
+		paused = false;
+		messenger.message("Job #" + id + " resumed.");
+	}
+
+	void cancel(String reason) {
+		if (!isRunning())
+			return;
+		messenger.message("Job #" + id + " cancelled: " + reason);
+		end(Phase.CANCELLED);
+	}
+
+	private void end(Phase result) {
+		phase = result;
+		cancel();
+		plugin.jobs.ended(this);
+		List<InterpretedPattern> quarantined = ruleSet.getQuarantined();
+		if (!quarantined.isEmpty())
+			messenger.message(quarantined.size() + " rules are quarantined and were skipped, config rules until the next reload: "
+				+ quarantined.stream().map(rule -> "\"" + rule.pattern + "\" (" + rule.getTimeouts() + " timeouts)").collect(Collectors.joining(", ")));
+		if (dryRun)
+			endDryRun(result);
+		else
+			endCorrection();
+		// last, so that nothing sent before is left in an overflow file that is not closed
+		messenger.close();
+	}
+
+	private void endCorrection() {
+		session.corrections.finish(correction);
+
+		plugin.getLogger().log(Level.INFO, "{0} has applied {1} modifications to {2} of {3} commandblocks!",
+			new Object[] { messenger.getReceiver().getName(), blocksChanges, blocksModified, snapshots.size() });
+		messenger.message(blocksModified + " / " + snapshots.size() + " commandblocks were modified with " + blocksChanges + " modifications. Undo with /ccu");
+		if (correction.hasFailed()) {
+			plugin.getLogger().log(Level.SEVERE, "Job #" + id + " could not write its undo journal", correction.getError());
+			messenger.message("The undo journal could not be written completely, only " + correction.size() + " commandblocks can be undone. See server log.");
+		}
+	}
+
+	private void endDryRun(Phase result) {
+		if (result != Phase.FINISHED) {
+			session.discard(diffs);
+			return;
+		}
+		session.addReport(id, diffs);
+		messenger.message("Dry run #" + id + ": " + blocksModified + " / " + snapshots.size() + " commandblocks would be modified with " + blocksChanges
+			+ " modifications, nothing was changed.", "Show the diff", "/cc diff " + id);
+	}
+
+	int getId() {
+		return id;
+	}
+
+	boolean isDryRun() {
+		return dryRun;
+	}
+
+	boolean isPaused() {
+		return paused;
+	}
+
+	boolean isRunning() {
+		return phase == Phase.WAITING || phase == Phase.SCANNING || phase == Phase.EVALUATING || phase == Phase.APPLYING;
+	}
+
+	Session getSession() {
+		return session;
+	}
+
+	String getProgress() {
+		switch (phase) {
+		case WAITING:
+			return "Job #" + id + ": waiting for job #" + (blockedBy == null ? "?" : blockedBy.getId()) + " to finish.";
+		case SCANNING:
+			return "Job #" + id + ": scanned " + scanner.getScannedChunks() + " / " + scanner.getChunkCount() + " chunks.";
+		case EVALUATING:
+			return "Job #" + id + ": evaluated " + evaluated.get() + " / " + snapshots.size() + " commandblocks.";
+		default:
+			return "Job #" + id + ": applied " + position + " / " + snapshots.size() + " commandblocks, " + blocksModified + " modified.";
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package de.minetropolis.minecraft;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.Location;
+import org.bukkit.command.CommandSender;
+import org.bukkit.util.Vector;
+
+import de.minetropolis.newutil.RegionLocks;
+import de.minetropolis.newutil.RuleSet;
+
+class JobScheduler {
+
+	private final CommandCorrector plugin;
+	private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+	final RegionLocks locks = new RegionLocks();
+	private final AtomicInteger nextId = new AtomicInteger(1);
+
+	JobScheduler(CommandCorrector plugin) {
+		this.plugin = plugin;
+	}
+
+	/**
+	 * @return the session of the sender, which is created on first use
+	 */
+	Session session(CommandSender sender) {
+		Session session = sessions.computeIfAbsent(Session.key(sender), key -> new Session(plugin, key));
+		session.setSender(sender);
+		return session;
+	}
+
+	CorrectionJob submit(Session session, Location start, Location end, Vector[] vectors, RuleSet ruleSet, boolean dryRun, boolean fixpoint)
+		throws IOException {
+		CorrectionJob job = new CorrectionJob(nextId.getAndIncrement(), plugin, session, start, end, vectors, ruleSet, dryRun, fixpoint);
+		session.added(job);
+		job.runTaskTimer(plugin, 0L, 1L);
+		return job;
+	}
+
+	void ended(CorrectionJob job) {
+		job.getSession().removed(job);
+		locks.unlock(job);
+	}
+
+	/**
+	 * @return the running jobs of all sessions
+	 */
+	List<CorrectionJob> getJobs() {
+		List<CorrectionJob> jobs = new ArrayList<>();
+		sessions.values().forEach(session -> jobs.addAll(session.getJobs()));
+		return jobs;
+	}
+
+	void setRetention(int maxCorrections, long maxBytes) {
+		sessions.values().forEach(session -> session.corrections.setRetention(maxCorrections, maxBytes));
+	}
+
+	void cancelAll(String reason) {
+		getJobs().forEach(job -> job.cancel(reason));
+		sessions.values().forEach(Session::discardReports);
+	}
+}
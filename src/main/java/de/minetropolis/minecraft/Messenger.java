@@ -0,0 +1,249 @@
+package de.minetropolis.minecraft;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.bukkit.Bukkit;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import de.minetropolis.newutil.Statics;
+import net.md_5.bungee.api.chat.ClickEvent;
+import net.md_5.bungee.api.chat.ComponentBuilder;
+import net.md_5.bungee.api.chat.HoverEvent;
+import net.md_5.bungee.api.chat.TextComponent;
+
+/**
+ * Output of one command invocation or job to its sender. Every invocation creates its own
+ * messenger, so jobs running at the same time keep their receivers apart.
+ * <p>
+ * An unbuffered messenger sends right away. A buffered one queues its messages and sends at most
+ * {@code messages.per-tick} of them per tick, messages that do not fit into a queue of
+ * {@code messages.max-queued} go to an overflow file in CommandCorrector/messages instead.
+ * <p>
+ * Notifications are held until {@link #close()} and grouped by their summary, identical ones are
+ * counted only once. A group with more than {@code messages.summary-threshold} different
+ * notifications is collapsed into one line like "312 commandblocks notified: Add Block State" and
+ * its full list goes to the overflow file.
+ * <p>
+ * After {@link #close()} nothing goes to the overflow file anymore, later messages and
+ * notifications are queued regardless of the queue size.
+ */
+class Messenger {
+	private static final AtomicInteger FILES = new AtomicInteger();
+
+	private final CommandSender receiver;
+	private final Plugin plugin;
+	private final int perTick;
+	private final int threshold;
+	private final int maxQueued;
+	private final Deque<Line> queue = new ArrayDeque<>();
+	private final Map<String, Group> groups = new LinkedHashMap<>();
+	private BukkitRunnable flusher;
+	private File overflowFile;
+	private Writer overflow;
+	private int overflowed = 0;
+	private boolean closed = false;
+
+	private static class Line {
+		private final String content;
+		private final HoverEvent.Action hoverAction;
+		private final String hoverText;
+		private final ClickEvent.Action clickAction;
+		private final String command;
+		private int count = 1;
+
+		private Line(String content, HoverEvent.Action hoverAction, String hoverText, ClickEvent.Action clickAction, String command) {
+			this.content = content;
+			this.hoverAction = hoverAction;
+			this.hoverText = hoverText;
+			this.clickAction = clickAction;
+			this.command = command;
+		}
+	}
+
+	private static class Group {
+		private final Map<String, Line> lines = new LinkedHashMap<>();
+		private int count = 0;
+		private boolean collapsed = false;
+	}
+
+	public Messenger(CommandSender receiver) {
+		this(receiver, null, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	private Messenger(CommandSender receiver, Plugin plugin, int perTick, int threshold, int maxQueued) {
+		this.receiver = receiver;
+		this.plugin = plugin;
+		this.perTick = perTick;
+		this.threshold = threshold;
+		this.maxQueued = maxQueued;
+	}
+
+	public static Messenger buffered(CommandCorrector plugin, CommandSender receiver) {
+		return new Messenger(receiver, plugin, Math.max(1, plugin.settings.getInt("messages.per-tick", 20)),
+				Math.max(0, plugin.settings.getInt("messages.summary-threshold", 5)), Math.max(1, plugin.settings.getInt("messages.max-queued", 500)));
+	}
+
+	public CommandSender getReceiver() {
+		return receiver;
+	}
+
+	public void message(String content) {
+		message(content, null, null, null, null);
+	}
+
+	public void message(String content, String hoverText, String command) {
+		message(content, HoverEvent.Action.SHOW_TEXT, hoverText, ClickEvent.Action.RUN_COMMAND, command);
+	}
+
+	public void message(String content, HoverEvent.Action hoverAction, String hoverText, ClickEvent.Action clickAction, String command) {
+		enqueue(new Line(content, hoverAction, hoverText, clickAction, command), false);
+	}
+
+	/**
+	 * Holds a notification until the messenger is closed.
+	 *
+	 * @param summary
+	 *            what all notifications of the group have in common, e.g. "commandblocks notified:
+	 *            Add Block State"
+	 */
+	public void notify(String summary, String content, String hoverText, String command) {
+		if (closed) {
+			enqueue(new Line(content, HoverEvent.Action.SHOW_TEXT, hoverText, ClickEvent.Action.RUN_COMMAND, command), true);
+			return;
+		}
+		Group group = groups.computeIfAbsent(summary, key -> new Group());
+		group.count++;
+		if (group.collapsed) {
+			writeOverflow(summary + " | " + content);
+			return;
+		}
+		Line line = group.lines.get(content);
+		if (line != null) {
+			line.count++;
+			return;
+		}
+		group.lines.put(content, new Line(content, HoverEvent.Action.SHOW_TEXT, hoverText, ClickEvent.Action.RUN_COMMAND, command));
+		if (group.lines.size() > threshold) {
+			group.collapsed = true;
+			group.lines.values().forEach(held -> writeOverflow(summary + " | " + counted(held)));
+			group.lines.clear();
+		}
+	}
+
+	/**
+	 * Sends the held notifications and closes the overflow file. Messages that are still queued are
+	 * sent in the next ticks.
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		for (Map.Entry<String, Group> entry : groups.entrySet()) {
+			Group group = entry.getValue();
+			if (group.collapsed) {
+				enqueue(new Line(group.count + " " + entry.getKey(), HoverEvent.Action.SHOW_TEXT, overflowFile == null ? "The full list could not be written, see server log"
+						: "Full list in " + overflowFile.getPath(), null, null), true);
+			} else {
+				for (Line line : group.lines.values())
+					enqueue(new Line(counted(line), line.hoverAction, line.hoverText, line.clickAction, line.command), true);
+			}
+		}
+		groups.clear();
+		if (overflowed > 0 && overflowFile != null)
+			enqueue(new Line(overflowed + " more messages were written to " + overflowFile.getPath(), null, null, null, null), true);
+		overflowed = 0;
+		if (overflow != null) {
+			try {
+				overflow.close();
+			} catch (IOException e) {
+				Bukkit.getLogger().log(Level.WARNING, "Could not write " + overflowFile, e);
+			}
+			overflow = null;
+		}
+	}
+
+	private static String counted(Line line) {
+		return line.count > 1 ? line.content + " (" + line.count + "x)" : line.content;
+	}
+
+	private void enqueue(Line line, boolean force) {
+		if (plugin == null || !plugin.isEnabled()) {
+			send(line);
+			return;
+		}
+		if (!force && !closed && queue.size() >= maxQueued) {
+			writeOverflow(line.content);
+			overflowed++;
+			return;
+		}
+		queue.add(line);
+		if (flusher == null) {
+			flusher = new BukkitRunnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			};
+			flusher.runTaskTimer(plugin, 0L, 1L);
+		}
+	}
+
+	private void flush() {
+		for (int sent = 0; sent < perTick && !queue.isEmpty(); sent++)
+			send(queue.poll());
+		if (queue.isEmpty()) {
+			flusher.cancel();
+			flusher = null;
+		}
+	}
+
+	private void send(Line line) {
+		if (receiver instanceof Player) {
+			TextComponent message = new TextComponent(line.content);
+			if (line.hoverAction != null && line.hoverText != null)
+				message.setHoverEvent(new HoverEvent(line.hoverAction, new ComponentBuilder(line.hoverText).create()));
+			if (line.clickAction != null && line.command != null)
+				message.setClickEvent(new ClickEvent(line.clickAction, line.command));
+			receiver.spigot().sendMessage(message);
+		} else if (receiver != null) {
+			receiver.sendMessage(line.content);
+		} else {
+			Bukkit.getLogger().log(Level.INFO, line.content);
+		}
+	}
+
+	private void writeOverflow(String text) {
+		try {
+			if (overflow == null) {
+				if (overflowFile == null) {
+					File folder = new File(Statics.getDataFolder(), "messages");
+					folder.mkdirs();
+					overflowFile = new File(folder, (receiver == null ? "server" : receiver.getName()) + "-"
+							+ new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + "-" + FILES.incrementAndGet() + ".txt");
+				}
+				overflow = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(overflowFile, true), StandardCharsets.UTF_8));
+			}
+			overflow.write(text + System.lineSeparator());
+		} catch (IOException e) {
+			Bukkit.getLogger().log(Level.WARNING, "Could not write " + overflowFile, e);
+			overflowFile = null;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package de.minetropolis.minecraft;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.CommandBlock;
+import org.bukkit.util.Vector;
+
+import de.minetropolis.newutil.BlockIndex;
+import de.minetropolis.newutil.RecordStore;
+
+/**
+ * Finds the command blocks inside a cuboid by enumerating the tile entities of every chunk the
+ * cuboid touches, instead of reading the state of every single block. With an index, unloaded
+ * chunks the index knows to contain no command blocks are skipped and every scanned chunk is
+ * reindexed. The command blocks found are copied into a RecordStore chunk by chunk, so no block
+ * state outlives the chunk it was read from.
+ */
+class RegionScanner {
+
+	static final String INDEX_ONLY = "The area touches more than " + BlockIndex.MAX_ENUMERATED_CHUNKS
+		+ " chunks, so only loaded chunks and chunks the command block index knows command blocks in are searched."
+		+ " Unloaded chunks that were not loaded since the index was enabled are skipped.";
+
+	private final World world;
+	private final BlockIndex index;
+	private final int minX, minY, minZ, maxX, maxY, maxZ;
+	private final long[] chunks;
+	private final RecordStore records = new RecordStore();
+	private int nextChunk = 0;
+
+	RegionScanner(Location corner, Location opposite) {
+		this(corner, opposite, null);
+	}
+
+	RegionScanner(Location corner, Location opposite, BlockIndex index) {
+		world = corner.getWorld();
+		this.index = index;
+		minX = Math.min(corner.getBlockX(), opposite.getBlockX());
+		minY = Math.min(corner.getBlockY(), opposite.getBlockY());
+		minZ = Math.min(corner.getBlockZ(), opposite.getBlockZ());
+		maxX = Math.max(corner.getBlockX(), opposite.getBlockX());
+		maxY = Math.max(corner.getBlockY(), opposite.getBlockY());
+		maxZ = Math.max(corner.getBlockZ(), opposite.getBlockZ());
+		chunks = chunks(world, index, minX, minZ, maxX, maxZ, false);
+	}
+
+	/**
+	 * @return whether the area is too large to visit every chunk of it, so chunks the index has
+	 *         never seen are skipped, see {@link #INDEX_ONLY}
+	 */
+	static boolean isIndexOnly(BlockIndex index, int minX, int minZ, int maxX, int maxZ) {
+		return index != null && BlockIndex.isTooLarge(minX, minZ, maxX, maxZ);
+	}
+
+	boolean isIndexOnly() {
+		return isIndexOnly(index, minX, minZ, maxX, maxZ);
+	}
+
+	/**
+	 * @param untrustedOnly
+	 *            whether to return only loaded chunks and chunks the index has never seen, see
+	 *            {@link BlockIndex#chunksToRead}
+	 * @return the keys of the chunks touched by the area that may contain command blocks
+	 */
+	static long[] chunks(World world, BlockIndex index, int minX, int minZ, int maxX, int maxZ, boolean untrustedOnly) {
+		if (index != null) {
+			Set<Long> loaded = new HashSet<>();
+			for (Chunk chunk : world.getLoadedChunks())
+				loaded.add(BlockIndex.chunkKey(chunk.getX(), chunk.getZ()));
+			return index.chunksToRead(world.getName(), minX, minZ, maxX, maxZ, loaded, untrustedOnly);
+		}
+		LongStream.Builder chunks = LongStream.builder();
+		for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+			for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++)
+				chunks.add(BlockIndex.chunkKey(chunkX, chunkZ));
+		}
+		return chunks.build().toArray();
+	}
+
+	/**
+	 * @return the indices of the records, see {@link #getOrder(Vector[])}
+	 */
+	int[] scan(Vector[] vectors) {
+		while (hasNextChunk())
+			scanNextChunk();
+		return getOrder(vectors);
+	}
+
+	boolean hasNextChunk() {
+		return nextChunk < chunks.length;
+	}
+
+	void scanNextChunk() {
+		Chunk chunk = world.getChunkAt(BlockIndex.chunkX(chunks[nextChunk]), BlockIndex.chunkZ(chunks[nextChunk]));
+		nextChunk++;
+		BlockState[] tileEntities = chunk.getTileEntities();
+		if (index != null)
+			CommandblockIndexListener.index(index, chunk, tileEntities);
+		for (BlockState state : tileEntities) {
+			if (state instanceof CommandBlock && contains(state))
+				records.add(world.getName(), state.getX(), state.getY(), state.getZ(), ((CommandBlock) state).getCommand());
+		}
+	}
+
+	int getScannedChunks() {
+		return nextChunk;
+	}
+
+	int getChunkCount() {
+		return chunks.length;
+	}
+
+	/**
+	 * @return the command blocks scanned so far, in the order they were found
+	 */
+	RecordStore getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return the indices of the scanned records in {@link #priorityOrder priority order}
+	 */
+	int[] getOrder(Vector[] vectors) {
+		return IntStream.range(0, records.size()).boxed().sorted(priorityOrder(records, vectors)).mapToInt(Integer::intValue).toArray();
+	}
+
+	private boolean contains(BlockState state) {
+		return state.getX() >= minX && state.getX() <= maxX
+			&& state.getY() >= minY && state.getY() <= maxY
+			&& state.getZ() >= minZ && state.getZ() <= maxZ;
+	}
+
+	/**
+	 * Orders blocks the way walking the region along vectors[0], then vectors[1], then vectors[2]
+	 * would visit them.
+	 */
+	static Comparator<Integer> priorityOrder(RecordStore records, Vector[] vectors) {
+		return Comparator.<Integer>comparingDouble(i -> along(records.getX(i), records.getY(i), records.getZ(i), vectors[2]))
+			.thenComparingDouble(i -> along(records.getX(i), records.getY(i), records.getZ(i), vectors[1]))
+			.thenComparingDouble(i -> along(records.getX(i), records.getY(i), records.getZ(i), vectors[0]));
+	}
+
+	static Comparator<BlockIndex.Entry> indexOrder(Vector[] vectors) {
+		return Comparator.<BlockIndex.Entry>comparingDouble(entry -> along(entry.x, entry.y, entry.z, vectors[2]))
+			.thenComparingDouble(entry -> along(entry.x, entry.y, entry.z, vectors[1]))
+			.thenComparingDouble(entry -> along(entry.x, entry.y, entry.z, vectors[0]));
+	}
+
+	private static double along(int x, int y, int z, Vector vector) {
+		return x * vector.getX() + y * vector.getY() + z * vector.getZ();
+	}
+}
@@ -1,16 +1,17 @@
 package de.minetropolis.minecraft;
 
 import java.util.Objects;
+
+import org.bukkit.Bukkit;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
-import org.bukkit.plugin.Plugin;
 
 public class ReloadConfigCommand implements CommandExecutor {
 
-    private final Plugin plugin;
+    private final CommandCorrector plugin;
 
-    public ReloadConfigCommand(Plugin plugin) {
+    public ReloadConfigCommand(CommandCorrector plugin) {
         this.plugin = Objects.requireNonNull(plugin);
     }
 
@@ -21,8 +22,9 @@ public class ReloadConfigCommand implements CommandExecutor {
             return true;
         }
         if (args.length == 0) {
-            plugin.reloadConfig();
-			sender.sendMessage("Reload completed.");
+            plugin.reloadSettings();
+            sender.sendMessage("Settings reloaded, compiling config.yml...");
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> plugin.reloadRules(sender));
             return true;
         } else {
             return false;
@@ -0,0 +1,117 @@
+package de.minetropolis.minecraft;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import de.minetropolis.newutil.Corrections;
+import de.minetropolis.newutil.DiffBuffer;
+import de.minetropolis.newutil.Statics;
+
+/**
+ * What /cc keeps per sender: its undo history, its jobs and the reports of its dry runs. Players
+ * are told apart by their UUID, all other senders by their name. Jobs end on the main thread while
+ * commands list them, so the collections are concurrent and ordered by job id.
+ */
+class Session {
+
+	private final CommandCorrector plugin;
+	private final String key;
+	private volatile CommandSender sender;
+	final Corrections corrections;
+	private final ConcurrentNavigableMap<Integer, CorrectionJob> jobs = new ConcurrentSkipListMap<>();
+	private final ConcurrentNavigableMap<Integer, DiffBuffer> reports = new ConcurrentSkipListMap<>();
+
+	Session(CommandCorrector plugin, String key) {
+		this.plugin = plugin;
+		this.key = key;
+		corrections = new Corrections(new File(new File(Statics.getDataFolder(), "undo"), key));
+		corrections.getErrors().forEach(error -> plugin.getLogger().log(Level.WARNING, error));
+		corrections.setRetention(plugin.settings.getInt("undo.max-corrections", 20), plugin.settings.getLong("undo.max-bytes", 0));
+	}
+
+	static String key(CommandSender sender) {
+		if (sender instanceof Player)
+			return ((Player) sender).getUniqueId().toString();
+		return sender.getName().toLowerCase().replaceAll("[^a-z0-9_-]", "_");
+	}
+
+	String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the sender that used the session last, messages of its jobs go there
+	 */
+	CommandSender getSender() {
+		return sender;
+	}
+
+	void setSender(CommandSender sender) {
+		this.sender = sender;
+	}
+
+	void added(CorrectionJob job) {
+		jobs.put(job.getId(), job);
+	}
+
+	void removed(CorrectionJob job) {
+		jobs.remove(job.getId());
+	}
+
+	/**
+	 * @return the job with the given id, or the most recently started job if id is null
+	 */
+	CorrectionJob getJob(Integer id) {
+		if (id != null)
+			return jobs.get(id);
+		Map.Entry<Integer, CorrectionJob> last = jobs.lastEntry();
+		return last == null ? null : last.getValue();
+	}
+
+	Collection<CorrectionJob> getJobs() {
+		return jobs.values();
+	}
+
+	/**
+	 * Keeps the report of a finished dry run. Only the last {@code dryrun.reports} reports are kept.
+	 */
+	void addReport(int id, DiffBuffer report) {
+		reports.put(id, report);
+		int keep = Math.max(1, plugin.settings.getInt("dryrun.reports", 5));
+		while (reports.size() > keep)
+			discard(reports.pollFirstEntry().getValue());
+	}
+
+	DiffBuffer getReport(int id) {
+		return reports.get(id);
+	}
+
+	/**
+	 * @return the id of the most recent dry run report, or null if there is none
+	 */
+	Integer getLastReportId() {
+		return reports.isEmpty() ? null : reports.lastKey();
+	}
+
+	void discard(DiffBuffer report) {
+		try {
+			report.close();
+		} catch (IOException e) {
+			plugin.getLogger().log(Level.WARNING, "Could not delete a dry-run report", e);
+		}
+	}
+
+	void discardReports() {
+		Map.Entry<Integer, DiffBuffer> report;
+		while ((report = reports.pollFirstEntry()) != null)
+			discard(report.getValue());
+	}
+}
@@ -0,0 +1,328 @@
+package de.minetropolis.newutil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongPredicate;
+import java.util.stream.LongStream;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Locations and last known commands of all command blocks, per world and chunk. A chunk is
+ * "indexed" once its command blocks have been read; a chunk that is indexed but has no entries is
+ * known to contain no command blocks. The commands are kept in a trigram index per world for
+ * {@link #search}. Not synchronized, meant to be used from the main thread.
+ */
+public class BlockIndex {
+	private static final int MAGIC = 0x43434931; // "CCI1"
+	/**
+	 * Areas touching more chunks than this are not visited chunk by chunk, only the chunks known to
+	 * contain command blocks and the loaded ones are read.
+	 */
+	public static final int MAX_ENUMERATED_CHUNKS = 1 << 16;
+
+	private final Map<String, WorldIndex> worlds = new HashMap<>();
+	private boolean dirty = false;
+
+	public static class Entry {
+		public final int x, y, z;
+		public final String command;
+
+		public Entry(int x, int y, int z, String command) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.command = command;
+		}
+	}
+
+	private static class WorldIndex {
+		private final Set<Long> indexed = new HashSet<>();
+		private final Map<Long, Map<Long, Entry>> chunks = new HashMap<>();
+		private final TrigramIndex text = new TrigramIndex();
+	}
+
+	public static long chunkKey(int chunkX, int chunkZ) {
+		return (long) chunkX << 32 | chunkZ & 0xFFFFFFFFL;
+	}
+
+	public static int chunkX(long key) {
+		return (int) (key >> 32);
+	}
+
+	public static int chunkZ(long key) {
+		return (int) key;
+	}
+
+	private WorldIndex world(String world) {
+		return worlds.computeIfAbsent(world, key -> new WorldIndex());
+	}
+
+	/**
+	 * Replaces everything known about a chunk with its current command blocks.
+	 */
+	public void indexChunk(String world, int chunkX, int chunkZ, Collection<Entry> entries) {
+		WorldIndex index = world(world);
+		long key = chunkKey(chunkX, chunkZ);
+		Map<Long, Entry> previous = index.chunks.remove(key);
+		boolean changed = index.indexed.add(key);
+		Map<Long, Entry> chunk = new LinkedHashMap<>();
+		for (Entry entry : entries) {
+			long position = RecordStore.pack(entry.x, entry.y, entry.z);
+			Entry old = previous == null ? null : previous.remove(position);
+			if (old != null && old.command.equals(entry.command)) {
+				entry = old;
+			} else {
+				if (old != null)
+					index.text.remove(old);
+				index.text.add(entry);
+				changed = true;
+			}
+			chunk.put(position, entry);
+		}
+		if (previous != null && !previous.isEmpty()) {
+			previous.values().forEach(index.text::remove);
+			changed = true;
+		}
+		if (!chunk.isEmpty())
+			index.chunks.put(key, chunk);
+		dirty |= changed;
+	}
+
+	public void put(String world, int x, int y, int z, String command) {
+		WorldIndex index = world(world);
+		long key = chunkKey(x >> 4, z >> 4);
+		index.indexed.add(key);
+		Map<Long, Entry> chunk = index.chunks.computeIfAbsent(key, k -> new LinkedHashMap<>());
+		Entry old = chunk.get(RecordStore.pack(x, y, z));
+		if (old != null && old.command.equals(command))
+			return;
+		Entry entry = new Entry(x, y, z, command);
+		chunk.put(RecordStore.pack(x, y, z), entry);
+		if (old != null)
+			index.text.remove(old);
+		index.text.add(entry);
+		dirty = true;
+	}
+
+	public void remove(String world, int x, int y, int z) {
+		WorldIndex index = worlds.get(world);
+		if (index == null)
+			return;
+		long key = chunkKey(x >> 4, z >> 4);
+		Map<Long, Entry> chunk = index.chunks.get(key);
+		Entry old = chunk == null ? null : chunk.remove(RecordStore.pack(x, y, z));
+		if (old != null) {
+			index.text.remove(old);
+			if (chunk.isEmpty())
+				index.chunks.remove(key);
+			dirty = true;
+		}
+	}
+
+	public boolean isIndexed(String world, int chunkX, int chunkZ) {
+		WorldIndex index = worlds.get(world);
+		return index != null && index.indexed.contains(chunkKey(chunkX, chunkZ));
+	}
+
+	public boolean hasBlocks(String world, int chunkX, int chunkZ) {
+		WorldIndex index = worlds.get(world);
+		return index != null && index.chunks.containsKey(chunkKey(chunkX, chunkZ));
+	}
+
+	/**
+	 * @return whether the area touches more than {@link #MAX_ENUMERATED_CHUNKS} chunks
+	 */
+	public static boolean isTooLarge(int minX, int minZ, int maxX, int maxZ) {
+		return ((long) (maxX >> 4) - (minX >> 4) + 1) * ((long) (maxZ >> 4) - (minZ >> 4) + 1) > MAX_ENUMERATED_CHUNKS;
+	}
+
+	/**
+	 * Loaded chunks can gain command blocks without an event, by /setblock, /fill, /clone,
+	 * structure blocks or a WorldEdit paste, so what the index knows is only trusted for unloaded
+	 * chunks. Loaded chunks are cheap to read anyway.
+	 *
+	 * @param loaded
+	 *            the keys of the loaded chunks of the world
+	 * @param untrustedOnly
+	 *            whether to leave out the unloaded chunks the index knows to contain command blocks
+	 * @return the keys of the chunks touched by the area that have to be read
+	 */
+	public long[] chunksToRead(String world, int minX, int minZ, int maxX, int maxZ, Set<Long> loaded, boolean untrustedOnly) {
+		LongPredicate inArea = key -> chunkX(key) >= minX >> 4 && chunkX(key) <= maxX >> 4 && chunkZ(key) >= minZ >> 4 && chunkZ(key) <= maxZ >> 4;
+		if (isTooLarge(minX, minZ, maxX, maxZ)) {
+			Set<Long> chunks = new LinkedHashSet<>();
+			loaded.stream().filter(inArea::test).forEach(chunks::add);
+			if (!untrustedOnly)
+				getChunks(world).stream().filter(inArea::test).forEach(chunks::add);
+			return chunks.stream().mapToLong(Long::longValue).toArray();
+		}
+		LongStream.Builder chunks = LongStream.builder();
+		for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+			for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+				long key = chunkKey(chunkX, chunkZ);
+				if (loaded.contains(key) || !isIndexed(world, chunkX, chunkZ) || (!untrustedOnly && hasBlocks(world, chunkX, chunkZ)))
+					chunks.add(key);
+			}
+		}
+		return chunks.build().toArray();
+	}
+
+	/**
+	 * @return the keys of all chunks of the world that contain command blocks
+	 */
+	public Set<Long> getChunks(String world) {
+		WorldIndex index = worlds.get(world);
+		return index == null ? Collections.emptySet() : Collections.unmodifiableSet(index.chunks.keySet());
+	}
+
+	/**
+	 * @return the entries inside the bounds, which are inclusive. Takes time proportional to the
+	 *         smaller of the number of chunks in the bounds and the number of chunks with command
+	 *         blocks, plus the entries in those chunks.
+	 */
+	public List<Entry> query(String world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		List<Entry> found = new ArrayList<>();
+		WorldIndex index = worlds.get(world);
+		if (index == null)
+			return found;
+		long chunkCount = ((long) (maxX >> 4) - (minX >> 4) + 1) * ((long) (maxZ >> 4) - (minZ >> 4) + 1);
+		if (chunkCount <= index.chunks.size()) {
+			for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++)
+				for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++)
+					collect(index.chunks.get(chunkKey(chunkX, chunkZ)), found, minX, minY, minZ, maxX, maxY, maxZ);
+		} else {
+			for (Map<Long, Entry> chunk : index.chunks.values())
+				collect(chunk, found, minX, minY, minZ, maxX, maxY, maxZ);
+		}
+		return found;
+	}
+
+	/**
+	 * @return the entries inside the bounds whose last known command matches the search. Only
+	 *         commands containing all literals of the search are looked at.
+	 */
+	public List<Entry> search(String world, CommandSearch search, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		WorldIndex index = worlds.get(world);
+		if (index == null)
+			return new ArrayList<>();
+		List<Entry> candidates = index.text.candidates(search.literals);
+		if (candidates == null)
+			return query(world, minX, minY, minZ, maxX, maxY, maxZ).stream().filter(entry -> search.pattern.matcher(entry.command).find())
+				.collect(Collectors.toList());
+		return candidates.stream().filter(entry -> entry.x >= minX && entry.x <= maxX && entry.y >= minY && entry.y <= maxY && entry.z >= minZ
+			&& entry.z <= maxZ && search.pattern.matcher(entry.command).find()).collect(Collectors.toList());
+	}
+
+	private static void collect(Map<Long, Entry> chunk, List<Entry> found, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		if (chunk == null)
+			return;
+		for (Entry entry : chunk.values()) {
+			if (entry.x >= minX && entry.x <= maxX && entry.y >= minY && entry.y <= maxY && entry.z >= minZ && entry.z <= maxZ)
+				found.add(entry);
+		}
+	}
+
+	/**
+	 * @return the number of indexed command blocks
+	 */
+	public int size() {
+		return worlds.values().stream().flatMap(index -> index.chunks.values().stream()).mapToInt(Map::size).sum();
+	}
+
+	/**
+	 * @return whether the index changed since it was loaded or saved
+	 */
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * Writes the index to a temporary file first, which then replaces the given one.
+	 */
+	public void save(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))))) {
+			out.writeInt(MAGIC);
+			out.writeInt(worlds.size());
+			for (Map.Entry<String, WorldIndex> world : worlds.entrySet()) {
+				out.writeUTF(world.getKey());
+				out.writeInt(world.getValue().indexed.size());
+				for (long key : world.getValue().indexed)
+					out.writeLong(key);
+				out.writeInt(world.getValue().chunks.size());
+				for (Map.Entry<Long, Map<Long, Entry>> chunk : world.getValue().chunks.entrySet()) {
+					out.writeLong(chunk.getKey());
+					out.writeInt(chunk.getValue().size());
+					for (Entry entry : chunk.getValue().values()) {
+						out.writeInt(entry.x);
+						out.writeInt(entry.y);
+						out.writeInt(entry.z);
+						byte[] command = entry.command.getBytes(StandardCharsets.UTF_8);
+						out.writeInt(command.length);
+						out.write(command);
+					}
+				}
+			}
+		}
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		dirty = false;
+	}
+
+	/**
+	 * @return the saved index, or an empty one if the file does not exist
+	 */
+	public static BlockIndex load(File file) throws IOException {
+		BlockIndex index = new BlockIndex();
+		if (!file.isFile())
+			return index;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException("not a command block index");
+			for (int worlds = in.readInt(); worlds > 0; worlds--) {
+				WorldIndex world = index.world(in.readUTF());
+				for (int indexed = in.readInt(); indexed > 0; indexed--)
+					world.indexed.add(in.readLong());
+				for (int chunks = in.readInt(); chunks > 0; chunks--) {
+					long key = in.readLong();
+					Map<Long, Entry> chunk = new LinkedHashMap<>();
+					for (int entries = in.readInt(); entries > 0; entries--) {
+						int x = in.readInt(), y = in.readInt(), z = in.readInt();
+						byte[] command = new byte[in.readInt()];
+						in.readFully(command);
+						Entry entry = new Entry(x, y, z, new String(command, StandardCharsets.UTF_8));
+						chunk.put(RecordStore.pack(x, y, z), entry);
+						world.text.add(entry);
+					}
+					world.chunks.put(key, chunk);
+				}
+			}
+		}
+		return index;
+	}
+}
@@ -0,0 +1,54 @@
+package de.minetropolis.newutil;
+
+/**
+ * A command as java.util.regex sees it when applying a rule. Every char the matcher reads is paid
+ * from a budget, and once that is used up matching is abandoned with {@link Exhausted}. Backtracking
+ * reads the same chars over and over, so this bounds its work without a clock or a second thread.
+ * Sub sequences, such as the match a local assertion is tested on, share the budget.
+ */
+final class BudgetedInput implements CharSequence {
+	final String text;
+	private final BudgetedInput root;
+	private long remaining;
+
+	BudgetedInput(String text, long budget) {
+		this.text = text;
+		root = this;
+		remaining = budget;
+	}
+
+	private BudgetedInput(String text, BudgetedInput root) {
+		this.text = text;
+		this.root = root;
+	}
+
+	@Override
+	public int length() {
+		return text.length();
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (--root.remaining < 0)
+			throw new Exhausted();
+		return text.charAt(index);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return new BudgetedInput(text.substring(start, end), root);
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+
+	static class Exhausted extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		Exhausted() {
+			super(null, null, false, false);
+		}
+	}
+}
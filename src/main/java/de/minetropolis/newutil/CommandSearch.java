@@ -0,0 +1,47 @@
+package de.minetropolis.newutil;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What /ccf looks for: either plain text or a pattern in the rule syntax, together with the
+ * literals every match has to contain.
+ */
+public class CommandSearch {
+	public final Pattern pattern;
+	public final List<String> literals;
+
+	private CommandSearch(Pattern pattern, List<String> literals) {
+		this.pattern = pattern;
+		this.literals = Collections.unmodifiableList(literals);
+	}
+
+	public static CommandSearch text(String text) {
+		return new CommandSearch(Pattern.compile(Pattern.quote(text)), Collections.singletonList(text));
+	}
+
+	/**
+	 * @param pattern
+	 *            a pattern in the syntax of a rule's pattern, e.g. "score_;?(\\w+)_min"
+	 * @return the search, or null if the pattern does not compile
+	 */
+	public static CommandSearch pattern(String pattern) {
+		InterpretedPattern ip = new InterpretedPattern(pattern).compile();
+		if (ip == null)
+			return null;
+		return new CommandSearch(ip.getCompiled().pattern, ip.getRequiredLiterals());
+	}
+
+	/**
+	 * @return how often the command matches, 0 if it does not
+	 */
+	public int count(String command) {
+		Matcher matcher = pattern.matcher(command);
+		int count = 0;
+		while (matcher.find())
+			count++;
+		return count;
+	}
+}
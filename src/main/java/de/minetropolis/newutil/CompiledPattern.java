@@ -0,0 +1,85 @@
+package de.minetropolis.newutil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+import de.minetropolis.groups.Group;
+import de.minetropolis.groups.GroupType;
+
+/**
+ * Immutable result of {@link InterpretedPattern#compile()}. Holds every regex a rule needs at
+ * correction time and the parsed target, so changing a command only has to run matchers. Patterns
+ * that {@link NfaPattern} supports are matched by it in linear time, all others by java.util.regex.
+ */
+public final class CompiledPattern {
+	public final Pattern pattern;
+	/**
+	 * the pattern as an automaton, or null if it needs java.util.regex
+	 */
+	public final NfaPattern automaton;
+	public final Pattern assertion;
+	public final Pattern localAssertion;
+	public final List<Group> captureGroups;
+	public final Template template;
+	private final Map<Group, List<Conversion>> conversions = new HashMap<>();
+
+	/**
+	 * @throws PatternSyntaxException
+	 *             if a regex does not compile, or a conversion of an autoconvert group has nothing
+	 *             to convert to
+	 */
+	CompiledPattern(String pattern, String target, String assertion, List<Group> groups) {
+		this.pattern = Pattern.compile(pattern);
+		NfaPattern automaton = NfaPattern.compile(pattern);
+		this.automaton = automaton != null && automaton.groupCount() == this.pattern.matcher("").groupCount() ? automaton : null;
+		this.assertion = assertion.isEmpty() ? null : Pattern.compile(assertion);
+		this.localAssertion = assertion.startsWith("L;") ? Pattern.compile(assertion.substring(2)) : null;
+		this.captureGroups = Collections.unmodifiableList(groups.stream().filter(group -> group.getType() == GroupType.NORMAL ||
+			group.getType() == GroupType.SPECIAL ||
+			group.getType() == GroupType.AUTOCONVERT).collect(Collectors.toList()));
+
+		for (Group group : captureGroups) {
+			if (group.getType() != GroupType.AUTOCONVERT)
+				continue;
+			List<Conversion> list = new ArrayList<>();
+			for (String conversion : group.getContent().substring(4, group.getContent().length() - 2).split("\\)\\|\\(\\?:")) {
+				String[] alternatives = conversion.split("\\|");
+				if (alternatives.length == 0)
+					throw new PatternSyntaxException("conversion without a replacement", group.getContent(), -1);
+				list.add(new Conversion(Pattern.compile(conversion), alternatives[alternatives.length - 1]));
+			}
+			conversions.put(group, Collections.unmodifiableList(list));
+		}
+		this.template = new Template(target, this);
+	}
+
+	/**
+	 * The automaton needs no budget, so it gets the text of a {@link BudgetedInput}.
+	 */
+	public RuleMatcher matcher(CharSequence command) {
+		CharSequence text = command instanceof BudgetedInput ? ((BudgetedInput) command).text : command;
+		if (automaton != null && !NfaPattern.hasSurrogates(text))
+			return automaton.matcher(text);
+		return RuleMatcher.of(pattern.matcher(command));
+	}
+
+	public List<Conversion> getConversions(Group group) {
+		return conversions.getOrDefault(group, Collections.emptyList());
+	}
+
+	public static final class Conversion {
+		public final Pattern matcher;
+		public final String replacement;
+
+		private Conversion(Pattern matcher, String replacement) {
+			this.matcher = matcher;
+			this.replacement = replacement;
+		}
+	}
+}
@@ -0,0 +1,312 @@
+package de.minetropolis.newutil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads rules in the config format
+ *
+ * <pre>
+ * "pattern" : "target" | "assertion"
+ * </pre>
+ *
+ * line by line, looking at most four lines ahead. An entry starts at the beginning of a line after
+ * any spaces and tabs, there may be one line break between any two of its parts, and the assertion
+ * is optional. The pattern extends to the last quotation mark that still lets the entry match, the
+ * target to the first one, and the assertion to the end of its line, the same way the regular
+ * expression that used to read the config did. Every other line is ignored, but lines starting
+ * with a quotation mark that do not form an entry are reported as warnings with line and column.
+ * <p>
+ * A line {@code #include "file"} reads the rules of another file at that point. Its path is
+ * relative to the including file.
+ */
+public class ConfigParser {
+	private static final String INCLUDE = "#include";
+
+	private final List<String> warnings;
+	private final Set<File> including = new HashSet<>();
+	private final Set<File> files = new LinkedHashSet<>();
+	private final List<String> window = new ArrayList<>();
+	private BufferedReader reader;
+	private int first;
+	private String source;
+	private int failLine, failColumn;
+	private String failure;
+
+	public static class Entry {
+		public final String pattern, target, assertion;
+		/**
+		 * the file the entry is in, null for the top level file
+		 */
+		public final String source;
+		public final int line, column;
+
+		Entry(String pattern, String target, String assertion, String source, int line, int column) {
+			this.pattern = pattern;
+			this.target = target;
+			this.assertion = assertion;
+			this.source = source;
+			this.line = line;
+			this.column = column;
+		}
+
+		/**
+		 * @return e.g. "rules/teams.yml line 4, column 1", without the file name for the top level
+		 *         file
+		 */
+		public String getPosition() {
+			return position(source, line, column);
+		}
+	}
+
+	/**
+	 * @param warnings
+	 *            receives a message for every malformed entry and include
+	 */
+	public ConfigParser(List<String> warnings) {
+		this.warnings = warnings;
+	}
+
+	public List<Entry> parse(String text) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		files.clear();
+		parse(new StringReader(text), null, null, entries);
+		return entries;
+	}
+
+	public List<Entry> parse(File file) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		files.clear();
+		files.add(file);
+		parse(file, null, entries);
+		return entries;
+	}
+
+	private void parse(File file, String name, List<Entry> entries) throws IOException {
+		File canonical = file.getCanonicalFile();
+		including.add(canonical);
+		try (Reader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			parse(in, file.getParentFile(), name, entries);
+		} finally {
+			including.remove(canonical);
+		}
+	}
+
+	private void parse(Reader in, File folder, String name, List<Entry> entries) throws IOException {
+		BufferedReader outerReader = reader;
+		List<String> outerWindow = new ArrayList<>(window);
+		int outerFirst = first;
+		String outerSource = source;
+		reader = new BufferedReader(in);
+		window.clear();
+		first = 0;
+		source = name;
+		try {
+			String text;
+			while ((text = line(0)) != null) {
+				int start = skipBlanks(text, 0), last = 0;
+				if (text.startsWith(INCLUDE, start)) {
+					include(folder, start, entries);
+				} else if (start < text.length() && text.charAt(start) == '"') {
+					failure = null;
+					last = entry(start, entries);
+					if (last < 0)
+						warnings.add(position(source, first + failLine + 1, failColumn + 1) + ": " + failure);
+				}
+				drop(Math.max(0, last));
+			}
+		} finally {
+			reader = outerReader;
+			window.clear();
+			window.addAll(outerWindow);
+			first = outerFirst;
+			source = outerSource;
+		}
+	}
+
+	private void include(File folder, int start, List<Entry> entries) throws IOException {
+		String text = line(0);
+		int open = skipBlanks(text, start + INCLUDE.length());
+		int close = text.lastIndexOf('"');
+		if (open == start + INCLUDE.length() || open >= text.length() || text.charAt(open) != '"' || close <= open + 1 || skipBlanks(text, close + 1) < text.length()) {
+			warnings.add(position(source, first + 1, start + 1) + ": expected #include \"file\"");
+			return;
+		}
+		String path = text.substring(open + 1, close);
+		File file = folder == null ? new File(path) : new File(folder, path);
+		String name = source == null ? new File(path).getPath() : new File(new File(source).getParentFile(), path).getPath();
+		files.add(file);
+		if (!file.isFile())
+			warnings.add(position(source, first + 1, open + 2) + ": cannot include " + path + ", there is no such file");
+		else if (including.contains(file.getCanonicalFile()))
+			warnings.add(position(source, first + 1, open + 2) + ": " + path + " includes itself");
+		else
+			parse(file, name, entries);
+	}
+
+	/**
+	 * @return the files the last parse read or tried to include, the top level file first. A
+	 *         change to any of them can change the rules.
+	 */
+	public Set<File> getFiles() {
+		return Collections.unmodifiableSet(files);
+	}
+
+	/**
+	 * @return the last line of the entry that starts with the quotation mark at the given column of
+	 *         the first line, or -1 if there is none
+	 */
+	private int entry(int open, List<Entry> entries) throws IOException {
+		int line = 0;
+		String text = line(line);
+		for (int close = text.length() - 1; close > open + 1; close--) {
+			if (text.charAt(close) != '"')
+				continue;
+			long colon = gap(line, close + 1, ':');
+			if (colon < 0) {
+				fail(line, close + 1, "expected : after the pattern");
+				continue;
+			}
+			long target = gap(lineOf(colon), columnOf(colon) + 1, '"');
+			if (target < 0) {
+				fail(lineOf(colon), columnOf(colon) + 1, "expected a quoted target after :");
+				continue;
+			}
+			String[] rest = new String[2];
+			int end = target(lineOf(target), columnOf(target), rest);
+			if (end >= 0) {
+				entries.add(new Entry(text.substring(open + 1, close), rest[0], rest[1], source, first + line + 1, open + 1));
+				return end;
+			}
+		}
+		if (failure == null)
+			fail(line, open, "the pattern has no closing quotation mark");
+		return -1;
+	}
+
+	/**
+	 * Finds the closing quotation mark of the target that comes first and is followed by either an
+	 * assertion or the end of the line.
+	 *
+	 * @return the last line of the entry, or -1 if the target cannot be closed
+	 */
+	private int target(int line, int open, String[] rest) throws IOException {
+		String text = line(line);
+		for (int close = text.indexOf('"', open + 1); close >= 0; close = text.indexOf('"', close + 1)) {
+			long bar = gap(line, close + 1, '|');
+			long assertion = bar < 0 ? -1 : gap(lineOf(bar), columnOf(bar) + 1, '"');
+			if (assertion >= 0) {
+				String assertionLine = line(lineOf(assertion));
+				int end = trailingBlanks(assertionLine);
+				if (end - 1 > columnOf(assertion) && assertionLine.charAt(end - 1) == '"') {
+					rest[0] = text.substring(open + 1, close);
+					rest[1] = assertionLine.substring(columnOf(assertion) + 1, end - 1);
+					return lineOf(assertion);
+				}
+				fail(lineOf(assertion), columnOf(assertion) + 1, "the assertion has to end with a quotation mark");
+			} else if (bar >= 0) {
+				fail(lineOf(bar), columnOf(bar) + 1, "expected a quoted assertion after |");
+			}
+			if (skipBlanks(text, close + 1) == text.length()) {
+				rest[0] = text.substring(open + 1, close);
+				rest[1] = "";
+				return line;
+			}
+			if (bar < 0)
+				fail(line, skipBlanks(text, close + 1), "unexpected text after the target");
+		}
+		fail(line, open, "the target has no closing quotation mark");
+		return -1;
+	}
+
+	/**
+	 * Skips spaces and tabs, at most one line break and again spaces and tabs.
+	 *
+	 * @return the position of the expected character after them, encoded by {@link #at}, or -1
+	 */
+	private long gap(int line, int column, char expected) throws IOException {
+		String text = line(line);
+		column = skipBlanks(text, column);
+		if (column == text.length()) {
+			text = line(++line);
+			if (text == null)
+				return -1;
+			column = skipBlanks(text, 0);
+		}
+		return column < text.length() && text.charAt(column) == expected ? at(line, column) : -1;
+	}
+
+	private static long at(int line, int column) {
+		return (long) line << 32 | column;
+	}
+
+	private static int lineOf(long at) {
+		return (int) (at >>> 32);
+	}
+
+	private static int columnOf(long at) {
+		return (int) at;
+	}
+
+	/**
+	 * Remembers the problem furthest into the entry, that is the one reported if nothing matches. Of
+	 * two at the same position the later one wins, it comes from a shorter pattern that got further.
+	 */
+	private void fail(int line, int column, String message) {
+		if (failure == null || line > failLine || (line == failLine && column >= failColumn)) {
+			failLine = line;
+			failColumn = column;
+			failure = message;
+		}
+	}
+
+	/**
+	 * @return the line with the given index relative to the start of the window, null after the
+	 *         last line
+	 */
+	private String line(int line) throws IOException {
+		while (window.size() <= line) {
+			String text = reader.readLine();
+			if (text == null)
+				return null;
+			window.add(text);
+		}
+		return window.get(line);
+	}
+
+	/**
+	 * Forgets the lines up to and including the given one, so the next line has index 0.
+	 */
+	private void drop(int line) {
+		window.subList(0, Math.min(line + 1, window.size())).clear();
+		first += line + 1;
+	}
+
+	private static int skipBlanks(String text, int from) {
+		while (from < text.length() && (text.charAt(from) == ' ' || text.charAt(from) == '\t'))
+			from++;
+		return from;
+	}
+
+	private static int trailingBlanks(String text) {
+		int end = text.length();
+		while (end > 0 && (text.charAt(end - 1) == ' ' || text.charAt(end - 1) == '\t'))
+			end--;
+		return end;
+	}
+
+	private static String position(String source, int line, int column) {
+		return (source == null ? "" : source + " ") + "line " + line + ", column " + column;
+	}
+}
@@ -1,65 +1,414 @@
 package de.minetropolis.newutil;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.bukkit.Bukkit;
 import org.bukkit.Location;
 
+/**
+ * Undo history of /cc. Every correction is an append-only journal file in the given folder, so the
+ * history survives restarts and only a small index of the journals is kept in memory. Undoing a
+ * correction streams its journal entry by entry. Journals of earlier runs are only counted when
+ * their size is asked for, usually by the replay that undoes them. The index may be used from any thread, each
+ * journal is written by a single job, which {@link Correction#flush() flushes} it at least once per
+ * tick, so a crash loses none of the changes already made to the world.
+ */
 public class Corrections {
+	static final String SUFFIX = ".ccj";
+	private static final int MAGIC = 0x43434A31; // "CCJ1"
+	private static final int WORLD = 0;
+	private static final int ENTRY = 1;
+	private static final int MAX_STRING = 1 << 20;
 
-	private ArrayList<Correction> corrections = new ArrayList<>();
-	private final int MAX_UNDO = 20;
+	private final File folder;
+	private final Deque<Correction> corrections = new ArrayDeque<>();
+	private final List<String> errors = new ArrayList<>();
+	private int maxCorrections = 20;
+	private long maxBytes = 0;
+	private long nextId = 1;
 
-	public Correction makeNew() {
-		corrections.add(new Correction());
-		if(corrections.size() > MAX_UNDO)
-			corrections.remove(0);
-		return getLast();
+	/**
+	 * Loads the index of all journals already in the folder without reading them.
+	 */
+	public Corrections(File folder) {
+		this.folder = folder;
+		folder.mkdirs();
+		File[] files = folder.listFiles(file -> file.isFile() && file.getName().endsWith(SUFFIX));
+		if (files == null)
+			return;
+		List<Correction> found = new ArrayList<>();
+		for (File file : files) {
+			try {
+				long id = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+				found.add(new Correction(id, file, -1));
+			} catch (NumberFormatException e) {
+				errors.add("Undo journal " + file.getName() + " is unreadable and was ignored: " + e);
+			}
+		}
+		found.sort((a, b) -> Long.compare(a.id, b.id));
+		for (Correction correction : found) {
+			corrections.add(correction);
+			nextId = correction.id + 1;
+		}
 	}
-	
-	public Correction getLast() {
-		if(corrections.isEmpty())
-			return null;
-		return corrections.get(corrections.size() - 1);
+
+	/**
+	 * @return why journals in the folder were ignored when the index was loaded
+	 */
+	public List<String> getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @param maxCorrections
+	 *            number of corrections to keep
+	 * @param maxBytes
+	 *            combined journal size to keep, 0 for no limit. The most recent correction is kept
+	 *            regardless.
+	 */
+	public synchronized void setRetention(int maxCorrections, long maxBytes) {
+		this.maxCorrections = Math.max(1, maxCorrections);
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	public synchronized Correction makeNew() throws IOException {
+		return new Correction(nextId++, null, 0).open();
+	}
+
+	public synchronized void finish(Correction correction) {
+		correction.close();
+		corrections.add(correction);
+		trim();
 	}
-	
-	public void undone() {
-		if (getLast() != null)
-			corrections.remove(getLast());
+
+	public synchronized Correction getLast() {
+		return corrections.peekLast();
+	}
+
+	public synchronized void undone() {
+		Correction last = corrections.pollLast();
+		if (last != null)
+			last.delete();
+	}
+
+	public synchronized int size() {
+		return corrections.size();
+	}
+
+	public synchronized long getBytes() {
+		return corrections.stream().mapToLong(correction -> correction.file.length()).sum();
+	}
+
+	private void trim() {
+		while (corrections.size() > maxCorrections || (maxBytes > 0 && corrections.size() > 1 && getBytes() > maxBytes))
+			corrections.pollFirst().delete();
 	}
 
 	public class Correction {
-		private Map<CommandData,String> corrections = new HashMap<>();
-		
+		private final long id;
+		private final File file;
+		private final Map<String, Integer> worlds = new HashMap<>();
+		private DataOutputStream out;
+		private IOException error;
+		private volatile int size;
+
+		private Correction(long id, File file, int size) {
+			this.id = id;
+			this.file = file == null ? new File(folder, id + SUFFIX) : file;
+			this.size = size;
+		}
+
+		private Correction open() throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			out.writeInt(MAGIC);
+			return this;
+		}
+
 		public void add(Location loc, String data, String before, String after) {
-			corrections.put(new CommandData(loc, before, data), after);
+			add(loc.getWorld().getName(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(), data, before, after);
+		}
+
+		public void add(String world, int x, int y, int z, String data, String before, String after) {
+			if (out == null || error != null)
+				return;
+			try {
+				Integer index = worlds.get(world);
+				if (index == null) {
+					index = worlds.size();
+					worlds.put(world, index);
+					out.writeByte(WORLD);
+					writeString(out, world);
+				}
+				out.writeByte(ENTRY);
+				writeVarInt(out, index);
+				writeVarInt(out, zigzag(x));
+				writeVarInt(out, zigzag(y));
+				writeVarInt(out, zigzag(z));
+				writeString(out, data);
+				writeString(out, before);
+				writeString(out, after);
+				size++;
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+
+		/**
+		 * Writes the buffered entries to the journal file. Entries added after the last flush are lost
+		 * if the server crashes.
+		 */
+		public void flush() {
+			if (out == null || error != null)
+				return;
+			try {
+				out.flush();
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+
+		/**
+		 * @return whether writing the journal failed, in which case only the entries before the
+		 *         failure can be undone
+		 */
+		public boolean hasFailed() {
+			return error != null;
+		}
+
+		/**
+		 * @return why writing the journal failed, or null
+		 */
+		public IOException getError() {
+			return error;
+		}
+
+		/**
+		 * @return the number of changed command blocks. For a journal of an earlier run that was not
+		 *         replayed to its end yet, this reads the journal and counts the entries that are
+		 *         readable.
+		 */
+		public int size() {
+			if (size < 0) {
+				try (Replay replay = replay()) {
+					try {
+						while (replay.next() != null)
+							;
+					} catch (IOException e) {
+						return replay.entries;
+					}
+				} catch (IOException e) {
+					return 0;
+				}
+			}
+			return size;
+		}
+
+		/**
+		 * Reads the journal from the start. The caller has to close the replay.
+		 */
+		public Replay replay() throws IOException {
+			if (out != null)
+				out.flush();
+			return new Replay(file, this);
+		}
+
+		private void close() {
+			if (out == null)
+				return;
+			try {
+				out.close();
+			} catch (IOException e) {
+				if (error == null)
+					error = e;
+			}
+			out = null;
 		}
-		
-		public Map<CommandData,String> getCorrections() {
-			return corrections;
+
+		private void delete() {
+			close();
+			file.delete();
 		}
 	}
-	public class CommandData {
-		private final String command,data;
-		private final Location location;
-		
-		private CommandData(Location loc, String command, String data) {
-			location = loc;
+
+	/**
+	 * Sequential reader over the entries of one journal. A truncated last entry, as left by a
+	 * crash, ends the replay.
+	 */
+	public static class Replay implements Closeable {
+		private final DataInputStream in;
+		private final List<String> worlds = new ArrayList<>();
+		private final Correction correction;
+		private int entries = 0;
+
+		private Replay(File file, Correction correction) throws IOException {
+			this.correction = correction;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC)
+					throw new IOException("not an undo journal");
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return the next entry, or null at the end of the journal
+		 */
+		public CommandData next() throws IOException {
+			try {
+				while (true) {
+					int type = in.read();
+					if (type < 0)
+						return end();
+					if (type == WORLD) {
+						worlds.add(readString(in));
+						continue;
+					}
+					if (type != ENTRY)
+						throw new IOException("corrupt undo journal");
+					int world = readVarInt(in);
+					if (world < 0 || world >= worlds.size())
+						throw new IOException("corrupt undo journal");
+					int x = unzigzag(readVarInt(in));
+					int y = unzigzag(readVarInt(in));
+					int z = unzigzag(readVarInt(in));
+					String data = readString(in);
+					String before = readString(in);
+					CommandData entry = new CommandData(worlds.get(world), x, y, z, before, data, readString(in));
+					entries++;
+					return entry;
+				}
+			} catch (EOFException e) {
+				return end();
+			}
+		}
+
+		/**
+		 * The journal has been read completely, so now its size is known.
+		 */
+		private CommandData end() {
+			if (correction.size < 0)
+				correction.size = entries;
+			return null;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	public static class CommandData {
+		private final String command, data, corrected, world;
+		private final int x, y, z;
+
+		private CommandData(String world, int x, int y, int z, String command, String data, String corrected) {
+			this.world = world;
+			this.x = x;
+			this.y = y;
+			this.z = z;
 			this.command = command;
 			this.data = data;
+			this.corrected = corrected;
 		}
 
+		/**
+		 * @return the command before the correction
+		 */
 		public String getCommand() {
 			return command;
 		}
 
+		/**
+		 * @return the command after the correction
+		 */
+		public String getCorrected() {
+			return corrected;
+		}
+
 		public String getData() {
 			return data;
 		}
 
+		public String getWorld() {
+			return world;
+		}
+
+		public int[] getPosition() {
+			return new int[] { x, y, z };
+		}
+
+		/**
+		 * @return the location, or null if the world is not loaded
+		 */
 		public Location getLocation() {
-			return location;
+			return Bukkit.getWorld(world) == null ? null : new Location(Bukkit.getWorld(world), x, y, z);
+		}
+
+		@Override
+		public String toString() {
+			return world + Arrays.toString(getPosition()) + ": " + command + " -> " + corrected;
+		}
+	}
+
+	private static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
 		}
+		throw new IOException("corrupt undo journal");
+	}
+
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		byte[] bytes = (string == null ? "" : string).getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = readVarInt(in);
+		if (length < 0 || length > MAX_STRING)
+			throw new IOException("corrupt undo journal");
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
 	}
 }
@@ -0,0 +1,194 @@
+package de.minetropolis.newutil;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Append-only list of the changes a dry run would make. Diffs are kept in memory until they take up
+ * more than the given number of bytes, then all of them are moved to a temporary file and only
+ * their offsets stay in memory. A finished report may be read and exported from any thread while
+ * it is discarded.
+ */
+public class DiffBuffer implements Closeable {
+	private final File folder;
+	private final long memoryLimit;
+	private final List<Diff> memory = new ArrayList<>();
+	private long memoryBytes = 0;
+	private File file;
+	private DataOutputStream out;
+	private RandomAccessFile in;
+	private long[] offsets;
+	private long written = 0;
+	private int size = 0;
+	private boolean closed = false;
+
+	public static class Diff {
+		public final int x, y, z;
+		public final String before, after;
+		public final List<String> notifications;
+
+		public Diff(int x, int y, int z, String before, String after, List<String> notifications) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.before = before;
+			this.after = after;
+			this.notifications = Collections.unmodifiableList(new ArrayList<>(notifications));
+		}
+
+		private long bytes() {
+			return 64 + 2L * (before.length() + after.length()) + notifications.stream().mapToLong(note -> 48 + 2L * note.length()).sum();
+		}
+	}
+
+	/**
+	 * @param folder
+	 *            where the temporary file is created once the diffs are spilled
+	 * @param memoryLimit
+	 *            approximate number of heap bytes the diffs may use before they are spilled
+	 */
+	public DiffBuffer(File folder, long memoryLimit) {
+		this.folder = folder;
+		this.memoryLimit = memoryLimit;
+	}
+
+	public synchronized void add(Diff diff) throws IOException {
+		if (file == null) {
+			memory.add(diff);
+			memoryBytes += diff.bytes();
+			size++;
+			if (memoryBytes > memoryLimit)
+				spill();
+			return;
+		}
+		write(size, diff);
+		size++;
+	}
+
+	private void spill() throws IOException {
+		folder.mkdirs();
+		file = File.createTempFile("dry-run", ".tmp", folder);
+		file.deleteOnExit();
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		offsets = new long[Math.max(16, memory.size() * 2)];
+		for (int i = 0; i < memory.size(); i++)
+			write(i, memory.get(i));
+		memory.clear();
+		memoryBytes = 0;
+	}
+
+	private void write(int index, Diff diff) throws IOException {
+		if (index == offsets.length)
+			offsets = Arrays.copyOf(offsets, index * 2);
+		offsets[index] = written;
+		out.writeInt(diff.x);
+		out.writeInt(diff.y);
+		out.writeInt(diff.z);
+		out.writeInt(diff.notifications.size());
+		written += 16 + writeString(diff.before) + writeString(diff.after);
+		for (String note : diff.notifications)
+			written += writeString(note);
+	}
+
+	private int writeString(String string) throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		return 4 + bytes.length;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return whether the diffs have been moved to disk
+	 */
+	public synchronized boolean isSpilled() {
+		return file != null;
+	}
+
+	/**
+	 * @return up to count diffs, starting at the given index
+	 */
+	public synchronized List<Diff> get(int from, int count) throws IOException {
+		if (closed)
+			throw new IOException("the report was discarded");
+		List<Diff> diffs = new ArrayList<>();
+		int to = Math.min(size, from + count);
+		if (file == null) {
+			for (int i = Math.max(0, from); i < to; i++)
+				diffs.add(memory.get(i));
+			return diffs;
+		}
+		out.flush();
+		if (in == null)
+			in = new RandomAccessFile(file, "r");
+		for (int i = Math.max(0, from); i < to; i++) {
+			in.seek(offsets[i]);
+			int x = in.readInt(), y = in.readInt(), z = in.readInt(), notes = in.readInt();
+			String before = readString(), after = readString();
+			List<String> notifications = new ArrayList<>();
+			for (; notes > 0; notes--)
+				notifications.add(readString());
+			diffs.add(new Diff(x, y, z, before, after, notifications));
+		}
+		return diffs;
+	}
+
+	private String readString() throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes all diffs as text, in the order they were added. Reads them a few at a time, so other
+	 * threads can page through the report meanwhile.
+	 */
+	public void export(File target) throws IOException {
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(target), StandardCharsets.UTF_8))) {
+			for (int i = 0, size = size(); i < size; i += 256) {
+				for (Diff diff : get(i, 256)) {
+					writer.write("@ " + diff.x + " " + diff.y + " " + diff.z + System.lineSeparator());
+					writer.write("- " + diff.before + System.lineSeparator());
+					writer.write("+ " + diff.after + System.lineSeparator());
+					for (String note : diff.notifications)
+						writer.write("! " + note + System.lineSeparator());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the temporary file, if there is one.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+		try {
+			if (out != null)
+				out.close();
+			if (in != null)
+				in.close();
+		} finally {
+			if (file != null)
+				Files.deleteIfExists(file.toPath());
+			memory.clear();
+		}
+	}
+}
@@ -1,27 +1,22 @@
 package de.minetropolis.newutil;
 
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 
 import de.minetropolis.groups.*;
 
 public class InterpretedPattern {
-	private Map<String, String> endStrings = new HashMap<String, String>() {
-		private static final long serialVersionUID = 1L;
-		{
-			put(";?(", ")");
-			put(";>(", ")<;");
-		}
-	};
+	private static final Pattern INLINE_FLAGS = Pattern.compile("\\(\\?[-idmsuxU]");
 
 	public List<Group> groups = new ArrayList<>();
 	public String pattern, target, assertion;
+	public final RuleStats stats = new RuleStats();
+	private CompiledPattern compiled;
+	private String error;
+	private volatile boolean quarantined;
 
 	public InterpretedPattern(String pattern) {
 		this.pattern = pattern;
@@ -33,54 +28,131 @@ public class InterpretedPattern {
 		this.assertion = assertion;
 	}
 
+	/**
+	 * Restores a pattern that compiled before from its final regex and groups, see {@link RuleCache}.
+	 */
+	InterpretedPattern(String pattern, String target, String assertion, List<Group> groups) {
+		this(pattern, target, assertion);
+		this.groups = groups;
+		compiled = new CompiledPattern(pattern, target, assertion, groups);
+	}
+
 	public InterpretedPattern fill(String target, String assertion) {
 		this.target = target;
 		this.assertion = assertion;
+		if (compiled != null)
+			compiled = new CompiledPattern(pattern, target == null ? "" : target, assertion == null ? "" : assertion, groups);
 		return this;
 	}
 
+	/**
+	 * @return this, or null if the pattern does not compile. {@link #getError()} then tells why.
+	 */
 	public InterpretedPattern compile() {
 		try {
 			generateGroups();
 		} catch (UnbalancedBracketException e) {
-			e.printStackTrace();
+			error = "unbalanced brackets in \"" + pattern + "\"";
 			return null;
 		} catch (MalformedAutoconvert e) {
-			e.printStackTrace();
+			error = "malformed ;>( group in \"" + pattern + "\"";
 			return null;
 		}
 
 		buildPattern();
+		try {
+			compiled = new CompiledPattern(pattern, target == null ? "" : target, assertion == null ? "" : assertion, groups);
+		} catch (PatternSyntaxException e) {
+			error = e.getDescription() + (e.getIndex() >= 0 ? " near index " + e.getIndex() : "") + " in \"" + e.getPattern() + "\"";
+			return null;
+		}
 		return this;
 	}
 
+	/**
+	 * @return why the last {@link #compile()} failed, or null if it did not
+	 */
+	public String getError() {
+		return error;
+	}
+
+	public CompiledPattern getCompiled() {
+		return compiled;
+	}
+
+	/**
+	 * @return whether the rule ran out of its match budget on a command. It then leaves every command
+	 *         unchanged until the rules are reloaded.
+	 */
+	public boolean isQuarantined() {
+		return quarantined;
+	}
+
+	/**
+	 * @return how often the rule ran out of its match budget. Commands that were already being
+	 *         matched in parallel can time out after the first one quarantined it.
+	 */
+	public long getTimeouts() {
+		return stats.timeouts.sum();
+	}
+
+	void timedOut() {
+		stats.timeouts.increment();
+		quarantined = true;
+	}
+
+	/**
+	 * @return the literal texts every match of this pattern has to contain. Empty if there are none,
+	 *         or if an inline flag such as (?i) could change how the literals match.
+	 */
+	public List<String> getRequiredLiterals() {
+		if (groups.stream().anyMatch(group -> group.getType() != GroupType.ESCAPED && INLINE_FLAGS.matcher(group.getContent()).find()))
+			return new ArrayList<>();
+		return groups.stream().filter(group -> group.getType() == GroupType.ESCAPED).map(group -> Statics.unescape(group.getContent()))
+			.filter(literal -> !literal.isEmpty()).collect(Collectors.toList());
+	}
+
+	/**
+	 * Splits the pattern into groups in one pass. An odd number of backslashes in front of ;?( or
+	 * ;>( escapes it, and half of them are removed, so \;?( is a backslash followed by a group. A
+	 * backslash at the very start of the pattern is never removed.
+	 */
 	private void generateGroups() throws UnbalancedBracketException, MalformedAutoconvert {
-		int i = 0;
+		String source = pattern;
+		StringBuilder interpreted = new StringBuilder(source.length());
+		AutoconvertFinder autoconverts = source.contains(";>(") ? new AutoconvertFinder(source) : null;
 		int start = 0;
-		while (i < pattern.length()) {
-			int special = (pattern.indexOf(";?(", i) == -1) ? Integer.MAX_VALUE : pattern.indexOf(";?(", i);
-			int autoconvert = (pattern.indexOf(";>(", i) == -1) ? Integer.MAX_VALUE : pattern.indexOf(";>(", i);
-			if (Math.min(special, autoconvert) == Integer.MAX_VALUE) {
-				if (start < pattern.length())
-					groups.add(new Escaped(pattern.substring(start, pattern.length())));
-				return;
+		int i = 0;
+		while (i < source.length()) {
+			if (!source.startsWith(";?(", i) && !source.startsWith(";>(", i)) {
+				interpreted.append(source.charAt(i++));
+				continue;
 			}
-			i = Math.min(special, autoconvert);
-			if (Statics.isEscaped(pattern, i)) {
-				i -= removeSlashes(i) - 1;
+			int slashes = 0;
+			while (slashes < interpreted.length() && interpreted.charAt(interpreted.length() - 1 - slashes) == '\\')
+				slashes++;
+			interpreted.setLength(interpreted.length() - (Math.min(slashes, interpreted.length() - 1) + 1) / 2);
+			if (slashes % 2 == 1) {
+				interpreted.append(';');
+				i++;
 				continue;
 			}
-			i -= removeSlashes(i);
-
-			if (start != i)
-				groups.add(new Escaped(pattern.substring(start, i)));
 
-			if (pattern.charAt(i + 1) == '>')
-				i = processAutoconvert(i, endStrings.get(pattern.substring(i, i + 3)));
-			else
-				i = processSpecial(i);
-			start = i;
+			if (start < interpreted.length())
+				groups.add(new Escaped(interpreted.substring(start)));
+			int end;
+			try {
+				end = source.charAt(i + 1) == '>' ? processAutoconvert(autoconverts, source, i) : processSpecial(source, i);
+			} catch (UnbalancedBracketException | MalformedAutoconvert e) {
+				pattern = interpreted + source.substring(i);
+				throw e;
+			}
+			interpreted.append(source, i, end);
+			start = interpreted.length();
+			i = end;
 		}
+		if (start < interpreted.length())
+			groups.add(new Escaped(interpreted.substring(start)));
 	}
 
 	private void buildPattern() {
@@ -88,94 +160,108 @@ public class InterpretedPattern {
 		pattern = groups.stream().filter(group -> group.getType() != GroupType.NORMAL).map(group -> group.getContent()).collect(Collectors.joining());
 	}
 
-	private int processSpecial(int pos) throws UnbalancedBracketException {
+	private int processSpecial(String source, int pos) throws UnbalancedBracketException {
 		int count = 1;
-		int i;
-		for (i = pos + 3; i < pattern.length() && count > 0; i++) {
-			if (pattern.charAt(i) == '(')
+		int end;
+		for (end = pos + 3; end < source.length() && count > 0; end++) {
+			if (source.charAt(end) == '(')
 				count++;
-			if (pattern.charAt(i) == ')')
+			if (source.charAt(end) == ')')
 				count--;
 		}
 		if (count > 0)
 			throw new UnbalancedBracketException();
-		if (pattern.substring(pos).startsWith(";?(?:"))
-			groups.add(new Noncapturing(pattern.substring(pos, i)));
-		else
-			groups.add(new Special(pattern.substring(pos, i)));
-		makeNormals(findBrackets(pattern.substring(pos + 3, i - 1)), pattern.substring(pos + 3, i - 1));
-		return i;
+		String content = source.substring(pos, end);
+		groups.add(content.startsWith(";?(?:") ? new Noncapturing(content) : new Special(content));
+		addNormals(source, pos + 3, end - 1);
+		return end;
+	}
+
+	private int processAutoconvert(AutoconvertFinder autoconverts, String source, int pos) throws MalformedAutoconvert, UnbalancedBracketException {
+		int[] found = autoconverts.find(pos);
+		if (found == null)
+			throw new MalformedAutoconvert();
+
+		Group autoconvert = new Autoconvert(source.substring(found[0], found[1]));
+		groups.add(autoconvert);
+		String applied = autoconvert.apply();
+		addNormals(applied, 1, applied.length() - 1);
+		return found[1];
 	}
 
-	private List<List<Integer>> findBrackets(String string) throws UnbalancedBracketException {
+	/**
+	 * Adds a normal group for every capturing pair of brackets between from and to, in the order of
+	 * their opening brackets. Brackets preceded by an odd number of backslashes do not count.
+	 */
+	private void addNormals(String string, int from, int to) throws UnbalancedBracketException {
+		List<int[]> pairs = new ArrayList<>();
+		int[] open = new int[to - from];
 		int depth = 0;
-		List<List<Integer>> brackets = new ArrayList<>();
-		brackets.add(new ArrayList<>());
-		for (int i = 0; i < string.length(); i++) {
-			if (string.charAt(i) == '(' && !Statics.isEscaped(string, i)) {
-				brackets.get(depth).add(i);
-				depth++;
-				if (depth > brackets.size() - 1)
-					brackets.add(new ArrayList<>());
-			}
-			if (string.charAt(i) == ')' && !Statics.isEscaped(string, i)) {
-				depth--;
-				brackets.get(depth).add(i + 1);
+		int slashes = 0;
+		for (int i = from; i < to; i++) {
+			char c = string.charAt(i);
+			boolean escaped = slashes % 2 == 1;
+			slashes = c == '\\' ? slashes + 1 : 0;
+			if (escaped)
+				continue;
+			if (c == '(') {
+				open[depth++] = pairs.size();
+				pairs.add(new int[] { i, -1 });
+			} else if (c == ')') {
+				if (depth == 0)
+					throw new UnbalancedBracketException();
+				pairs.get(open[--depth])[1] = i + 1;
 			}
 		}
 		if (depth > 0)
 			throw new UnbalancedBracketException();
-		return brackets;
+		for (int[] pair : pairs) {
+			if (pair[0] + 3 > to || !string.startsWith("(?:", pair[0]))
+				groups.add(new Normal(string.substring(pair[0], pair[1])));
+		}
 	}
 
-	private void makeNormals(List<List<Integer>> brackets, String string) {
-		for (List<Integer> bracket : brackets) {
-			for (int i = 0; i < bracket.size(); i += 2) {
-				if (string.substring(bracket.get(i), bracket.get(i) + 3).equals("(?:")) {
-					bracket.remove(i);
-					bracket.remove(i);
-					i -= 2;
-				}
+	/**
+	 * Finds ;>(a|b)|(c|d)<; groups in linear time the way the regular expression
+	 * {@code ;>(?:\((?:.+?\|)+?.+?\)\|)*?\((?:.+?\|)+?.+?\)<;} did: the first ;>( at or after a
+	 * position that is followed, on the same line, by a | after at least one character and then by
+	 * )<; after at least one more character. The group ends at the first such )<;.
+	 */
+	private static class AutoconvertFinder {
+		private final int length;
+		private final int[] nextStart, nextBar, nextEnd, nextLineBreak;
+
+		private AutoconvertFinder(String string) {
+			length = string.length();
+			nextStart = new int[length + 1];
+			nextBar = new int[length + 1];
+			nextEnd = new int[length + 1];
+			nextLineBreak = new int[length + 1];
+			nextStart[length] = nextBar[length] = nextEnd[length] = nextLineBreak[length] = length;
+			for (int i = length - 1; i >= 0; i--) {
+				char c = string.charAt(i);
+				nextStart[i] = string.startsWith(";>(", i) ? i : nextStart[i + 1];
+				nextBar[i] = c == '|' ? i : nextBar[i + 1];
+				nextEnd[i] = string.startsWith(")<;", i) ? i : nextEnd[i + 1];
+				nextLineBreak[i] = c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029' ? i : nextLineBreak[i + 1];
 			}
 		}
-		for (int i = 0; i < brackets.size(); i++) {
-			while (brackets.get(i).size() > 2) {
-				brackets.add(new ArrayList<>());
-				int last = brackets.size() - 1;
-				brackets.get(last).add(brackets.get(i).get(2));
-				brackets.get(last).add(brackets.get(i).get(3));
-				brackets.get(i).remove(2);
-				brackets.get(i).remove(2);
+
+		/**
+		 * @return start and end of the first autoconvert group at or after from, or null
+		 */
+		private int[] find(int from) {
+			for (int start = nextStart[from]; start < length; start = nextStart[start + 1]) {
+				int bar = nextBar[Math.min(start + 4, length)];
+				if (bar == length || nextLineBreak[start + 3] < bar)
+					continue;
+				int end = nextEnd[Math.min(bar + 2, length)];
+				if (end == length || nextLineBreak[bar + 1] < end)
+					continue;
+				return new int[] { start, end + 3 };
 			}
+			return null;
 		}
-		brackets = brackets.stream().filter(bracket -> !bracket.isEmpty()).collect(Collectors.toList());
-		brackets.sort(new Comparator<List<Integer>>() {
-			@Override
-			public int compare(List<Integer> o1, List<Integer> o2) {
-				return o1.get(0).compareTo(o2.get(0));
-			}
-		});
-		brackets.forEach(bracket -> groups.add(new Normal(string.substring(bracket.get(0), bracket.get(1)))));
-	}
-
-	private int processAutoconvert(int pos, String endString) throws MalformedAutoconvert, UnbalancedBracketException {
-		Matcher matcher = Pattern.compile(";>(?:\\((?:.+?\\|)+?.+?\\)\\|)*?\\((?:.+?\\|)+?.+?\\)<;").matcher(pattern.substring(pos));
-		if (!matcher.find())
-			throw new MalformedAutoconvert();
-
-		Group autoconvert = new Autoconvert(matcher.group());
-		groups.add(autoconvert);
-		String innerString = autoconvert.apply().substring(1, autoconvert.apply().length() - 1);
-		makeNormals(findBrackets(innerString), innerString);
-
-		return pos + matcher.end();
-	}
-
-	private int removeSlashes(int pos) {
-		String removed = Statics.removeSlashes(pattern, pos);
-		int i = pattern.length() - removed.length();
-		pattern = removed;
-		return i;
 	}
 
 }
@@ -0,0 +1,92 @@
+package de.minetropolis.newutil;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Durations in nanoseconds, counted in buckets the way an HdrHistogram does: every power of two is
+ * split into 8 buckets of equal width, so a percentile is off by at most 12.5% while the whole
+ * range of a long fits into 488 buckets. Recording is lock-free and can happen on any thread, the
+ * buckets are LongAdders so that the workers of a job do not contend on the common ones.
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BITS = 3, SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++)
+			buckets[i] = new LongAdder();
+	}
+
+	public void record(long nanos) {
+		nanos = Math.max(0, nanos);
+		buckets[bucket(nanos)].increment();
+		total.add(nanos);
+		long known = max.get();
+		while (nanos > known && !max.compareAndSet(known, nanos))
+			known = max.get();
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int) (value >>> (exponent - SUB_BITS) & SUB_BUCKETS - 1);
+	}
+
+	/**
+	 * @return the largest value that falls into the bucket
+	 */
+	static long highest(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << shift) - 1;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			count += buckets[i].sum();
+		return count;
+	}
+
+	public long getTotal() {
+		return total.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param quantile
+	 *            between 0 and 1, such as 0.99
+	 * @return a value at least as large as that share of the recorded values, or 0 if there are none
+	 */
+	public long getPercentile(double quantile) {
+		long[] counts = new long[BUCKETS];
+		long recorded = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			recorded += counts[i] = buckets[i].sum();
+		long rank = Math.max(1, (long) Math.ceil(quantile * recorded));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(highest(i), getMax());
+		}
+		return 0;
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			buckets[i].reset();
+		total.reset();
+		max.set(0);
+	}
+}
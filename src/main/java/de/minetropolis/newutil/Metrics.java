@@ -0,0 +1,183 @@
+package de.minetropolis.newutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Latency histograms of the stages a correction goes through, shared by the plugin and the dedicated
+ * corrector, next to the {@link RuleStats} of every rule. The dedicated corrector reads lines where
+ * the plugin reads chunks, and counts every line as a block.
+ */
+public final class Metrics {
+	public static final LatencyHistogram RULES = new LatencyHistogram();
+	public static final LatencyHistogram TEMPLATES = new LatencyHistogram();
+	public static final LatencyHistogram NOTIFICATIONS = new LatencyHistogram();
+	public static final LatencyHistogram READS = new LatencyHistogram();
+	public static final LatencyHistogram WRITES = new LatencyHistogram();
+	public static final LongAdder BLOCKS_READ = new LongAdder();
+	public static final LongAdder BLOCKS_WRITTEN = new LongAdder();
+
+	private static final Map<String, LatencyHistogram> STAGES = new LinkedHashMap<>();
+	private static volatile boolean enabled = true;
+
+	static {
+		STAGES.put("rule", RULES);
+		STAGES.put("template", TEMPLATES);
+		STAGES.put("notification", NOTIFICATIONS);
+		STAGES.put("read", READS);
+		STAGES.put("write", WRITES);
+	}
+
+	private Metrics() {
+	}
+
+	/**
+	 * Counts are always kept, durations only while enabled.
+	 */
+	public static void setEnabled(boolean enabled) {
+		Metrics.enabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the time to pass to {@link #stop}, or 0 if durations are not measured
+	 */
+	public static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * @return the nanoseconds since start, which have been recorded in the histogram, or 0 if
+	 *         durations are not measured
+	 */
+	public static long stop(LatencyHistogram histogram, long start) {
+		if (start == 0)
+			return 0;
+		long nanos = System.nanoTime() - start;
+		histogram.record(nanos);
+		return nanos;
+	}
+
+	public static void reset(List<InterpretedPattern> rules) {
+		STAGES.values().forEach(LatencyHistogram::reset);
+		BLOCKS_READ.reset();
+		BLOCKS_WRITTEN.reset();
+		rules.forEach(rule -> rule.stats.reset());
+	}
+
+	/**
+	 * @param top
+	 *            how many of the rules that took the most time to list
+	 * @return lines for a player or the console
+	 */
+	public static List<String> report(List<InterpretedPattern> rules, int top) {
+		List<String> lines = new ArrayList<>();
+		STAGES.forEach((name, histogram) -> lines.add(String.format(Locale.ROOT, "%s: %d, %.1f ms, p50 %s, p99 %s, max %s", name, histogram.getCount(),
+			histogram.getTotal() / 1e6, duration(histogram.getPercentile(0.5)), duration(histogram.getPercentile(0.99)), duration(histogram.getMax()))));
+		lines.add("blocks read: " + BLOCKS_READ.sum() + ", written: " + BLOCKS_WRITTEN.sum());
+		List<InterpretedPattern> costly = rules.stream().filter(rule -> rule.stats.evaluations.sum() > 0)
+			.sorted(Comparator.comparingLong((InterpretedPattern rule) -> rule.stats.nanos.sum()).reversed()).limit(top).collect(Collectors.toList());
+		if (!costly.isEmpty())
+			lines.add("Rules that took the most time:");
+		for (InterpretedPattern rule : costly) {
+			RuleStats stats = rule.stats;
+			lines.add(String.format(Locale.ROOT, "#%d %.1f ms, %d evaluations, %d matches, %d timeouts%s: %s", rules.indexOf(rule) + 1, stats.nanos.sum() / 1e6,
+				stats.evaluations.sum(), stats.matches.sum(), stats.timeouts.sum(), rule.isQuarantined() ? ", quarantined" : "", rule.pattern));
+		}
+		return lines;
+	}
+
+	private static String duration(long nanos) {
+		if (nanos < 1000)
+			return nanos + " ns";
+		if (nanos < 1000000)
+			return String.format(Locale.ROOT, "%.1f us", nanos / 1e3);
+		return String.format(Locale.ROOT, "%.1f ms", nanos / 1e6);
+	}
+
+	/**
+	 * Writes metrics.csv and metrics.json into the folder, replacing the last dump. Both hold a row
+	 * per stage and per rule, durations are in nanoseconds. Dumps run one at a time, as the periodic
+	 * dump and /ccstats dump write the same files.
+	 */
+	public static synchronized void dump(File folder, List<InterpretedPattern> rules) throws IOException {
+		folder.mkdirs();
+		StringBuilder csv = new StringBuilder("kind,name,count,total_ns,p50_ns,p90_ns,p99_ns,max_ns,matches,timeouts,quarantined\n");
+		StringBuilder json = new StringBuilder("{\n  \"time\": ").append(System.currentTimeMillis()).append(",\n  \"blocksRead\": ").append(BLOCKS_READ.sum())
+			.append(",\n  \"blocksWritten\": ").append(BLOCKS_WRITTEN.sum()).append(",\n  \"stages\": [");
+		String separator = "\n    ";
+		for (Map.Entry<String, LatencyHistogram> stage : STAGES.entrySet()) {
+			LatencyHistogram histogram = stage.getValue();
+			long[] values = { histogram.getCount(), histogram.getTotal(), histogram.getPercentile(0.5), histogram.getPercentile(0.9), histogram.getPercentile(0.99),
+				histogram.getMax() };
+			csv.append("stage,").append(stage.getKey());
+			for (long value : values)
+				csv.append(',').append(value);
+			csv.append(",,,\n");
+			json.append(separator).append(String.format(Locale.ROOT, "{\"name\": \"%s\", \"count\": %d, \"totalNs\": %d, \"p50Ns\": %d, \"p90Ns\": %d, \"p99Ns\": %d, \"maxNs\": %d}",
+				stage.getKey(), values[0], values[1], values[2], values[3], values[4], values[5]));
+			separator = ",\n    ";
+		}
+		json.append("\n  ],\n  \"rules\": [");
+		separator = "\n    ";
+		for (InterpretedPattern rule : rules) {
+			RuleStats stats = rule.stats;
+			csv.append("rule,").append(csvField(rule.pattern)).append(',').append(stats.evaluations.sum()).append(',').append(stats.nanos.sum()).append(",,,,,")
+				.append(stats.matches.sum()).append(',').append(stats.timeouts.sum()).append(',').append(rule.isQuarantined()).append('\n');
+			json.append(separator).append(String.format(Locale.ROOT, "{\"pattern\": %s, \"evaluations\": %d, \"totalNs\": %d, \"matches\": %d, \"timeouts\": %d, \"quarantined\": %b}",
+				jsonString(rule.pattern), stats.evaluations.sum(), stats.nanos.sum(), stats.matches.sum(), stats.timeouts.sum(), rule.isQuarantined()));
+			separator = ",\n    ";
+		}
+		json.append("\n  ]\n}\n");
+		write(new File(folder, "metrics.csv"), csv);
+		write(new File(folder, "metrics.json"), json);
+	}
+
+	private static String csvField(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+			return value;
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+	static String jsonString(String value) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20 || c == '\u2028' || c == '\u2029')
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+	private static void write(File file, CharSequence content) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+			writer.append(content);
+		}
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
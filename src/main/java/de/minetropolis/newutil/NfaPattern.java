@@ -0,0 +1,966 @@
+package de.minetropolis.newutil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A regular expression compiled to an NFA, so a match takes time linear in the length of the
+ * command no matter how the pattern nests. Short commands are matched by backtracking like
+ * java.util.regex, but every state is tried at most once per position, as it fails the second time
+ * just as it did the first. Longer ones, for which remembering that would take too much memory, are
+ * matched by following all states at once (a Pike VM). Both try the states in the order
+ * java.util.regex would, which makes the matches and groups the same as those of
+ * {@link java.util.regex.Pattern}.
+ * <p>
+ * Only part of the syntax is accepted: literals, ., classes without unions or
+ * intersections, \d \w \s and their negations, ^ and $, capturing and (?: groups, alternation and
+ * greedy or lazy quantifiers. {@link #compile} returns null for everything else, such as
+ * backreferences, lookarounds, \b, inline flags and possessive quantifiers. Repeated groups that
+ * can match the empty string or capture are left to java.util.regex as well: it has its own rules
+ * for ending such loops, and keeps what a group captured in an iteration it backtracked out of.
+ */
+public final class NfaPattern {
+	private static final int CHAR = 0, SPLIT = 1, JUMP = 2, SAVE = 3, BEGIN = 4, END = 5, MATCH = 6;
+	private static final int MAX_PROGRAM = 2000;
+	private static final int MAX_STARTS = 8;
+	/**
+	 * states times positions up to which the backtracker is used
+	 */
+	private static final int MAX_VISITED = 256 * 1024;
+
+	private final int[] ops, args, alternatives;
+	private final CharClass[] classes;
+	/**
+	 * the classes of the first char of every match, or null if a match can be empty or starts with
+	 * too many different ones
+	 */
+	private final CharClass[] starts;
+	private final int groupCount;
+
+	private NfaPattern(Builder builder, int groupCount) {
+		ops = Arrays.copyOf(builder.ops, builder.size);
+		args = Arrays.copyOf(builder.args, builder.size);
+		alternatives = Arrays.copyOf(builder.alternatives, builder.size);
+		classes = builder.classes.toArray(new CharClass[0]);
+		this.groupCount = groupCount;
+		List<CharClass> starts = new ArrayList<>();
+		this.starts = collectStarts(0, new boolean[ops.length], starts) && starts.size() <= MAX_STARTS ? starts.toArray(new CharClass[0]) : null;
+	}
+
+	/**
+	 * Adds the classes of the chars that the states reachable from pc without reading one wait for.
+	 *
+	 * @return false if a match can be reached without reading a char
+	 */
+	private boolean collectStarts(int pc, boolean[] seen, List<CharClass> starts) {
+		if (seen[pc])
+			return true;
+		seen[pc] = true;
+		switch (ops[pc]) {
+		case CHAR:
+			starts.add(classes[args[pc]]);
+			return true;
+		case MATCH:
+			return false;
+		case JUMP:
+			return collectStarts(args[pc], seen, starts);
+		case SPLIT:
+			return collectStarts(args[pc], seen, starts) && collectStarts(alternatives[pc], seen, starts);
+		default:
+			return collectStarts(pc + 1, seen, starts);
+		}
+	}
+
+	/**
+	 * @param regex
+	 *            a pattern that java.util.regex compiles without flags
+	 * @return the automaton, or null if the pattern uses something it does not support
+	 */
+	public static NfaPattern compile(String regex) {
+		for (int i = 0; i < regex.length(); i++) {
+			if (Character.isSurrogate(regex.charAt(i)))
+				return null;
+		}
+		try {
+			Parser parser = new Parser(regex);
+			Node node = parser.parse();
+			Builder builder = new Builder();
+			builder.add(SAVE, 0, 0);
+			node.emit(builder);
+			builder.add(SAVE, 1, 0);
+			builder.add(MATCH, 0, 0);
+			return new NfaPattern(builder, parser.groupCount);
+		} catch (Unsupported e) {
+			return null;
+		}
+	}
+
+	/**
+	 * java.util.regex matches code points and this automaton chars, so commands with surrogate pairs
+	 * have to be matched by java.util.regex.
+	 */
+	public static boolean hasSurrogates(CharSequence input) {
+		for (int i = 0; i < input.length(); i++) {
+			if (Character.isSurrogate(input.charAt(i)))
+				return true;
+		}
+		return false;
+	}
+
+	public int groupCount() {
+		return groupCount;
+	}
+
+	public RuleMatcher matcher(CharSequence input) {
+		return new NfaMatcher(input);
+	}
+
+	/**
+	 * @return every string a match can consist of, or null if there are more than limit of them, one
+	 *         of them is longer than limit chars or holds a surrogate, or the pattern is anchored
+	 */
+	public Set<String> language(int limit) {
+		Set<String> strings = new LinkedHashSet<>();
+		return enumerate(0, new StringBuilder(), strings, limit, new int[] { limit * limit * 16 }) ? strings : null;
+	}
+
+	private boolean enumerate(int pc, StringBuilder prefix, Set<String> strings, int limit, int[] steps) {
+		if (--steps[0] < 0 || prefix.length() > limit)
+			return false;
+		switch (ops[pc]) {
+		case CHAR:
+			char[] chars = classes[args[pc]].chars(limit);
+			if (chars == null)
+				return false;
+			for (char c : chars) {
+				prefix.append(c);
+				boolean bounded = enumerate(pc + 1, prefix, strings, limit, steps);
+				prefix.setLength(prefix.length() - 1);
+				if (!bounded)
+					return false;
+			}
+			return true;
+		case SPLIT:
+			return enumerate(args[pc], prefix, strings, limit, steps) && enumerate(alternatives[pc], prefix, strings, limit, steps);
+		case JUMP:
+			return enumerate(args[pc], prefix, strings, limit, steps);
+		case MATCH:
+			strings.add(prefix.toString());
+			return strings.size() <= limit;
+		case BEGIN:
+		case END:
+			return false;
+		default:
+			return enumerate(pc + 1, prefix, strings, limit, steps);
+		}
+	}
+
+	private final class NfaMatcher implements RuleMatcher {
+		private final CharSequence input;
+		private ThreadList current, next;
+		private int[] scratch;
+		private long[] visited;
+		private int[] stack;
+		private int[] groups;
+		private int first = -1, last = 0;
+
+		private NfaMatcher(CharSequence input) {
+			this.input = input;
+		}
+
+		@Override
+		public boolean find() {
+			int from = last == first ? last + 1 : last;
+			groups = from > input.length() ? null : search(from);
+			if (groups == null) {
+				first = -1;
+				return false;
+			}
+			first = groups[0];
+			last = groups[1];
+			return true;
+		}
+
+		private int[] search(int from) {
+			if (starts != null && (from = skip(from)) == input.length())
+				return null;
+			if ((long) ops.length * (input.length() - from + 1) <= MAX_VISITED)
+				return backtrack(from);
+			if (current == null) {
+				current = new ThreadList();
+				next = new ThreadList();
+				scratch = new int[2 * groupCount + 2];
+			}
+			ThreadList threads = current, following = next;
+			threads.clear();
+			int[] match = null;
+			for (int i = from; i <= input.length(); i++) {
+				if (match == null) {
+					if (threads.size == 0 && starts != null && (i = skip(i)) == input.length())
+						break;
+					Arrays.fill(scratch, -1);
+					add(threads, 0, i, scratch);
+				} else if (threads.size == 0) {
+					break;
+				}
+				following.clear();
+				char c = i < input.length() ? input.charAt(i) : 0;
+				for (int t = 0; t < threads.size; t++) {
+					int pc = threads.pcs[t];
+					if (ops[pc] == MATCH) {
+						match = threads.groups[t].clone();
+						break;
+					}
+					if (i < input.length() && classes[args[pc]].matches(c))
+						add(following, pc + 1, i + 1, threads.groups[t]);
+				}
+				ThreadList swap = threads;
+				threads = following;
+				following = swap;
+			}
+			return match;
+		}
+
+		private int[] backtrack(int from) {
+			int positions = input.length() - from + 1;
+			int words = (ops.length * positions + 63) >>> 6;
+			if (visited == null || visited.length < words)
+				visited = new long[Math.max(words, 64)];
+			else
+				Arrays.fill(visited, 0, words, 0);
+			if (stack == null) {
+				stack = new int[64];
+				scratch = new int[2 * groupCount + 2];
+			}
+			// a state that failed from an earlier start fails from a later one as well, so visited
+			// is kept between them
+			for (int i = from; i <= input.length(); i++) {
+				if (starts != null && (i = skip(i)) == input.length())
+					return null;
+				Arrays.fill(scratch, -1);
+				if (backtrack(i, from))
+					return scratch.clone();
+			}
+			return null;
+		}
+
+		/**
+		 * A depth-first search from the start state at position start. The stack holds the
+		 * alternatives still to try as a state and a position, and the groups to restore when
+		 * backtracking over a SAVE as -1 - slot and the value before.
+		 */
+		private boolean backtrack(int start, int from) {
+			int positions = input.length() - from + 1;
+			int top = push(0, 0, start);
+			while (top > 0) {
+				top -= 2;
+				int pc = stack[top], position = stack[top + 1];
+				if (pc < 0) {
+					scratch[-1 - pc] = position;
+					continue;
+				}
+				while (true) {
+					int state = pc * positions + position - from;
+					if ((visited[state >>> 6] & 1L << state) != 0)
+						break;
+					visited[state >>> 6] |= 1L << state;
+					int op = ops[pc];
+					if (op == CHAR) {
+						if (position == input.length() || !classes[args[pc]].matches(input.charAt(position)))
+							break;
+						pc++;
+						position++;
+					} else if (op == JUMP) {
+						pc = args[pc];
+					} else if (op == SPLIT) {
+						top = push(top, alternatives[pc], position);
+						pc = args[pc];
+					} else if (op == SAVE) {
+						top = push(top, -1 - args[pc], scratch[args[pc]]);
+						scratch[args[pc]] = position;
+						pc++;
+					} else if (op == BEGIN) {
+						if (position != 0)
+							break;
+						pc++;
+					} else if (op == END) {
+						if (!atEnd(position))
+							break;
+						pc++;
+					} else {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		private int push(int top, int a, int b) {
+			if (top + 2 > stack.length)
+				stack = Arrays.copyOf(stack, stack.length * 2);
+			stack[top] = a;
+			stack[top + 1] = b;
+			return top + 2;
+		}
+
+		/**
+		 * @return the first position from i on where a match can start, or the length of the input
+		 */
+		private int skip(int i) {
+			for (; i < input.length(); i++) {
+				char c = input.charAt(i);
+				for (CharClass start : starts) {
+					if (start.matches(c))
+						return i;
+				}
+			}
+			return i;
+		}
+
+		/**
+		 * Follows the jumps, splits, saves and assertions from pc and adds the threads that wait for
+		 * a char or have matched. A state that is already in the list was reached by a thread java.util.regex
+		 * would try first.
+		 */
+		private void add(ThreadList list, int pc, int position, int[] groups) {
+			if (list.seen[pc] == list.stamp)
+				return;
+			list.seen[pc] = list.stamp;
+			switch (ops[pc]) {
+			case JUMP:
+				add(list, args[pc], position, groups);
+				break;
+			case SPLIT:
+				add(list, args[pc], position, groups);
+				add(list, alternatives[pc], position, groups);
+				break;
+			case SAVE:
+				int saved = groups[args[pc]];
+				groups[args[pc]] = position;
+				add(list, pc + 1, position, groups);
+				groups[args[pc]] = saved;
+				break;
+			case BEGIN:
+				if (position == 0)
+					add(list, pc + 1, position, groups);
+				break;
+			case END:
+				if (atEnd(position))
+					add(list, pc + 1, position, groups);
+				break;
+			default:
+				list.add(pc, groups);
+			}
+		}
+
+		/**
+		 * $ without MULTILINE: at the end, or before a line terminator that ends the input.
+		 */
+		private boolean atEnd(int position) {
+			int length = input.length();
+			if (position == length)
+				return true;
+			if (position == length - 2)
+				return input.charAt(position) == '\r' && input.charAt(position + 1) == '\n';
+			if (position != length - 1)
+				return false;
+			char c = input.charAt(position);
+			if (c == '\n')
+				return position == 0 || input.charAt(position - 1) != '\r';
+			return c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+		}
+
+		@Override
+		public int start() {
+			return matched()[0];
+		}
+
+		@Override
+		public int end() {
+			return matched()[1];
+		}
+
+		@Override
+		public String group() {
+			return group(0);
+		}
+
+		@Override
+		public String group(int group) {
+			int[] matched = matched();
+			if (group < 0 || group > groupCount)
+				throw new IndexOutOfBoundsException("No group " + group);
+			return matched[2 * group] < 0 ? null : input.subSequence(matched[2 * group], matched[2 * group + 1]).toString();
+		}
+
+		@Override
+		public int groupCount() {
+			return groupCount;
+		}
+
+		private int[] matched() {
+			if (groups == null)
+				throw new IllegalStateException("No match found");
+			return groups;
+		}
+	}
+
+	/**
+	 * The threads of one position in priority order, at most one per state.
+	 */
+	private final class ThreadList {
+		private final int[] pcs = new int[ops.length];
+		private final int[][] groups = new int[ops.length][];
+		private final int[] seen = new int[ops.length];
+		private int size;
+		private int stamp;
+
+		private void clear() {
+			size = 0;
+			stamp++;
+		}
+
+		private void add(int pc, int[] groups) {
+			if (this.groups[size] == null)
+				this.groups[size] = groups.clone();
+			else
+				System.arraycopy(groups, 0, this.groups[size], 0, groups.length);
+			pcs[size++] = pc;
+		}
+	}
+
+	/**
+	 * Chars below 128 are looked up in a table, all others in a list of ranges.
+	 */
+	private static final class CharClass {
+		private final boolean[] ascii = new boolean[128];
+		private final List<char[]> ranges = new ArrayList<>();
+		private boolean negated;
+
+		private CharClass add(char from, char to) {
+			for (int c = from; c <= Math.min(to, 127); c++)
+				ascii[c] = true;
+			if (to > 127)
+				ranges.add(new char[] { (char) Math.max(from, 128), to });
+			return this;
+		}
+
+		private CharClass add(CharClass other) {
+			for (int c = 0; c < 128; c++)
+				ascii[c] |= other.ascii[c];
+			ranges.addAll(other.ranges);
+			return this;
+		}
+
+		/**
+		 * The complement of a class of chars below 128, such as \d.
+		 */
+		private CharClass complement() {
+			CharClass complement = new CharClass().add((char) 128, Character.MAX_VALUE);
+			for (int c = 0; c < 128; c++)
+				complement.ascii[c] = !ascii[c];
+			return complement;
+		}
+
+		private CharClass negate() {
+			negated = !negated;
+			return this;
+		}
+
+		private boolean matches(char c) {
+			if (c < 128)
+				return ascii[c] ^ negated;
+			for (char[] range : ranges) {
+				if (c >= range[0] && c <= range[1])
+					return !negated;
+			}
+			return negated;
+		}
+
+		/**
+		 * @return the chars of the class, or null if there are more than limit of them or one is a
+		 *         surrogate
+		 */
+		private char[] chars(int limit) {
+			if (negated)
+				return null;
+			StringBuilder chars = new StringBuilder();
+			for (int c = 0; c < 128; c++) {
+				if (ascii[c])
+					chars.append((char) c);
+			}
+			for (char[] range : ranges) {
+				for (int c = range[0]; c <= range[1] && chars.length() <= limit; c++) {
+					if (Character.isSurrogate((char) c))
+						return null;
+					chars.append((char) c);
+				}
+			}
+			return chars.length() > limit ? null : chars.toString().toCharArray();
+		}
+
+		private static CharClass of(char c) {
+			return new CharClass().add(c, c);
+		}
+
+		private static CharClass dot() {
+			return new CharClass().add('\n', '\n').add('\r', '\r').add('\u0085', '\u0085').add('\u2028', '\u2029').negate();
+		}
+	}
+
+	private static final class Builder {
+		private int[] ops = new int[16], args = new int[16], alternatives = new int[16];
+		private final List<CharClass> classes = new ArrayList<>();
+		private int size;
+
+		private int add(int op, int arg, int alternative) throws Unsupported {
+			if (size == MAX_PROGRAM)
+				throw new Unsupported();
+			if (size == ops.length) {
+				ops = Arrays.copyOf(ops, size * 2);
+				args = Arrays.copyOf(args, size * 2);
+				alternatives = Arrays.copyOf(alternatives, size * 2);
+			}
+			ops[size] = op;
+			args[size] = arg;
+			alternatives[size] = alternative;
+			return size++;
+		}
+	}
+
+	private static class Unsupported extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private abstract static class Node {
+		abstract boolean nullable();
+
+		boolean captures() {
+			return false;
+		}
+
+		abstract void emit(Builder builder) throws Unsupported;
+	}
+
+	private static class Chars extends Node {
+		private final CharClass chars;
+
+		private Chars(CharClass chars) {
+			this.chars = chars;
+		}
+
+		@Override
+		boolean nullable() {
+			return false;
+		}
+
+		@Override
+		void emit(Builder builder) throws Unsupported {
+			builder.add(CHAR, builder.classes.size(), 0);
+			builder.classes.add(chars);
+		}
+	}
+
+	private static class Anchor extends Node {
+		private final int op;
+
+		private Anchor(int op) {
+			this.op = op;
+		}
+
+		@Override
+		boolean nullable() {
+			return true;
+		}
+
+		@Override
+		void emit(Builder builder) throws Unsupported {
+			builder.add(op, 0, 0);
+		}
+	}
+
+	private static class Sequence extends Node {
+		private final List<Node> nodes;
+
+		private Sequence(List<Node> nodes) {
+			this.nodes = nodes;
+		}
+
+		@Override
+		boolean nullable() {
+			return nodes.stream().allMatch(Node::nullable);
+		}
+
+		@Override
+		boolean captures() {
+			return nodes.stream().anyMatch(Node::captures);
+		}
+
+		@Override
+		void emit(Builder builder) throws Unsupported {
+			for (Node node : nodes)
+				node.emit(builder);
+		}
+	}
+
+	private static class Alternation extends Node {
+		private final List<Node> alternatives;
+
+		private Alternation(List<Node> alternatives) {
+			this.alternatives = alternatives;
+		}
+
+		@Override
+		boolean nullable() {
+			return alternatives.stream().anyMatch(Node::nullable);
+		}
+
+		@Override
+		boolean captures() {
+			return alternatives.stream().anyMatch(Node::captures);
+		}
+
+		@Override
+		void emit(Builder builder) throws Unsupported {
+			List<Integer> jumps = new ArrayList<>();
+			for (int i = 0; i < alternatives.size() - 1; i++) {
+				int split = builder.add(SPLIT, builder.size + 1, 0);
+				alternatives.get(i).emit(builder);
+				jumps.add(builder.add(JUMP, 0, 0));
+				builder.alternatives[split] = builder.size;
+			}
+			alternatives.get(alternatives.size() - 1).emit(builder);
+			for (int jump : jumps)
+				builder.args[jump] = builder.size;
+		}
+	}
+
+	private static class Capture extends Node {
+		private final Node node;
+		private final int index;
+
+		private Capture(Node node, int index) {
+			this.node = node;
+			this.index = index;
+		}
+
+		@Override
+		boolean nullable() {
+			return node.nullable();
+		}
+
+		@Override
+		boolean captures() {
+			return true;
+		}
+
+		@Override
+		void emit(Builder builder) throws Unsupported {
+			builder.add(SAVE, 2 * index, 0);
+			node.emit(builder);
+			builder.add(SAVE, 2 * index + 1, 0);
+		}
+	}
+
+	private static class Repeat extends Node {
+		private final Node node;
+		private final int min, max;
+		private final boolean greedy;
+
+		/**
+		 * @param max
+		 *            -1 for no limit
+		 */
+		private Repeat(Node node, int min, int max, boolean greedy) {
+			this.node = node;
+			this.min = min;
+			this.max = max;
+			this.greedy = greedy;
+		}
+
+		@Override
+		boolean nullable() {
+			return min == 0 || node.nullable();
+		}
+
+		@Override
+		boolean captures() {
+			return node.captures();
+		}
+
+		@Override
+		void emit(Builder builder) throws Unsupported {
+			for (int i = 0; i < min; i++)
+				node.emit(builder);
+			if (max < 0) {
+				int split = builder.add(SPLIT, 0, 0);
+				node.emit(builder);
+				builder.add(JUMP, split, 0);
+				branch(builder, split, split + 1, builder.size);
+				return;
+			}
+			List<Integer> splits = new ArrayList<>();
+			for (int i = min; i < max; i++) {
+				splits.add(builder.add(SPLIT, 0, 0));
+				node.emit(builder);
+			}
+			for (int split : splits)
+				branch(builder, split, split + 1, builder.size);
+		}
+
+		private void branch(Builder builder, int split, int repeat, int skip) {
+			builder.args[split] = greedy ? repeat : skip;
+			builder.alternatives[split] = greedy ? skip : repeat;
+		}
+	}
+
+	private static final class Parser {
+		private final String regex;
+		private int position;
+		private int groupCount;
+
+		private Parser(String regex) {
+			this.regex = regex;
+		}
+
+		private Node parse() throws Unsupported {
+			Node node = alternation();
+			if (position < regex.length())
+				throw new Unsupported();
+			return node;
+		}
+
+		private boolean more() {
+			return position < regex.length();
+		}
+
+		private char peek() {
+			return regex.charAt(position);
+		}
+
+		private Node alternation() throws Unsupported {
+			List<Node> alternatives = new ArrayList<>();
+			alternatives.add(sequence());
+			while (more() && peek() == '|') {
+				position++;
+				alternatives.add(sequence());
+			}
+			return alternatives.size() == 1 ? alternatives.get(0) : new Alternation(alternatives);
+		}
+
+		private Node sequence() throws Unsupported {
+			List<Node> nodes = new ArrayList<>();
+			while (more() && peek() != '|' && peek() != ')')
+				nodes.add(quantified(atom()));
+			return nodes.size() == 1 ? nodes.get(0) : new Sequence(nodes);
+		}
+
+		private Node quantified(Node atom) throws Unsupported {
+			if (!more())
+				return atom;
+			int min, max;
+			switch (peek()) {
+			case '*':
+				min = 0;
+				max = -1;
+				break;
+			case '+':
+				min = 1;
+				max = -1;
+				break;
+			case '?':
+				min = 0;
+				max = 1;
+				break;
+			case '{':
+				int close = regex.indexOf('}', position);
+				if (close < 0 || !regex.substring(position + 1, close).matches("\\d{1,4}(,\\d{0,4})?"))
+					throw new Unsupported();
+				String[] bounds = regex.substring(position + 1, close).split(",", -1);
+				min = Integer.parseInt(bounds[0]);
+				max = bounds.length == 1 ? min : bounds[1].isEmpty() ? -1 : Integer.parseInt(bounds[1]);
+				position = close;
+				break;
+			default:
+				return atom;
+			}
+			position++;
+			boolean greedy = true;
+			if (more() && peek() == '?') {
+				greedy = false;
+				position++;
+			} else if (more() && peek() == '+') {
+				throw new Unsupported();
+			}
+			if (atom instanceof Anchor || ((atom.nullable() || atom.captures()) && max != 1) || (max >= 0 && max < min))
+				throw new Unsupported();
+			if (more() && (peek() == '*' || peek() == '+' || peek() == '?' || peek() == '{'))
+				throw new Unsupported();
+			return new Repeat(atom, min, max, greedy);
+		}
+
+		private Node atom() throws Unsupported {
+			char c = regex.charAt(position++);
+			switch (c) {
+			case '(':
+				Node group;
+				if (more() && peek() == '?') {
+					if (!regex.startsWith("?:", position))
+						throw new Unsupported();
+					position += 2;
+					group = alternation();
+				} else {
+					int index = ++groupCount;
+					group = new Capture(alternation(), index);
+				}
+				if (!more() || peek() != ')')
+					throw new Unsupported();
+				position++;
+				return group;
+			case '[':
+				return new Chars(charClass());
+			case '.':
+				return new Chars(CharClass.dot());
+			case '^':
+				return new Anchor(BEGIN);
+			case '$':
+				return new Anchor(END);
+			case '\\':
+				CharClass predefined = predefined();
+				return new Chars(predefined != null ? predefined : CharClass.of(escaped()));
+			case '*':
+			case '+':
+			case '?':
+			case '{':
+				throw new Unsupported();
+			default:
+				return new Chars(CharClass.of(c));
+			}
+		}
+
+		/**
+		 * Reads the class after [ up to and including ]. Only plain lists of chars, ranges and \d
+		 * \w \s with their negations are read, a leading ] and a - between other items are left to
+		 * java.util.regex.
+		 */
+		private CharClass charClass() throws Unsupported {
+			CharClass chars = new CharClass();
+			boolean negated = more() && peek() == '^';
+			if (negated)
+				position++;
+			boolean firstItem = true;
+			while (true) {
+				if (!more())
+					throw new Unsupported();
+				char c = regex.charAt(position++);
+				if (c == ']' && !firstItem)
+					break;
+				if (c == '[' || c == ']' || (c == '&' && more() && peek() == '&'))
+					throw new Unsupported();
+				if (c == '-') {
+					if (!firstItem && !regex.startsWith("]", position) || regex.startsWith("-", position))
+						throw new Unsupported();
+					firstItem = false;
+					chars.add(c, c);
+					continue;
+				}
+				firstItem = false;
+				if (c == '\\') {
+					CharClass predefined = predefined();
+					if (predefined != null) {
+						if (more() && peek() == '-' && !regex.startsWith("-]", position))
+							throw new Unsupported();
+						chars.add(predefined);
+						continue;
+					}
+					c = escaped();
+				}
+				if (more() && peek() == '-' && !regex.startsWith("-]", position)) {
+					position++;
+					char to = regex.charAt(position++);
+					if (to == '[' || to == '&' || to == '-')
+						throw new Unsupported();
+					if (to == '\\') {
+						if (predefined() != null)
+							throw new Unsupported();
+						to = escaped();
+					}
+					if (to < c)
+						throw new Unsupported();
+					chars.add(c, to);
+				} else {
+					chars.add(c, c);
+				}
+			}
+			return negated ? chars.negate() : chars;
+		}
+
+		/**
+		 * Reads \d \w \s \D \W \S after the backslash.
+		 *
+		 * @return the class, or null with nothing read if the escape is something else
+		 */
+		private CharClass predefined() throws Unsupported {
+			if (!more())
+				throw new Unsupported();
+			CharClass chars;
+			switch (Character.toLowerCase(peek())) {
+			case 'd':
+				chars = new CharClass().add('0', '9');
+				break;
+			case 'w':
+				chars = new CharClass().add('a', 'z').add('A', 'Z').add('0', '9').add('_', '_');
+				break;
+			case 's':
+				chars = new CharClass().add(' ', ' ').add('\t', '\r');
+				break;
+			default:
+				return null;
+			}
+			boolean complement = Character.isUpperCase(peek());
+			position++;
+			return complement ? chars.complement() : chars;
+		}
+
+		/**
+		 * Reads an escaped char after the backslash.
+		 */
+		private char escaped() throws Unsupported {
+			if (!more())
+				throw new Unsupported();
+			char c = regex.charAt(position++);
+			switch (c) {
+			case 't':
+				return '\t';
+			case 'n':
+				return '\n';
+			case 'r':
+				return '\r';
+			case 'f':
+				return '\f';
+			case 'a':
+				return '\u0007';
+			case 'e':
+				return '\u001B';
+			case 'x':
+				return hex(2);
+			case 'u':
+				return hex(4);
+			default:
+				if (Character.isLetterOrDigit(c))
+					throw new Unsupported();
+				return c;
+			}
+		}
+
+		private char hex(int digits) throws Unsupported {
+			if (position + digits > regex.length() || !regex.substring(position, position + digits).matches("[0-9a-fA-F]+"))
+				throw new Unsupported();
+			position += digits;
+			return (char) Integer.parseInt(regex.substring(position - digits, position), 16);
+		}
+	}
+}
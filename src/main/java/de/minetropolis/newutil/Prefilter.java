@@ -0,0 +1,120 @@
+package de.minetropolis.newutil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aho-Corasick automaton over the required literals of a rule set. One linear pass over a command
+ * tells which rules can possibly match it; all other rules can be skipped without running their
+ * regex.
+ */
+public class Prefilter {
+	private final int literalCount;
+	private final int[][] required;
+	private final char[][] keys;
+	private final int[][] targets;
+	private final int[] fail;
+	private final int[][] outputs;
+
+	public Prefilter(List<InterpretedPattern> rules) {
+		Map<String, Integer> literals = new LinkedHashMap<>();
+		required = new int[rules.size()][];
+		for (int i = 0; i < rules.size(); i++) {
+			required[i] = rules.get(i).getRequiredLiterals().stream().distinct()
+				.mapToInt(literal -> literals.computeIfAbsent(literal, key -> literals.size())).toArray();
+		}
+		literalCount = literals.size();
+
+		List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+		List<List<Integer>> found = new ArrayList<>();
+		trie.add(new TreeMap<>());
+		found.add(new ArrayList<>());
+		for (Map.Entry<String, Integer> literal : literals.entrySet()) {
+			int state = 0;
+			for (char c : literal.getKey().toCharArray()) {
+				Integer next = trie.get(state).get(c);
+				if (next == null) {
+					next = trie.size();
+					trie.get(state).put(c, next);
+					trie.add(new TreeMap<>());
+					found.add(new ArrayList<>());
+				}
+				state = next;
+			}
+			found.get(state).add(literal.getValue());
+		}
+
+		int states = trie.size();
+		keys = new char[states][];
+		targets = new int[states][];
+		for (int state = 0; state < states; state++) {
+			keys[state] = new char[trie.get(state).size()];
+			targets[state] = new int[trie.get(state).size()];
+			int i = 0;
+			for (Map.Entry<Character, Integer> edge : trie.get(state).entrySet()) {
+				keys[state][i] = edge.getKey();
+				targets[state][i++] = edge.getValue();
+			}
+		}
+
+		fail = new int[states];
+		Deque<Integer> queue = new ArrayDeque<>();
+		for (int child : targets[0])
+			queue.add(child);
+		while (!queue.isEmpty()) {
+			int state = queue.poll();
+			found.get(state).addAll(found.get(fail[state]));
+			for (int i = 0; i < keys[state].length; i++) {
+				int child = targets[state][i];
+				int fallback = fail[state];
+				while (fallback != 0 && next(fallback, keys[state][i]) < 0)
+					fallback = fail[fallback];
+				int next = next(fallback, keys[state][i]);
+				fail[child] = next < 0 || next == child ? 0 : next;
+				queue.add(child);
+			}
+		}
+
+		outputs = new int[states][];
+		for (int state = 0; state < states; state++)
+			outputs[state] = found.get(state).stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	private int next(int state, char c) {
+		int i = Arrays.binarySearch(keys[state], c);
+		return i < 0 ? -1 : targets[state][i];
+	}
+
+	/**
+	 * @return the indices of all rules whose required literals all occur in the command
+	 */
+	public BitSet candidates(String command) {
+		BitSet present = new BitSet(literalCount);
+		int state = 0;
+		for (int i = 0; i < command.length(); i++) {
+			char c = command.charAt(i);
+			int next;
+			while ((next = next(state, c)) < 0 && state != 0)
+				state = fail[state];
+			state = next < 0 ? 0 : next;
+			for (int literal : outputs[state])
+				present.set(literal);
+		}
+
+		BitSet candidates = new BitSet(required.length);
+		for (int rule = 0; rule < required.length; rule++) {
+			boolean candidate = true;
+			for (int literal : required[rule])
+				candidate &= present.get(literal);
+			candidates.set(rule, candidate);
+		}
+		return candidates;
+	}
+}
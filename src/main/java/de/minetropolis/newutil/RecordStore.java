@@ -0,0 +1,98 @@
+package de.minetropolis.newutil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only, column-wise store of command block records: one packed long per position, a short
+ * index into a world table and the command as UTF-8 in one shared byte array. Indices are assigned
+ * in insertion order. Not synchronized; records may be read concurrently once writing has finished.
+ */
+public class RecordStore {
+	private final List<String> worlds = new ArrayList<>();
+	private final Map<String, Short> worldIds = new HashMap<>();
+	private long[] positions;
+	private short[] worldOf;
+	private int[] offsets;
+	private byte[] commands;
+	private int size = 0;
+
+	public RecordStore() {
+		this(16);
+	}
+
+	public RecordStore(int capacity) {
+		capacity = Math.max(1, capacity);
+		positions = new long[capacity];
+		worldOf = new short[capacity];
+		offsets = new int[capacity + 1];
+		commands = new byte[capacity * 32];
+	}
+
+	/**
+	 * @return the index of the new record
+	 */
+	public int add(String world, int x, int y, int z, String command) {
+		if (size == positions.length) {
+			int capacity = positions.length * 2;
+			positions = Arrays.copyOf(positions, capacity);
+			worldOf = Arrays.copyOf(worldOf, capacity);
+			offsets = Arrays.copyOf(offsets, capacity + 1);
+		}
+		byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+		int offset = offsets[size];
+		if (offset + bytes.length > commands.length)
+			commands = Arrays.copyOf(commands, Math.max(commands.length * 2, offset + bytes.length));
+		System.arraycopy(bytes, 0, commands, offset, bytes.length);
+
+		positions[size] = pack(x, y, z);
+		worldOf[size] = worldIds.computeIfAbsent(world, key -> {
+			worlds.add(key);
+			return (short) (worlds.size() - 1);
+		});
+		offsets[size + 1] = offset + bytes.length;
+		return size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public String getWorld(int index) {
+		return worlds.get(worldOf[check(index)]);
+	}
+
+	public int getX(int index) {
+		return (int) (positions[check(index)] >> 38);
+	}
+
+	public int getY(int index) {
+		return (int) (positions[check(index)] << 52 >> 52);
+	}
+
+	public int getZ(int index) {
+		return (int) (positions[check(index)] << 26 >> 38);
+	}
+
+	public String getCommand(int index) {
+		check(index);
+		return new String(commands, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Packs a block position the way Minecraft does: 26 bits x, 26 bits z, 12 bits y.
+	 */
+	static long pack(int x, int y, int z) {
+		return ((long) x & 0x3FFFFFF) << 38 | ((long) z & 0x3FFFFFF) << 12 | (long) y & 0xFFF;
+	}
+
+	private int check(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		return index;
+	}
+}
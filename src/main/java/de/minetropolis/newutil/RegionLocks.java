@@ -0,0 +1,72 @@
+package de.minetropolis.newutil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exclusive locks on boxes of blocks, so that two jobs never write the same command blocks at the
+ * same time. A box can only be locked if it does not overlap a box locked by another owner. Safe to
+ * use from any thread.
+ */
+public class RegionLocks {
+	private final List<Region> regions = new ArrayList<>();
+
+	private static class Region {
+		private final Object owner;
+		private final String world;
+		private final int minX, minY, minZ, maxX, maxY, maxZ;
+
+		private Region(Object owner, String world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+			this.owner = owner;
+			this.world = world;
+			this.minX = minX;
+			this.minY = minY;
+			this.minZ = minZ;
+			this.maxX = maxX;
+			this.maxY = maxY;
+			this.maxZ = maxZ;
+		}
+
+		private boolean overlaps(Region other) {
+			return world.equals(other.world) && minX <= other.maxX && other.minX <= maxX && minY <= other.maxY && other.minY <= maxY
+					&& minZ <= other.maxZ && other.minZ <= maxZ;
+		}
+
+		private boolean contains(String world, int x, int y, int z) {
+			return this.world.equals(world) && x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+		}
+	}
+
+	/**
+	 * Locks the box, whose bounds are inclusive, if no other owner holds an overlapping lock.
+	 *
+	 * @return null if the box is locked now, otherwise the owner of a lock that overlaps it
+	 */
+	public synchronized Object tryLock(Object owner, String world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		Region region = new Region(owner, world, minX, minY, minZ, maxX, maxY, maxZ);
+		for (Region locked : regions) {
+			if (locked.owner != owner && locked.overlaps(region))
+				return locked.owner;
+		}
+		regions.add(region);
+		return null;
+	}
+
+	/**
+	 * Releases all locks of the owner.
+	 */
+	public synchronized void unlock(Object owner) {
+		regions.removeIf(region -> region.owner == owner);
+	}
+
+	/**
+	 * @return the owner of the lock on the block, or null if it is not locked
+	 */
+	public synchronized Object getOwner(String world, int x, int y, int z) {
+		for (Region region : regions) {
+			if (region.contains(world, x, y, z))
+				return region.owner;
+		}
+		return null;
+	}
+}
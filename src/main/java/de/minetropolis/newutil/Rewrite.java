@@ -0,0 +1,50 @@
+package de.minetropolis.newutil;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Outcome of running a whole rule set over one command.
+ */
+public class Rewrite {
+	public final String before, after;
+	public final List<NotificationEntry> notifications;
+	public final Set<String> changes;
+	/**
+	 * the rules that ran out of their match budget on this command and were skipped
+	 */
+	public final List<String> timeouts;
+	/**
+	 * how often the rule set was applied, more than once only by {@link RuleSet#applyUntilStable}
+	 */
+	public final int passes;
+	/**
+	 * false if the command did not settle within the passes, it is left unchanged then
+	 */
+	public final boolean stable;
+	/**
+	 * whether the command turned back into an earlier form of itself, so it can never settle
+	 */
+	public final boolean cyclic;
+
+	Rewrite(String before, String after, List<NotificationEntry> notifications, Set<String> changes, List<String> timeouts) {
+		this(before, after, notifications, changes, timeouts, 1, true, false);
+	}
+
+	Rewrite(String before, String after, List<NotificationEntry> notifications, Set<String> changes, List<String> timeouts, int passes, boolean stable,
+		boolean cyclic) {
+		this.before = before;
+		this.after = after;
+		this.notifications = Collections.unmodifiableList(notifications);
+		this.changes = Collections.unmodifiableSet(changes);
+		this.timeouts = Collections.unmodifiableList(timeouts);
+		this.passes = passes;
+		this.stable = stable;
+		this.cyclic = cyclic;
+	}
+
+	public boolean isChanged() {
+		return !before.equals(after);
+	}
+}
@@ -0,0 +1,214 @@
+package de.minetropolis.newutil;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Remembers what a rule set made of commands, keyed by the {@link RuleSet#version} and
+ * {@link RuleSet#getEpoch() epoch} that produced it, so maps full of identical command blocks are
+ * rewritten once per distinct command, and a rule quarantined halfway through a job is skipped for
+ * every command after it, cached or not. Only rule sets without counters can be cached, the
+ * rewrite of all others depends on the commands before.
+ * <p>
+ * The entries are spread over segments by hash, each a least recently used list of its own, so the
+ * workers of a job rarely wait for each other. Every segment may take its share of the memory
+ * limit, as measured by the weigher. Entries of replaced rule sets and epochs are never hit again and age out.
+ *
+ * @param <V>
+ *            the rewrite of a command, usually a {@link Rewrite}
+ */
+public class RewriteCache<V> {
+	private static final int SEGMENTS = 16;
+
+	private final Segment<V>[] segments;
+	private final ToLongFunction<V> weigher;
+	private volatile long segmentLimit;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param memoryLimit
+	 *            bytes all entries may take, 0 to cache nothing
+	 * @param weigher
+	 *            roughly how many bytes an entry takes, or -1 if it must not be cached
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public RewriteCache(long memoryLimit, ToLongFunction<V> weigher) {
+		this.weigher = weigher;
+		segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment<>();
+		setMemoryLimit(memoryLimit);
+	}
+
+	public void setMemoryLimit(long memoryLimit) {
+		segmentLimit = Math.max(0, memoryLimit) / SEGMENTS;
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				segment.trim(segmentLimit, weigher);
+			}
+		}
+	}
+
+	public long getMemoryLimit() {
+		return segmentLimit * SEGMENTS;
+	}
+
+	/**
+	 * @param passes
+	 *            how the rule set is applied, for instance the passes of
+	 *            {@link RuleSet#applyUntilStable}. Rewrites with different passes are kept apart.
+	 * @param rewrite
+	 *            applies the rule set to the command if it is not cached
+	 * @throws IllegalArgumentException
+	 *             if the rule set uses counters
+	 */
+	public V get(RuleSet ruleSet, int passes, String command, Function<String, V> rewrite) {
+		if (ruleSet.usesCounters())
+			throw new IllegalArgumentException("rule sets with counters cannot be cached");
+		if (segmentLimit == 0)
+			return rewrite.apply(command);
+		Key key = new Key(ruleSet.version, ruleSet.getEpoch(), passes, command);
+		Segment<V> segment = segments[(key.hash ^ key.hash >>> 16) & (SEGMENTS - 1)];
+		V value;
+		synchronized (segment) {
+			value = segment.get(key);
+		}
+		if (value != null) {
+			hits.increment();
+			return value;
+		}
+		misses.increment();
+		value = rewrite.apply(command);
+		long size = weigher.applyAsLong(value);
+		if (size >= 0 && size <= segmentLimit) {
+			synchronized (segment) {
+				V previous = segment.put(key, value);
+				segment.bytes += size - (previous == null ? 0 : weigher.applyAsLong(previous));
+				segment.trim(segmentLimit, weigher);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * A weigher for {@link Rewrite}s. Rewrites in which a rule ran out of its match budget are not
+	 * cached: that rule is quarantined, and the message about it belongs to the first copy only.
+	 *
+	 * @return roughly how many bytes the entry takes: chars take two, every object a few dozen
+	 */
+	public static long estimate(Rewrite rewrite) {
+		if (!rewrite.timeouts.isEmpty())
+			return -1;
+		long bytes = 160 + 2L * rewrite.before.length();
+		if (rewrite.after != rewrite.before)
+			bytes += 40 + 2L * rewrite.after.length();
+		for (NotificationEntry entry : rewrite.notifications)
+			bytes += 100 + 2L * (entry.message.length() + entry.normalText.length() + entry.colorText.length());
+		return bytes + 16L * rewrite.changes.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public long getBytes() {
+		long bytes = 0;
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				bytes += segment.bytes;
+			}
+		}
+		return bytes;
+	}
+
+	public void resetStats() {
+		hits.reset();
+		misses.reset();
+	}
+
+	public void clear() {
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+				segment.bytes = 0;
+			}
+		}
+	}
+
+	/**
+	 * @return one line with the hit ratio and the memory taken
+	 */
+	public String report() {
+		long hits = getHits(), lookups = hits + getMisses();
+		if (getMemoryLimit() == 0)
+			return "Rewrite cache: off.";
+		return String.format("Rewrite cache: %.1f%% hits of %d lookups, %d commands in %d of %d KiB.", lookups == 0 ? 0.0 : 100.0 * hits / lookups, lookups, size(),
+			getBytes() / 1024, getMemoryLimit() / 1024);
+	}
+
+	private static final class Key {
+		private final long version, epoch;
+		private final int passes;
+		private final String command;
+		private final int hash;
+
+		private Key(long version, long epoch, int passes, String command) {
+			this.version = version;
+			this.epoch = epoch;
+			this.passes = passes;
+			this.command = command;
+			hash = ((Long.hashCode(version) * 31 + Long.hashCode(epoch)) * 31 + passes) * 31 + command.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return hash == other.hash && version == other.version && epoch == other.epoch && passes == other.passes && command.equals(other.command);
+		}
+	}
+
+	/**
+	 * Guarded by itself.
+	 */
+	private static final class Segment<V> extends LinkedHashMap<Key, V> {
+		private static final long serialVersionUID = 1L;
+		private long bytes;
+
+		private Segment() {
+			super(16, 0.75f, true);
+		}
+
+		private void trim(long limit, ToLongFunction<V> weigher) {
+			Iterator<V> eldest = values().iterator();
+			while (bytes > limit && eldest.hasNext()) {
+				bytes -= weigher.applyAsLong(eldest.next());
+				eldest.remove();
+			}
+		}
+	}
+}
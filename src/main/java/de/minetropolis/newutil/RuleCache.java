@@ -0,0 +1,217 @@
+package de.minetropolis.newutil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.minetropolis.groups.*;
+
+/**
+ * Keeps the compiled rules of the last loaded config on disk, so that an unchanged config is not
+ * interpreted again. The file is keyed by a hash of the parsed entries, which covers included
+ * files, and is shared by the plugin and the dedicated corrector. Only the interpreted form, that is
+ * the final regex and the groups, is stored; the regular expressions themselves are compiled on
+ * load. A cache that cannot be read is ignored and written anew. Each write goes to a temporary file
+ * of its own that replaces the cache at once, so the plugin and the dedicated corrector can write
+ * it at the same time.
+ */
+public class RuleCache {
+	private static final int MAGIC = 0x43435243;
+	/**
+	 * has to change whenever {@link InterpretedPattern#compile()} produces something else for the
+	 * same entry
+	 */
+	static final int VERSION = 2;
+
+	private final File file;
+	private final Logger logger;
+	private boolean cached;
+
+	public RuleCache(File file) {
+		this(file, Logger.getLogger(RuleCache.class.getName()));
+	}
+
+	/**
+	 * @param logger
+	 *            is told why the cache could not be read or written
+	 */
+	public RuleCache(File file, Logger logger) {
+		this.file = file;
+		this.logger = logger;
+	}
+
+	/**
+	 * Compiles the entries like Statics.processFile, or restores them from the cache if it was
+	 * written for the same entries.
+	 *
+	 * @param errors
+	 *            receives "line n, column c: problem" for every rule that does not compile
+	 */
+	public List<InterpretedPattern> compile(List<ConfigParser.Entry> entries, List<String> errors) {
+		byte[] key = hash(entries);
+		List<Object> results = read(key, entries.size());
+		cached = results != null;
+		if (results == null) {
+			results = new ArrayList<>();
+			for (ConfigParser.Entry entry : entries) {
+				InterpretedPattern pattern = new InterpretedPattern(entry.pattern, entry.target, entry.assertion);
+				results.add(pattern.compile() != null ? pattern : pattern.getError());
+			}
+			try {
+				write(key, results);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Could not write the rule cache " + file, e);
+			}
+		}
+
+		List<InterpretedPattern> rules = new ArrayList<>();
+		for (int i = 0; i < entries.size(); i++) {
+			if (results.get(i) instanceof InterpretedPattern)
+				rules.add((InterpretedPattern) results.get(i));
+			else
+				errors.add(entries.get(i).getPosition() + ": " + results.get(i));
+		}
+		return rules;
+	}
+
+	/**
+	 * @return whether the last {@link #compile} restored the rules from the cache
+	 */
+	public boolean wasCached() {
+		return cached;
+	}
+
+	private static byte[] hash(List<ConfigParser.Entry> entries) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(ByteBuffer.allocate(8).putInt(VERSION).putInt(entries.size()).array());
+			for (ConfigParser.Entry entry : entries) {
+				for (String string : new String[] { entry.pattern, entry.target, entry.assertion }) {
+					byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+					digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+					digest.update(bytes);
+				}
+			}
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return for every entry its restored pattern or the reason it did not compile, or null if the
+	 *         cache is missing, was written for other entries or cannot be read
+	 */
+	private List<Object> read(byte[] key, int count) {
+		if (!file.isFile())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			byte[] stored = new byte[in.readUnsignedByte()];
+			in.readFully(stored);
+			if (!Arrays.equals(stored, key) || in.readInt() != count)
+				return null;
+
+			List<Object> results = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				if (!in.readBoolean()) {
+					results.add(readString(in));
+					continue;
+				}
+				String pattern = readString(in), target = readString(in), assertion = readString(in);
+				List<Group> groups = new ArrayList<>();
+				for (int j = in.readInt(); j > 0; j--)
+					groups.add(group(GroupType.values()[in.readUnsignedByte()], readString(in)));
+				results.add(new InterpretedPattern(pattern, target, assertion, groups));
+			}
+			return results;
+		} catch (IOException | RuntimeException e) {
+			logger.log(Level.WARNING, "Ignoring the rule cache " + file + ": " + e);
+			return null;
+		}
+	}
+
+	private void write(byte[] key, List<Object> results) throws IOException {
+		file.getParentFile().mkdirs();
+		File temp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp").toFile();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeByte(key.length);
+			out.write(key);
+			out.writeInt(results.size());
+			for (Object result : results) {
+				out.writeBoolean(result instanceof InterpretedPattern);
+				if (!(result instanceof InterpretedPattern)) {
+					writeString(out, (String) result);
+					continue;
+				}
+				InterpretedPattern pattern = (InterpretedPattern) result;
+				writeString(out, pattern.pattern);
+				writeString(out, pattern.target == null ? "" : pattern.target);
+				writeString(out, pattern.assertion == null ? "" : pattern.assertion);
+				out.writeInt(pattern.groups.size());
+				for (Group group : pattern.groups) {
+					out.writeByte(group.getType().ordinal());
+					writeString(out, group.getContent());
+				}
+			}
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		}
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	private static Group group(GroupType type, String content) {
+		switch (type) {
+		case NORMAL:
+			return new Normal(content);
+		case ESCAPED:
+			return new Escaped(content);
+		case SPECIAL:
+			return new Special(content);
+		case NONCAPTURING:
+			return new Noncapturing(content);
+		default:
+			return new Autoconvert(content);
+		}
+	}
+
+	/**
+	 * Unlike writeUTF, allows strings longer than 64 KiB.
+	 */
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,270 @@
+package de.minetropolis.newutil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Rules next to each other in a {@link RuleSet} that are applied in a single pass over a command.
+ * Each of them matches only a few fixed strings, so the pass walks a trie of all of them and
+ * replaces every match with the output its rule gives for it, which is expanded in advance.
+ * <p>
+ * That is the same as applying the rules one after another if no match of one rule can overlap a
+ * match of another, and no output of a rule can overlap a match of a later one. Then a rewrite can
+ * neither hide a match of a later rule nor create one, so every rule matches the strings it would
+ * have matched in the original command. Rules with assertions or counters depend on more than the
+ * match and are never fused.
+ */
+public final class RuleFusion {
+	/**
+	 * the most strings a rule may match to be fused, and the longest of them
+	 */
+	static final int MAX_STRINGS = 32;
+	static final int MAX_RULES = 64;
+	/**
+	 * text the rule set rewrites between two rules, see {@link #accepts(String)}
+	 */
+	private static final String[] MARKUP = { ";!(", ";\\", "\n" };
+
+	/**
+	 * the fused rules are [from, to) of the rule set
+	 */
+	public final int from, to;
+	private final List<InterpretedPattern> rules;
+	private final char[][] keys;
+	private final int[][] targets;
+	/**
+	 * per trie state the rule that matches the string leading to it, or -1
+	 */
+	private final int[] branches;
+	private final String[] outputs;
+	private final boolean[] rewrites;
+
+	private RuleFusion(List<InterpretedPattern> rules, int from, int to, List<Map<String, String>> outputs) {
+		this.from = from;
+		this.to = to;
+		this.rules = rules.subList(from, to);
+
+		List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+		List<Integer> branches = new ArrayList<>();
+		List<String> texts = new ArrayList<>();
+		List<Boolean> rewrites = new ArrayList<>();
+		trie.add(new TreeMap<>());
+		branches.add(-1);
+		texts.add(null);
+		rewrites.add(false);
+		for (int rule = from; rule < to; rule++) {
+			for (Map.Entry<String, String> output : outputs.get(rule).entrySet()) {
+				int state = 0;
+				for (char c : output.getKey().toCharArray()) {
+					Integer next = trie.get(state).get(c);
+					if (next == null) {
+						next = trie.size();
+						trie.get(state).put(c, next);
+						trie.add(new TreeMap<>());
+						branches.add(-1);
+						texts.add(null);
+						rewrites.add(false);
+					}
+					state = next;
+				}
+				branches.set(state, rule);
+				texts.set(state, output.getValue());
+				rewrites.set(state, !output.getKey().equals(output.getValue()));
+			}
+		}
+
+		int states = trie.size();
+		keys = new char[states][];
+		targets = new int[states][];
+		this.branches = new int[states];
+		this.outputs = texts.toArray(new String[0]);
+		this.rewrites = new boolean[states];
+		for (int state = 0; state < states; state++) {
+			keys[state] = new char[trie.get(state).size()];
+			targets[state] = new int[trie.get(state).size()];
+			int i = 0;
+			for (Map.Entry<Character, Integer> edge : trie.get(state).entrySet()) {
+				keys[state][i] = edge.getKey();
+				targets[state][i++] = edge.getValue();
+			}
+			this.branches[state] = branches.get(state);
+			this.rewrites[state] = rewrites.get(state);
+		}
+	}
+
+	/**
+	 * Fuses every run of neighbouring rules that can be fused, up to {@link #MAX_RULES} at a time.
+	 *
+	 * @param reasons
+	 *            receives why a rule is not fused, for every rule that is not
+	 * @return the fusions by the index of their first rule
+	 */
+	static RuleFusion[] plan(List<InterpretedPattern> rules, String[] reasons) {
+		RuleFusion[] fusions = new RuleFusion[rules.size()];
+		List<Map<String, String>> outputs = new ArrayList<>();
+		int from = -1;
+		for (int i = 0; i < rules.size(); i++) {
+			Map<String, String> output = new LinkedHashMap<>();
+			outputs.add(output);
+			reasons[i] = analyze(rules.get(i), output);
+			if (reasons[i] != null) {
+				close(rules, from, i, outputs, fusions, reasons);
+				from = -1;
+				continue;
+			}
+			String conflict = from < 0 || i - from == MAX_RULES ? null : conflict(outputs, from, i);
+			if (from >= 0 && (conflict != null || i - from == MAX_RULES)) {
+				if (conflict != null && i - from == 1)
+					reasons[from] = "rule " + (i + 1) + " depends on it";
+				close(rules, from, i, outputs, fusions, reasons);
+				from = -1;
+				reasons[i] = conflict;
+			}
+			if (from < 0)
+				from = i;
+		}
+		close(rules, from, rules.size(), outputs, fusions, reasons);
+		return fusions;
+	}
+
+	private static void close(List<InterpretedPattern> rules, int from, int to, List<Map<String, String>> outputs, RuleFusion[] fusions, String[] reasons) {
+		if (from < 0)
+			return;
+		if (to - from > 1) {
+			fusions[from] = new RuleFusion(rules, from, to, outputs);
+			for (int i = from; i < to; i++)
+				reasons[i] = null;
+		} else if (reasons[from] == null) {
+			reasons[from] = "no rule next to it can be fused with it";
+		}
+	}
+
+	/**
+	 * @param outputs
+	 *            receives the output of the rule for each string it matches
+	 * @return why the rule cannot be fused, or null if it can
+	 */
+	private static String analyze(InterpretedPattern ip, Map<String, String> outputs) {
+		CompiledPattern compiled = ip.getCompiled();
+		if (compiled.automaton == null)
+			return "needs java.util.regex";
+		if (compiled.assertion != null)
+			return "has an assertion, which depends on the whole command";
+		if (compiled.template.usesCounters())
+			return "uses counters";
+		Set<String> language = compiled.automaton.language(MAX_STRINGS);
+		if (language == null)
+			return "matches more than " + MAX_STRINGS + " fixed strings, or is anchored";
+		for (String match : language) {
+			if (match.isEmpty())
+				return "can match the empty string";
+			RuleMatcher matcher = compiled.matcher(match);
+			if (!matcher.find() || matcher.start() != 0 || matcher.end() != match.length())
+				return "prefers a shorter match over \"" + match + "\"";
+			StringBuilder out = new StringBuilder();
+			compiled.template.expand(out, matcher, null);
+			String output = out.toString();
+			if (output.isEmpty())
+				return "can delete \"" + match + "\"";
+			if (Arrays.stream(MARKUP).anyMatch(output::contains))
+				return "writes notifications or line breaks";
+			outputs.put(match, output);
+		}
+		return null;
+	}
+
+	/**
+	 * @return how rule i depends on one of the rules [from, i), or null if it does not
+	 */
+	private static String conflict(List<Map<String, String>> outputs, int from, int i) {
+		for (int rule = from; rule < i; rule++) {
+			for (Map.Entry<String, String> earlier : outputs.get(rule).entrySet()) {
+				for (String match : outputs.get(i).keySet()) {
+					if (overlap(match, earlier.getKey()))
+						return "matches \"" + match + "\", which overlaps \"" + earlier.getKey() + "\" of rule " + (rule + 1);
+					if (overlap(match, earlier.getValue()))
+						return "matches \"" + match + "\", which overlaps \"" + earlier.getValue() + "\" written by rule " + (rule + 1);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return whether a and b can share a char when they occur in the same text
+	 */
+	static boolean overlap(String a, String b) {
+		if (a.contains(b) || b.contains(a))
+			return true;
+		for (int k = 1; k < Math.min(a.length(), b.length()); k++) {
+			if (a.regionMatches(a.length() - k, b, 0, k) || b.regionMatches(b.length() - k, a, 0, k))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return false if the command holds text the rule set rewrites between two rules, or surrogates
+	 *         that java.util.regex would match as one char. The rules have to be applied one after
+	 *         another then.
+	 */
+	public boolean accepts(String command) {
+		return !NfaPattern.hasSurrogates(command) && Arrays.stream(MARKUP).noneMatch(command::contains);
+	}
+
+	/**
+	 * Scans the command once, replacing the longest match at each position.
+	 *
+	 * @param candidates
+	 *            the rules the {@link Prefilter} let through, which count as evaluated
+	 * @param changed
+	 *            receives the indices of the rules that changed the command
+	 * @return the command as all fused rules would have left it
+	 */
+	public String apply(String command, BitSet candidates, BitSet changed) {
+		long start = Metrics.start();
+		BitSet matched = new BitSet();
+		StringBuilder out = null;
+		int last = 0;
+		int i = 0;
+		while (i < command.length()) {
+			int found = -1;
+			int end = i;
+			int state = 0;
+			for (int j = i; j < command.length() && (state = next(state, command.charAt(j))) >= 0; j++) {
+				if (branches[state] >= 0) {
+					found = state;
+					end = j + 1;
+				}
+			}
+			if (found < 0) {
+				i++;
+				continue;
+			}
+			if (out == null)
+				out = new StringBuilder(command.length() + 16);
+			out.append(command, last, i).append(outputs[found]);
+			matched.set(branches[found]);
+			if (rewrites[found])
+				changed.set(branches[found]);
+			last = i = end;
+		}
+		for (int rule = candidates.nextSetBit(from); rule >= 0 && rule < to; rule = candidates.nextSetBit(rule + 1))
+			rules.get(rule - from).stats.evaluations.increment();
+		for (int rule = matched.nextSetBit(from); rule >= 0; rule = matched.nextSetBit(rule + 1))
+			rules.get(rule - from).stats.matches.increment();
+		Metrics.stop(Metrics.RULES, start);
+		return out == null ? command : out.append(command, last, command.length()).toString();
+	}
+
+	private int next(int state, char c) {
+		int i = Arrays.binarySearch(keys[state], c);
+		return i < 0 ? -1 : targets[state][i];
+	}
+}
@@ -0,0 +1,62 @@
+package de.minetropolis.newutil;
+
+import java.util.regex.Matcher;
+
+/**
+ * The part of {@link Matcher} that applying a rule needs, so a rule can be matched by
+ * java.util.regex or by an {@link NfaPattern}.
+ */
+public interface RuleMatcher {
+
+	/**
+	 * Finds the next match, starting where the last one ended, like {@link Matcher#find()}.
+	 */
+	boolean find();
+
+	int start();
+
+	int end();
+
+	String group();
+
+	/**
+	 * @return the text the group captured in the last match, or null if it did not take part
+	 */
+	String group(int group);
+
+	int groupCount();
+
+	static RuleMatcher of(Matcher matcher) {
+		return new RuleMatcher() {
+			@Override
+			public boolean find() {
+				return matcher.find();
+			}
+
+			@Override
+			public int start() {
+				return matcher.start();
+			}
+
+			@Override
+			public int end() {
+				return matcher.end();
+			}
+
+			@Override
+			public String group() {
+				return matcher.group();
+			}
+
+			@Override
+			public String group(int group) {
+				return matcher.group(group);
+			}
+
+			@Override
+			public int groupCount() {
+				return matcher.groupCount();
+			}
+		};
+	}
+}
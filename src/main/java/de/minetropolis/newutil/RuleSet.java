@@ -0,0 +1,193 @@
+package de.minetropolis.newutil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * An ordered, immutable list of compiled rules that is applied to a command as a whole. Only
+ * quarantining a rule changes what it does, which moves it on to its next {@link #getEpoch() epoch}.
+ */
+public class RuleSet {
+	private static final AtomicLong VERSIONS = new AtomicLong();
+
+	/**
+	 * tells rule sets apart, even ones with the same rules, see {@link RewriteCache}
+	 */
+	public final long version = VERSIONS.incrementAndGet();
+	private final AtomicLong epoch = new AtomicLong();
+	private final List<InterpretedPattern> rules;
+	private final boolean counters;
+	private final Prefilter prefilter;
+	/**
+	 * the {@link RuleFusion} starting at each rule, if any
+	 */
+	private final RuleFusion[] fusions;
+	/**
+	 * why each rule is not fused, or null if it is
+	 */
+	private final String[] reasons;
+
+	public RuleSet(List<InterpretedPattern> rules) {
+		this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+		this.counters = rules.stream().anyMatch(Statics::usesCounters);
+		this.prefilter = new Prefilter(this.rules);
+		this.reasons = new String[rules.size()];
+		this.fusions = RuleFusion.plan(this.rules, reasons);
+	}
+
+	public List<InterpretedPattern> getRules() {
+		return rules;
+	}
+
+	/**
+	 * @return whether any rule increments a ";+" counter. Such rule sets have to see the commands
+	 *         one after another, in scan order.
+	 */
+	public boolean usesCounters() {
+		return counters;
+	}
+
+	/**
+	 * @return the rules that ran out of their match budget and are skipped from now on
+	 */
+	public List<InterpretedPattern> getQuarantined() {
+		return rules.stream().filter(InterpretedPattern::isQuarantined).collect(Collectors.toList());
+	}
+
+	/**
+	 * @return how often a rule of this set was quarantined while it was applied. Rewrites from an
+	 *         earlier epoch may still contain what such a rule wrote, see {@link RewriteCache}.
+	 */
+	public long getEpoch() {
+		return epoch.get();
+	}
+
+	/**
+	 * @return the fusion that applies the rules from the given one on, or null if that rule is not
+	 *         the first of a fusion
+	 */
+	public RuleFusion getFusion(int rule) {
+		return fusions[rule];
+	}
+
+	public List<RuleFusion> getFusions() {
+		return Arrays.stream(fusions).filter(Objects::nonNull).collect(Collectors.toList());
+	}
+
+	/**
+	 * @return a line for every rule, telling which rules it is fused with or why it is applied on
+	 *         its own
+	 */
+	public List<String> explainFusion() {
+		List<String> lines = new ArrayList<>();
+		RuleFusion fusion = null;
+		for (int i = 0; i < rules.size(); i++) {
+			if (fusions[i] != null)
+				fusion = fusions[i];
+			String line = "Rule " + (i + 1) + " \"" + rules.get(i).pattern + "\" ";
+			if (reasons[i] == null)
+				lines.add(line + "is fused with rules " + (fusion.from + 1) + " to " + fusion.to + ".");
+			else
+				lines.add(line + "is applied on its own, it " + reasons[i] + ".");
+		}
+		return lines;
+	}
+
+	public Map<String, Double> initCounters() {
+		return Statics.initCounters(rules);
+	}
+
+	/**
+	 * @return the indices of the rules that can match the command at all. Every other rule would
+	 *         leave it unchanged.
+	 */
+	public BitSet candidates(String command) {
+		return prefilter.candidates(command);
+	}
+
+	public Rewrite apply(String command, Map<String, Double> counters) {
+		List<NotificationEntry> notifications = new ArrayList<>();
+		Set<String> changes = new LinkedHashSet<>();
+		List<String> timeouts = new ArrayList<>();
+		StringBuilder out = new StringBuilder(command.length() + 16);
+		String changed = command;
+		BitSet candidates = candidates(command);
+		BitSet fused = new BitSet();
+		for (int i = 0; i < rules.size(); i++) {
+			RuleFusion fusion = fusions[i];
+			if (fusion != null && fusion.accepts(changed)) {
+				i = fusion.to - 1;
+				int candidate = candidates.nextSetBit(fusion.from);
+				if (candidate < 0 || candidate >= fusion.to)
+					continue;
+				fused.clear();
+				changed = fusion.apply(changed, candidates, fused);
+				fused.stream().forEach(rule -> changes.add(rules.get(rule).pattern));
+				if (!fused.isEmpty())
+					candidates = candidates(changed);
+				continue;
+			}
+			InterpretedPattern ip = rules.get(i);
+			String unchanged = changed;
+			if (candidates.get(i)) {
+				try {
+					changed = Statics.changeCommand(ip, changed, counters, out);
+				} catch (RuleTimeoutException e) {
+					timeouts.add(ip.pattern);
+					epoch.incrementAndGet();
+				}
+			}
+			if (changed.contains(";!(")) {
+				Notification notification = Statics.notify(changed);
+				notifications.addAll(notification.entries);
+				changed = notification.command;
+			}
+
+			if (!changed.equals(unchanged)) {
+				changes.add(ip.pattern);
+				candidates = candidates(changed);
+			}
+		}
+		return new Rewrite(command, changed, notifications, changes, timeouts);
+	}
+
+	/**
+	 * Applies the rule set to its own result until that stops changing, so a rule also sees what
+	 * later rules wrote. If the command turns back into an earlier form of itself, or has not
+	 * settled after maxPasses passes, it is left unchanged: the rules would keep rewriting it.
+	 * The timeouts of all passes are kept either way. A notifying rule fires again on every pass,
+	 * so only the notifications of the pass that saw the command as it is left are kept: the last
+	 * one if it settled, else the first.
+	 */
+	public Rewrite applyUntilStable(String command, Map<String, Double> counters, int maxPasses) {
+		List<NotificationEntry> notifications = null;
+		Set<String> changes = new LinkedHashSet<>();
+		List<String> timeouts = new ArrayList<>();
+		Set<String> seen = new HashSet<>();
+		seen.add(command);
+		String changed = command;
+		for (int pass = 1;; pass++) {
+			Rewrite rewrite = apply(changed, counters);
+			if (notifications == null)
+				notifications = rewrite.notifications;
+			changes.addAll(rewrite.changes);
+			timeouts.addAll(rewrite.timeouts);
+			if (!rewrite.isChanged())
+				return new Rewrite(command, changed, rewrite.notifications, changes, timeouts, pass, true, false);
+			changed = rewrite.after;
+			boolean cyclic = !seen.add(changed);
+			if (cyclic || pass == maxPasses)
+				return new Rewrite(command, command, notifications, Collections.emptySet(), timeouts, pass, false, cyclic);
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package de.minetropolis.newutil;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What applying one rule has cost so far. Kept with its {@link InterpretedPattern}, so the counts
+ * start over when the rules are reloaded.
+ */
+public class RuleStats {
+	public final LongAdder evaluations = new LongAdder();
+	/**
+	 * commands the rule matched, which its target rewrote
+	 */
+	public final LongAdder matches = new LongAdder();
+	public final LongAdder timeouts = new LongAdder();
+	/**
+	 * nanoseconds spent in the rule, only counted while {@link Metrics#isEnabled()}
+	 */
+	public final LongAdder nanos = new LongAdder();
+
+	public void reset() {
+		evaluations.reset();
+		matches.reset();
+		timeouts.reset();
+		nanos.reset();
+	}
+}
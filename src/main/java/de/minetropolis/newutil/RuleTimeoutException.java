@@ -0,0 +1,18 @@
+package de.minetropolis.newutil;
+
+/**
+ * Thrown by {@link Statics#changeCommand} when a rule ran out of its match budget on a command. The
+ * rule is quarantined by then and leaves all further commands unchanged.
+ */
+public class RuleTimeoutException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public final transient InterpretedPattern rule;
+	public final String command;
+
+	RuleTimeoutException(InterpretedPattern rule, String command, long budget) {
+		super("rule \"" + rule.pattern + "\" read more than " + budget + " chars of a command of length " + command.length() + " and was quarantined");
+		this.rule = rule;
+		this.command = command;
+	}
+}
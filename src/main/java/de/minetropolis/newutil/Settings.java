@@ -0,0 +1,45 @@
+package de.minetropolis.newutil;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+public class Settings {
+	private final Properties properties = new Properties();
+
+	public static Settings load() {
+		Settings settings = new Settings();
+		try (Reader reader = Files.newBufferedReader(Statics.getDataFile("settings.properties").toPath(), StandardCharsets.UTF_8)) {
+			settings.properties.load(reader);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return settings;
+	}
+
+	public String getString(String key, String fallback) {
+		return properties.getProperty(key, fallback).trim();
+	}
+
+	public int getInt(String key, int fallback) {
+		try {
+			return Integer.parseInt(getString(key, "" + fallback));
+		} catch (NumberFormatException e) {
+			return fallback;
+		}
+	}
+
+	public long getLong(String key, long fallback) {
+		try {
+			return Long.parseLong(getString(key, "" + fallback));
+		} catch (NumberFormatException e) {
+			return fallback;
+		}
+	}
+
+	public boolean getBoolean(String key, boolean fallback) {
+		return Boolean.parseBoolean(getString(key, "" + fallback));
+	}
+}
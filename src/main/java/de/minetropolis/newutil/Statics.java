@@ -2,14 +2,15 @@ package de.minetropolis.newutil;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
@@ -21,6 +22,9 @@ import de.minetropolis.groups.Group;
 import de.minetropolis.groups.GroupType;
 
 public class Statics {
+	private static final Pattern NOTIFICATION_PATTERN = Pattern.compile(";!\\(([\\w \\.,!\\?]*)\\)");
+	private static volatile long matchBudget = 10000000;
+	private static volatile Set<File> configFiles = Collections.emptySet();
 
 	public static Location getLocation(CommandSender sender) {
 		Location location = null;
@@ -57,42 +61,80 @@ public class Statics {
 		return processed.toArray(new String[0]);
 	}
 
-	public static List<InterpretedPattern> loadConfig() {
+	public static File getDataFolder() {
 		File jar = null;
 		try {
 			jar = new File(Statics.class.getProtectionDomain().getCodeSource().getLocation().toURI());
 		} catch (URISyntaxException e1) {
 			e1.printStackTrace();
 		}
-		File config = new File(new File(jar.getParentFile().toURI().getPath(), "CommandCorrector").toURI().getPath(), "config.yml");
+		return new File(jar.getParentFile().toURI().getPath(), "CommandCorrector");
+	}
+
+	static File getDataFile(String name) {
+		File file = new File(getDataFolder().toURI().getPath(), name);
 
-		if (!config.exists() || config.isDirectory()) {
-			config.getParentFile().mkdirs();
-			new File(config.getParent(), "Dedicated").mkdir();
+		if (!file.exists() || file.isDirectory()) {
+			file.getParentFile().mkdirs();
+			new File(file.getParent(), "Dedicated").mkdir();
 			try {
-				Files.copy(Statics.class.getResourceAsStream("/config.yml"), Paths.get(config.toURI()), StandardCopyOption.REPLACE_EXISTING);
+				Files.copy(Statics.class.getResourceAsStream("/" + name), Paths.get(file.toURI()), StandardCopyOption.REPLACE_EXISTING);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
+		return file;
+	}
+
+	/**
+	 * @param errors
+	 *            receives "line n, column c: problem" for every rule that does not compile
+	 * @param warnings
+	 *            receives the same for every malformed entry and include, see {@link ConfigParser}
+	 * @param logger
+	 *            is told why the cache could not be used, see {@link RuleCache}
+	 * @return the rules of config.yml and the files it includes that compile, from the cache in
+	 *         rules.cache if the entries did not change since they were compiled last
+	 */
+	public static List<InterpretedPattern> loadConfig(List<String> errors, List<String> warnings, Logger logger) throws IOException {
+		ConfigParser parser = new ConfigParser(warnings);
+		List<ConfigParser.Entry> entries = parser.parse(getConfigFile());
+		configFiles = parser.getFiles();
+		return new RuleCache(new File(getDataFolder(), "rules.cache"), logger).compile(entries, errors);
+	}
+
+	/**
+	 * @return config.yml and the files it included when it was loaded last, see
+	 *         {@link ConfigParser#getFiles()}
+	 */
+	public static Set<File> getConfigFiles() {
+		return configFiles;
+	}
+
+	public static File getConfigFile() {
+		return getDataFile("config.yml");
+	}
+
+	static List<InterpretedPattern> processFile(String string) {
+		return processFile(string, new ArrayList<>(), new ArrayList<>());
+	}
+
+	public static List<InterpretedPattern> processFile(String string, List<String> errors, List<String> warnings) {
 		try {
-			StringBuilder sb = new StringBuilder();
-			Files.readAllLines(config.toPath()).forEach(string -> sb.append(string).append("\n"));
-			return processFile(sb.toString());
+			return compile(new ConfigParser(warnings).parse(string), errors);
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new UncheckedIOException(e);
 		}
-
-		return Collections.emptyList();
 	}
 
-	private static List<InterpretedPattern> processFile(String string) {
+	private static List<InterpretedPattern> compile(List<ConfigParser.Entry> entries, List<String> errors) {
 		List<InterpretedPattern> list = new ArrayList<>();
-		Matcher matcher = Pattern.compile("(?<=^|\\n)[ \\t]*\"(.+)\"[ \\t]*\\n?[ \\t]*:[ \\t]*\\n?[ \\t]*\"(.*?)\"(?:[ \\t]*\\n?[ \\t]*\\|[ \\t]*\\n?[ \\t]*\"(.*)\")?[ \\t]*(?=$|\\n)").matcher(string);
-		while (matcher.find()) {
-			InterpretedPattern pattern = new InterpretedPattern(matcher.group(1), matcher.group(2), (matcher.group(3) == null ? "" : matcher.group(3))).compile();
-			if (pattern != null)
+		for (ConfigParser.Entry entry : entries) {
+			InterpretedPattern pattern = new InterpretedPattern(entry.pattern, entry.target, entry.assertion);
+			if (pattern.compile() != null)
 				list.add(pattern);
+			else
+				errors.add(entry.getPosition() + ": " + pattern.getError());
 		}
 		return list;
 	}
@@ -127,17 +169,15 @@ public class Statics {
 
 	public static Map<String, Double> initCounters(List<InterpretedPattern> patterns) {
 		Map<String, Double> counters = new HashMap<>();
-		for (InterpretedPattern ip : patterns) {
-			Matcher matcher = Pattern.compile(";\\*\\(([;\\w]+),((?:-?\\d+(?:\\.\\d+)?)|(?:-?\\d+\\/\\d+))\\)").matcher(ip.target);
-			while (matcher.find()) {
-				if (!counters.containsKey(matcher.group(1)))
-					counters.put(matcher.group(1), parseDouble(matcher.group(2)));
-				ip.target = ip.target.replace(matcher.group(), "");
-			}
-		}
+		for (InterpretedPattern ip : patterns)
+			ip.getCompiled().template.getDeclarations().forEach(counters::putIfAbsent);
 		return counters;
 	}
 
+	public static boolean usesCounters(InterpretedPattern ip) {
+		return ip.getCompiled().template.usesCounters();
+	}
+
 	public static double parseDouble(String str) {
 		String[] fraction = str.split("\\/");
 		if (fraction.length == 2)
@@ -146,68 +186,73 @@ public class Statics {
 			return Double.parseDouble(str);
 	}
 
+	/**
+	 * @param budget
+	 *            chars java.util.regex may read while applying one rule to one command, see
+	 *            {@link #changeCommand(InterpretedPattern, String, Map, StringBuilder)}
+	 */
+	public static void setMatchBudget(long budget) {
+		matchBudget = budget;
+	}
+
 	public static String changeCommand(InterpretedPattern ip, String command, Map<String, Double> counters) {
-		if (!ip.assertion.isEmpty()) {
-			if (Pattern.compile(ip.assertion).matcher(command).find())
-				return command;
-		}
+		return changeCommand(ip, command, counters, new StringBuilder());
+	}
 
-		Matcher matcher = Pattern.compile(ip.pattern).matcher(command);
-		int offset = 0;
+	/**
+	 * Quarantined rules leave the command unchanged. A rule whose regexes read more chars of the
+	 * command than the match budget allows, which only catastrophic backtracking does, is quarantined.
+	 *
+	 * @param out
+	 *            scratch buffer for the result, may be reused across calls
+	 * @throws RuleTimeoutException
+	 *             if the rule ran out of its match budget
+	 */
+	public static String changeCommand(InterpretedPattern ip, String command, Map<String, Double> counters, StringBuilder out) {
+		if (ip.isQuarantined())
+			return command;
+		CompiledPattern compiled = ip.getCompiled();
+		long budget = matchBudget;
+		BudgetedInput input = new BudgetedInput(command, budget);
+		int last = 0;
+		boolean matched = false;
+		out.setLength(0);
+		ip.stats.evaluations.increment();
+		long start = Metrics.start();
 
-		while (matcher.find()) {
-			if (ip.assertion.startsWith("L;")) {
-				if (Pattern.compile(ip.assertion.substring(2)).matcher(matcher.group()).find())
-					continue;
+		try {
+			if (compiled.assertion != null) {
+				if (compiled.assertion.matcher(input).find())
+					return command;
 			}
-			int length = command.length();
-			command = command.substring(0, matcher.start() + offset) + ip.target +
-				(matcher.end() + offset < command.length() ? command.substring(matcher.end() + offset) : "");
-
-			if (counters != null)
-				command = applyCounters(command, counters);
-			command = applyGroups(command, matcher, ip.groups);
-			command = applyDisplayGroup(command, matcher);
-			offset += command.length() - length;
-		}
 
-		return command;
-	}
-
-	private static String applyCounters(String command, Map<String, Double> counters) {
-		Matcher matcher = Pattern.compile(";\\+\\(([;\\w]+),((?:-?\\d+(?:\\.\\d+)?)|(?:-?\\d+\\/\\d+))\\)").matcher(command);
-		while (matcher.find()) {
-			if (counters.containsKey(matcher.group(1))) {
-				double value = (double) counters.get(matcher.group(1));
-				if (matcher.group(1).startsWith("D;"))
-					command = command.replace(matcher.group(), "" + value);
-				else
-					command = command.replace(matcher.group(), "" + (int) value);
-				counters.replace(matcher.group(1), counters.get(matcher.group(1)) + parseDouble(matcher.group(2)));
+			RuleMatcher matcher = compiled.matcher(input);
+			while (matcher.find()) {
+				if (compiled.localAssertion != null) {
+					if (compiled.localAssertion.matcher(input.subSequence(matcher.start(), matcher.end())).find())
+						continue;
+				}
+				out.append(command, last, matcher.start());
+				long expanding = Metrics.start();
+				compiled.template.expand(out, matcher, counters);
+				Metrics.stop(Metrics.TEMPLATES, expanding);
+				last = matcher.end();
+				matched = true;
 			}
+		} catch (BudgetedInput.Exhausted e) {
+			ip.timedOut();
+			throw new RuleTimeoutException(ip, command, budget);
+		} finally {
+			ip.stats.nanos.add(Metrics.stop(Metrics.RULES, start));
 		}
-		return command;
-	}
 
-	private static String applyGroups(String command, Matcher matcher, List<Group> groups) {
-		int i = 0;
-		for (Group group : groups.stream().filter(group -> group.getType() == GroupType.NORMAL ||
-			group.getType() == GroupType.SPECIAL ||
-			group.getType() == GroupType.AUTOCONVERT).collect(Collectors.toList())) {
-			i++;
-			if ((group.getType() == GroupType.NORMAL || group.getType() == GroupType.SPECIAL) && matcher.groupCount() >= i && matcher.group(i) != null)
-				command = command.replace(";:(" + i + ")", matcher.group(i));
-			if (group.getType() == GroupType.AUTOCONVERT) {
-				String[] conversions = group.getContent().substring(4, group.getContent().length() - 2).split("\\)\\|\\(\\?:");
-				final int index = i;
-				String match = Arrays.asList(conversions).stream().filter(conversion -> Pattern.matches(conversion, matcher.group(index))).findFirst().orElse("");
-				command = command.replace(";:(" + i + ")", unescape(replaceGroupReferences(match.split("\\|")[match.split("\\|").length - 1], matcher)));
-			}
-		}
-		return command;
+		if (!matched)
+			return command;
+		ip.stats.matches.increment();
+		return out.append(command, last, command.length()).toString();
 	}
 
-	private static String replaceGroupReferences(String command, Matcher matcher) {
+	static String replaceGroupReferences(String command, RuleMatcher matcher) {
 		for (int i = 1; i <= matcher.groupCount(); i++) {
 			if (matcher.group(i) != null)
 				command = command.replace("\\" + i, matcher.group(i));
@@ -215,28 +260,9 @@ public class Statics {
 		return command;
 	}
 
-	private static String applyDisplayGroup(String command, Matcher matcher) {
-		Pattern outputPattern = Pattern.compile(";:(\\d+)\\((.*?)\\)(?::(!?)\\((.*?)\\)):;");
-		Matcher outputGroup;
-		boolean match = false;
-		do {
-			outputGroup = outputPattern.matcher(command);
-			match = outputGroup.find();
-			if (match) {
-				int index = Integer.parseInt(outputGroup.group(1));
-				if (matcher.groupCount() >= index) {
-					command = command.replace(outputGroup.group(), "");
-					String content = (matcher.group(index) == null) ? "" : matcher.group(index);
-					if (Pattern.compile(outputGroup.group(4)).matcher(content).matches() ^ outputGroup.group(3).equals("!"))
-						command = command.substring(0, outputGroup.start()) + outputGroup.group(2) + command.substring(outputGroup.start());
-				}
-			}
-		} while (match);
-		return command;
-	}
-
 	public static Notification notify(String pattern) {
-		Matcher matcher = Pattern.compile(";!\\(([\\w \\.,!\\?]*)\\)").matcher(pattern);
+		long start = Metrics.start();
+		Matcher matcher = NOTIFICATION_PATTERN.matcher(pattern);
 		List<Integer> positions = new ArrayList<>();
 		List<String> messages = new ArrayList<>();
 		int offset = 0;
@@ -263,6 +289,7 @@ public class Statics {
 					.toString();
 			notification.add(colorText, normalText, messages.get(i));
 		}
+		Metrics.stop(Metrics.NOTIFICATIONS, start);
 		return notification;
 	}
 }
@@ -0,0 +1,203 @@
+package de.minetropolis.newutil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import de.minetropolis.groups.Group;
+import de.minetropolis.groups.GroupType;
+
+/**
+ * The target of a rule, parsed once into literal text, group references, counters and conditional
+ * display groups. Expanding it for a match writes straight into the output, so text that was
+ * substituted in is never scanned for markers again.
+ * <p>
+ * Counters are read once per match: every copy of a counter marker shows the same value, and each
+ * distinct marker steps its counter once, whether or not a conditional group around it is shown.
+ */
+public final class Template {
+	private static final Pattern MARKER = Pattern.compile(
+		"(?<conditional>;:(?<index>\\d+)\\((?<text>.*?)\\)(?::(?<negate>!?)\\((?<regex>.*?)\\)):;)"
+			+ "|(?<declaration>;\\*\\((?<declared>[;\\w]+),(?<start>(?:-?\\d+(?:\\.\\d+)?)|(?:-?\\d+\\/\\d+))\\))"
+			+ "|(?<counter>;\\+\\((?<counted>[;\\w]+),(?<step>(?:-?\\d+(?:\\.\\d+)?)|(?:-?\\d+\\/\\d+))\\))"
+			+ "|(?<group>;:\\((?<reference>\\d+)\\))");
+
+	private final List<Node> nodes;
+	private final Map<String, Double> declarations = new LinkedHashMap<>();
+	/**
+	 * the distinct counter markers in the order they first occur
+	 */
+	private final Map<String, Counter> counters = new LinkedHashMap<>();
+
+	Template(String target, CompiledPattern compiled) {
+		nodes = parse(target, compiled);
+	}
+
+	private List<Node> parse(String target, CompiledPattern compiled) {
+		List<Node> parsed = new ArrayList<>();
+		Matcher matcher = MARKER.matcher(target);
+		int last = 0;
+		while (matcher.find()) {
+			if (matcher.start() > last)
+				parsed.add(new Literal(target.substring(last, matcher.start())));
+			last = matcher.end();
+
+			if (matcher.group("conditional") != null) {
+				parsed.add(new Conditional(matcher.group(), Integer.parseInt(matcher.group("index")), parse(matcher.group("text"), compiled),
+					matcher.group("negate").equals("!"), Pattern.compile(matcher.group("regex"))));
+			} else if (matcher.group("declaration") != null) {
+				declarations.putIfAbsent(matcher.group("declared"), Statics.parseDouble(matcher.group("start")));
+			} else if (matcher.group("counter") != null) {
+				Counter counter = counters.computeIfAbsent(matcher.group(),
+					marker -> new Counter(marker, matcher.group("counted"), Statics.parseDouble(matcher.group("step"))));
+				parsed.add(counter);
+			} else {
+				int index = Integer.parseInt(matcher.group("reference"));
+				if (index >= 1 && index <= compiled.captureGroups.size())
+					parsed.add(new GroupReference(matcher.group(), index, compiled.captureGroups.get(index - 1), compiled));
+				else
+					parsed.add(new Literal(matcher.group()));
+			}
+		}
+		if (last < target.length())
+			parsed.add(new Literal(target.substring(last)));
+		return Collections.unmodifiableList(parsed);
+	}
+
+	/**
+	 * @return the ";*" counter declarations of the target with their start values, in order
+	 */
+	public Map<String, Double> getDeclarations() {
+		return Collections.unmodifiableMap(declarations);
+	}
+
+	public boolean usesCounters() {
+		return !counters.isEmpty();
+	}
+
+	/**
+	 * @param counters
+	 *            the counters of the rule set, stepped once per distinct counter marker, or null to
+	 *            leave counter markers as they are
+	 */
+	public void expand(StringBuilder out, RuleMatcher matcher, Map<String, Double> counters) {
+		Map<String, Double> values = null;
+		if (counters != null && !this.counters.isEmpty()) {
+			values = new HashMap<>();
+			for (Counter counter : this.counters.values()) {
+				Double value = counters.get(counter.name);
+				if (value != null) {
+					values.put(counter.marker, value);
+					counters.put(counter.name, value + counter.step);
+				}
+			}
+		}
+		expand(nodes, out, matcher, values);
+	}
+
+	private static void expand(List<Node> nodes, StringBuilder out, RuleMatcher matcher, Map<String, Double> values) {
+		for (Node node : nodes)
+			node.expand(out, matcher, values);
+	}
+
+	private interface Node {
+		/**
+		 * @param values
+		 *            the value of each counter marker for this match, or null
+		 */
+		void expand(StringBuilder out, RuleMatcher matcher, Map<String, Double> values);
+	}
+
+	private static class Literal implements Node {
+		private final String text;
+
+		private Literal(String text) {
+			this.text = text;
+		}
+
+		@Override
+		public void expand(StringBuilder out, RuleMatcher matcher, Map<String, Double> values) {
+			out.append(text);
+		}
+	}
+
+	private static class GroupReference implements Node {
+		private final String marker;
+		private final int index;
+		private final Group group;
+		private final CompiledPattern compiled;
+
+		private GroupReference(String marker, int index, Group group, CompiledPattern compiled) {
+			this.marker = marker;
+			this.index = index;
+			this.group = group;
+			this.compiled = compiled;
+		}
+
+		@Override
+		public void expand(StringBuilder out, RuleMatcher matcher, Map<String, Double> values) {
+			String value = matcher.groupCount() >= index ? matcher.group(index) : null;
+			if (group.getType() == GroupType.AUTOCONVERT) {
+				String match = value == null ? "" : compiled.getConversions(group).stream().filter(conversion -> conversion.matcher.matcher(value).matches())
+					.map(conversion -> conversion.replacement).findFirst().orElse("");
+				out.append(Statics.unescape(Statics.replaceGroupReferences(match, matcher)));
+			} else
+				out.append(value == null ? marker : value);
+		}
+	}
+
+	private static class Counter implements Node {
+		private final String marker;
+		private final String name;
+		private final double step;
+
+		private Counter(String marker, String name, double step) {
+			this.marker = marker;
+			this.name = name;
+			this.step = step;
+		}
+
+		@Override
+		public void expand(StringBuilder out, RuleMatcher matcher, Map<String, Double> values) {
+			Double value = values == null ? null : values.get(marker);
+			if (value == null)
+				out.append(marker);
+			else if (name.startsWith("D;"))
+				out.append((double) value);
+			else
+				out.append((int) (double) value);
+		}
+	}
+
+	private static class Conditional implements Node {
+		private final String marker;
+		private final int index;
+		private final List<Node> text;
+		private final boolean negate;
+		private final Pattern regex;
+
+		private Conditional(String marker, int index, List<Node> text, boolean negate, Pattern regex) {
+			this.marker = marker;
+			this.index = index;
+			this.text = text;
+			this.negate = negate;
+			this.regex = regex;
+		}
+
+		@Override
+		public void expand(StringBuilder out, RuleMatcher matcher, Map<String, Double> values) {
+			if (matcher.groupCount() < index) {
+				out.append(marker);
+				return;
+			}
+			String content = matcher.group(index) == null ? "" : matcher.group(index);
+			if (regex.matcher(content).matches() ^ negate)
+				Template.expand(text, out, matcher, values);
+		}
+	}
+}
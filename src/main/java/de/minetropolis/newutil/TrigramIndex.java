@@ -0,0 +1,114 @@
+package de.minetropolis.newutil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.LongStream;
+
+/**
+ * Inverted index from every three-character sequence to the commands containing it. A query for
+ * some literals only has to look at the commands that contain all of their trigrams. Removed
+ * commands leave gaps in the posting lists until more than half of them are gone, then the index
+ * is rebuilt.
+ */
+class TrigramIndex {
+	private final List<BlockIndex.Entry> documents = new ArrayList<>();
+	private final Map<BlockIndex.Entry, Integer> ids = new HashMap<>();
+	private final Map<Long, Postings> postings = new HashMap<>();
+	private int removed = 0;
+
+	void add(BlockIndex.Entry entry) {
+		int id = documents.size();
+		documents.add(entry);
+		ids.put(entry, id);
+		for (long trigram : trigrams(entry.command))
+			postings.computeIfAbsent(trigram, key -> new Postings()).add(id);
+	}
+
+	void remove(BlockIndex.Entry entry) {
+		Integer id = ids.remove(entry);
+		if (id == null)
+			return;
+		documents.set(id, null);
+		if (++removed > 1024 && removed > documents.size() / 2)
+			compact();
+	}
+
+	private void compact() {
+		List<BlockIndex.Entry> live = new ArrayList<>(ids.size());
+		documents.stream().filter(entry -> entry != null).forEach(live::add);
+		documents.clear();
+		ids.clear();
+		postings.clear();
+		removed = 0;
+		live.forEach(this::add);
+	}
+
+	/**
+	 * @return the commands that contain every trigram of the literals, or null if the literals are
+	 *         too short to have any and every command is a candidate
+	 */
+	List<BlockIndex.Entry> candidates(Collection<String> literals) {
+		long[] trigrams = literals.stream().flatMapToLong(literal -> LongStream.of(trigrams(literal))).distinct().toArray();
+		if (trigrams.length == 0)
+			return null;
+		List<Postings> lists = new ArrayList<>();
+		for (long trigram : trigrams) {
+			Postings list = postings.get(trigram);
+			if (list == null)
+				return new ArrayList<>();
+			lists.add(list);
+		}
+		lists.sort(Comparator.comparingInt(list -> list.size));
+
+		int[] result = Arrays.copyOf(lists.get(0).ids, lists.get(0).size);
+		int size = result.length;
+		for (int i = 1; i < lists.size() && size > 0; i++)
+			size = intersect(result, size, lists.get(i));
+
+		List<BlockIndex.Entry> candidates = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			if (documents.get(result[i]) != null)
+				candidates.add(documents.get(result[i]));
+		}
+		return candidates;
+	}
+
+	/**
+	 * Keeps the ids in result[0..size) that are also in the postings, both are sorted.
+	 */
+	private static int intersect(int[] result, int size, Postings other) {
+		int kept = 0, j = 0;
+		for (int i = 0; i < size && j < other.size; i++) {
+			while (j < other.size && other.ids[j] < result[i])
+				j++;
+			if (j < other.size && other.ids[j] == result[i])
+				result[kept++] = result[i];
+		}
+		return kept;
+	}
+
+	static long[] trigrams(String text) {
+		if (text.length() < 3)
+			return new long[0];
+		long[] trigrams = new long[text.length() - 2];
+		for (int i = 0; i < trigrams.length; i++)
+			trigrams[i] = (long) text.charAt(i) << 32 | (long) text.charAt(i + 1) << 16 | text.charAt(i + 2);
+		return LongStream.of(trigrams).sorted().distinct().toArray();
+	}
+
+	private static class Postings {
+		private int[] ids = new int[4];
+		private int size = 0;
+
+		private void add(int id) {
+			if (size == ids.length)
+				ids = Arrays.copyOf(ids, size * 2);
+			ids[size++] = id;
+		}
+	}
+}
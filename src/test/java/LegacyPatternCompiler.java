@@ -0,0 +1,184 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import de.minetropolis.groups.*;
+import de.minetropolis.newutil.Statics;
+
+/**
+ * The group generation of InterpretedPattern as it was before it became a single pass, kept to
+ * compare the two in {@link UnitTest#testPatternCompilerDifferential()}.
+ */
+class LegacyPatternCompiler {
+	List<Group> groups = new ArrayList<>();
+	String pattern;
+
+	LegacyPatternCompiler(String pattern) {
+		this.pattern = pattern;
+	}
+
+	/**
+	 * @return the same error InterpretedPattern reports for brackets and autoconverts, or null if
+	 *         the groups were generated
+	 */
+	String compile() {
+		try {
+			generateGroups();
+		} catch (UnbalancedBrackets e) {
+			return "unbalanced brackets in \"" + pattern + "\"";
+		} catch (MalformedAutoconvert e) {
+			return "malformed ;>( group in \"" + pattern + "\"";
+		}
+		groups.forEach(group -> group.setContent(group.getType() == GroupType.AUTOCONVERT ? applyAutoconvert(group.getContent()) : group.apply()));
+		pattern = groups.stream().filter(group -> group.getType() != GroupType.NORMAL).map(group -> group.getContent()).collect(Collectors.joining());
+		return null;
+	}
+
+	static String applyAutoconvert(String content) {
+		String applied = "(" + content.substring(2, content.length() - 2) + ")";
+		int count = 0;
+		for (int i = 0; i < applied.length(); i++) {
+			if (applied.charAt(i) == '(') {
+				if (count == 1) {
+					applied = applied.substring(0, i + 1) + "?:" + applied.substring(i + 1);
+					i += 2;
+				}
+				count++;
+			}
+			if (applied.charAt(i) == ')')
+				count--;
+		}
+		return applied;
+	}
+
+	private void generateGroups() throws UnbalancedBrackets, MalformedAutoconvert {
+		int i = 0;
+		int start = 0;
+		while (i < pattern.length()) {
+			int special = (pattern.indexOf(";?(", i) == -1) ? Integer.MAX_VALUE : pattern.indexOf(";?(", i);
+			int autoconvert = (pattern.indexOf(";>(", i) == -1) ? Integer.MAX_VALUE : pattern.indexOf(";>(", i);
+			if (Math.min(special, autoconvert) == Integer.MAX_VALUE) {
+				if (start < pattern.length())
+					groups.add(new Escaped(pattern.substring(start, pattern.length())));
+				return;
+			}
+			i = Math.min(special, autoconvert);
+			if (Statics.isEscaped(pattern, i)) {
+				i -= removeSlashes(i) - 1;
+				continue;
+			}
+			i -= removeSlashes(i);
+
+			if (start != i)
+				groups.add(new Escaped(pattern.substring(start, i)));
+
+			if (pattern.charAt(i + 1) == '>')
+				i = processAutoconvert(i);
+			else
+				i = processSpecial(i);
+			start = i;
+		}
+	}
+
+	private int processSpecial(int pos) throws UnbalancedBrackets {
+		int count = 1;
+		int i;
+		for (i = pos + 3; i < pattern.length() && count > 0; i++) {
+			if (pattern.charAt(i) == '(')
+				count++;
+			if (pattern.charAt(i) == ')')
+				count--;
+		}
+		if (count > 0)
+			throw new UnbalancedBrackets();
+		if (pattern.substring(pos).startsWith(";?(?:"))
+			groups.add(new Noncapturing(pattern.substring(pos, i)));
+		else
+			groups.add(new Special(pattern.substring(pos, i)));
+		makeNormals(findBrackets(pattern.substring(pos + 3, i - 1)), pattern.substring(pos + 3, i - 1));
+		return i;
+	}
+
+	private List<List<Integer>> findBrackets(String string) throws UnbalancedBrackets {
+		int depth = 0;
+		List<List<Integer>> brackets = new ArrayList<>();
+		brackets.add(new ArrayList<>());
+		for (int i = 0; i < string.length(); i++) {
+			if (string.charAt(i) == '(' && !Statics.isEscaped(string, i)) {
+				brackets.get(depth).add(i);
+				depth++;
+				if (depth > brackets.size() - 1)
+					brackets.add(new ArrayList<>());
+			}
+			if (string.charAt(i) == ')' && !Statics.isEscaped(string, i)) {
+				depth--;
+				brackets.get(depth).add(i + 1);
+			}
+		}
+		if (depth > 0)
+			throw new UnbalancedBrackets();
+		return brackets;
+	}
+
+	private void makeNormals(List<List<Integer>> brackets, String string) {
+		for (List<Integer> bracket : brackets) {
+			for (int i = 0; i < bracket.size(); i += 2) {
+				if (string.substring(bracket.get(i), bracket.get(i) + 3).equals("(?:")) {
+					bracket.remove(i);
+					bracket.remove(i);
+					i -= 2;
+				}
+			}
+		}
+		for (int i = 0; i < brackets.size(); i++) {
+			while (brackets.get(i).size() > 2) {
+				brackets.add(new ArrayList<>());
+				int last = brackets.size() - 1;
+				brackets.get(last).add(brackets.get(i).get(2));
+				brackets.get(last).add(brackets.get(i).get(3));
+				brackets.get(i).remove(2);
+				brackets.get(i).remove(2);
+			}
+		}
+		brackets = brackets.stream().filter(bracket -> !bracket.isEmpty()).collect(Collectors.toList());
+		brackets.sort(new Comparator<List<Integer>>() {
+			@Override
+			public int compare(List<Integer> o1, List<Integer> o2) {
+				return o1.get(0).compareTo(o2.get(0));
+			}
+		});
+		brackets.forEach(bracket -> groups.add(new Normal(string.substring(bracket.get(0), bracket.get(1)))));
+	}
+
+	private int processAutoconvert(int pos) throws MalformedAutoconvert, UnbalancedBrackets {
+		Matcher matcher = Pattern.compile(";>(?:\\((?:.+?\\|)+?.+?\\)\\|)*?\\((?:.+?\\|)+?.+?\\)<;").matcher(pattern.substring(pos));
+		if (!matcher.find())
+			throw new MalformedAutoconvert();
+
+		Group autoconvert = new Autoconvert(matcher.group());
+		groups.add(autoconvert);
+		String applied = applyAutoconvert(autoconvert.getContent());
+		String innerString = applied.substring(1, applied.length() - 1);
+		makeNormals(findBrackets(innerString), innerString);
+
+		return pos + matcher.end();
+	}
+
+	private int removeSlashes(int pos) {
+		String removed = Statics.removeSlashes(pattern, pos);
+		int i = pattern.length() - removed.length();
+		pattern = removed;
+		return i;
+	}
+
+	private static class MalformedAutoconvert extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static class UnbalancedBrackets extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+}
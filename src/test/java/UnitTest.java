@@ -1,10 +1,42 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
 import org.hamcrest.CoreMatchers;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ErrorCollector;
 
 import de.minetropolis.groups.*;
+import de.minetropolis.newutil.BlockIndex;
+import de.minetropolis.newutil.CommandSearch;
+import de.minetropolis.newutil.ConfigParser;
+import de.minetropolis.newutil.Corrections;
+import de.minetropolis.newutil.DiffBuffer;
 import de.minetropolis.newutil.InterpretedPattern;
+import de.minetropolis.newutil.LatencyHistogram;
+import de.minetropolis.newutil.Metrics;
+import de.minetropolis.newutil.NfaPattern;
+import de.minetropolis.newutil.RecordStore;
+import de.minetropolis.newutil.RegionLocks;
+import de.minetropolis.newutil.Rewrite;
+import de.minetropolis.newutil.RewriteCache;
+import de.minetropolis.newutil.RuleCache;
+import de.minetropolis.newutil.RuleMatcher;
+import de.minetropolis.newutil.RuleSet;
+import de.minetropolis.newutil.RuleTimeoutException;
 import de.minetropolis.newutil.Statics;
 import junit.framework.Assert;
 
@@ -80,6 +112,86 @@ public class UnitTest extends Assert {
 			equals(expected1[i],ip.groups.get(i-1).getContent());
 	}
 	
+	@Test
+	public void testPatternCompilerDifferential() {
+		String[] tokens = { ";?(", ";?(?:", ";>(", ")<;", ")|(", "(", ")", "(?:", "|", "\\", "\\", ";", "?", ">", "<", ":", "a", "b", "\n" };
+		Random random = new Random(19);
+		for (int n = 0; n < 20000; n++) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = random.nextInt(16); i > 0; i--)
+				sb.append(tokens[random.nextInt(tokens.length)]);
+			String source = sb.toString();
+			LegacyPatternCompiler legacy = new LegacyPatternCompiler(source);
+			String legacyError;
+			try {
+				legacyError = legacy.compile();
+			} catch (RuntimeException e) {
+				// the old compiler crashed on some unbalanced and empty brackets
+				continue;
+			}
+			InterpretedPattern ip = new InterpretedPattern(source, "", "");
+			ip.compile();
+			String error = ip.getError() != null && (ip.getError().startsWith("unbalanced") || ip.getError().startsWith("malformed")) ? ip.getError() : null;
+			equals(source + " " + legacyError, source + " " + error);
+			if (legacyError == null && error == null) {
+				equals(source + " " + legacy.pattern, source + " " + ip.pattern);
+				equals(source + " " + legacy.groups.stream().map(group -> group.getType() + group.toString()).collect(Collectors.toList()),
+					source + " " + ip.groups.stream().map(group -> group.getType() + group.toString()).collect(Collectors.toList()));
+			}
+		}
+		
+		InterpretedPattern empty = new InterpretedPattern("a;>(a|)|(|)<;", "", "");
+		equals("null conversion without a replacement in \"((?:a|)|(?:|))\"", empty.compile() + " " + empty.getError());
+	}
+	
+	@Test
+	public void testNfaPattern() {
+		String[] atoms = { "a", "b", ".", "\\w", "\\d", "\\s", "\\W", "[ab]", "[^a]", "[a-c]", "[\\[,]", "\\.", " ", "=", "^", "$", "\\n", "[^\\S]" };
+		String[] quantifiers = { "", "", "", "*", "+", "?", "*?", "+?", "??", "{2}", "{1,3}", "{0,2}?", "{2,}" };
+		String chars = "ab =,[].\n1\r\u00e9";
+		Random random = new Random(20);
+		for (int n = 0; n < 5000; n++) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 1 + random.nextInt(4); i > 0; i--) {
+				String atom = atoms[random.nextInt(atoms.length)];
+				if (random.nextInt(4) == 0)
+					atom = (random.nextBoolean() ? "(" : "(?:") + atom + atoms[random.nextInt(atoms.length)] + (random.nextBoolean() ? "|" + atom : "") + ")";
+				sb.append(atom).append(quantifiers[random.nextInt(quantifiers.length)]);
+			}
+			Pattern pattern;
+			try {
+				pattern = Pattern.compile(sb.toString());
+			} catch (PatternSyntaxException e) {
+				continue;
+			}
+			NfaPattern nfa = NfaPattern.compile(sb.toString());
+			if (nfa == null)
+				continue;
+			for (int t = 0; t < 4; t++) {
+				StringBuilder input = new StringBuilder();
+				for (int i = random.nextInt(10); i > 0; i--)
+					input.append(chars.charAt(random.nextInt(chars.length())));
+				equals(sb + " " + matches(RuleMatcher.of(pattern.matcher(input))), sb + " " + matches(nfa.matcher(input)));
+			}
+		}
+		
+		equals("true", "" + (NfaPattern.compile("@(\\w)\\[(.*)score_(\\w+)_min=(-?\\d+)(.*)\\]") != null));
+		equals("null", "" + NfaPattern.compile("@(\\w)\\[(.*)score_(\\w+)=(-?\\d+)(.*)score_(?:\\3)\\]"));
+		equals("null", "" + NfaPattern.compile("(?<=a)b"));
+		equals("null", "" + NfaPattern.compile("(a)+"));
+	}
+	
+	private static List<String> matches(RuleMatcher matcher) {
+		List<String> matches = new ArrayList<>();
+		while (matcher.find()) {
+			StringBuilder sb = new StringBuilder().append(matcher.start()).append('-').append(matcher.end());
+			for (int group = 1; group <= matcher.groupCount(); group++)
+				sb.append(',').append(matcher.group(group));
+			matches.add(sb.toString());
+		}
+		return matches;
+	}
+	
 	@Test
 	public void testStatics() {
 		InterpretedPattern ip = new InterpretedPattern(";?([\\[,]{1});?(?: *);>(g|gamemode)<;;?(?: *)=;?(?: *);>(0|s|survival)|(1|c|creative)|(2|a|adventure)|(3|sp|spectator)<;;?(?: *);?([\\],]{1})"
@@ -93,6 +205,407 @@ public class UnitTest extends Assert {
 		equals("\\Test\\",Statics.changeCommand(new InterpretedPattern(";>(Test|\\\\Test\\\\)<;",";:(1)", "").compile(), "Test",null));
 	}
 	
+	@Test
+	public void testMatchBudget() {
+		InterpretedPattern evil = new InterpretedPattern("a;?(.*);?(.*);?(.*);?(\\1)y", "b", "").compile();
+		InterpretedPattern good = new InterpretedPattern("a", "c", "").compile();
+		String command = "a" + String.join("", Collections.nCopies(200, "x"));
+		equals("b", Statics.changeCommand(evil, "axxy", null));
+		equals("true", "" + (evil.getCompiled().automaton == null));
+		try {
+			Statics.changeCommand(evil, command, null);
+			fail("the rule did not run out of its budget");
+		} catch (RuleTimeoutException e) {
+			equals(evil.pattern, e.rule.pattern);
+		}
+		equals("true", "" + evil.isQuarantined());
+		equals("1", "" + evil.getTimeouts());
+		equals(command, Statics.changeCommand(evil, command, null));
+		
+		InterpretedPattern other = new InterpretedPattern("a;?(.*);?(.*);?(.*);?(\\1)y", "b", "").compile();
+		Rewrite rewrite = new RuleSet(Arrays.asList(other, good)).apply(command + " y", null);
+		equals("c" + command.substring(1) + " y", rewrite.after);
+		equals("[" + other.pattern + "]", rewrite.timeouts.toString());
+	}
+	
+	@Test
+	public void testTemplate() {
+		InterpretedPattern ip = new InterpretedPattern("say ;?(\\w+)", "say ;*(n,1);+(n,1) ;:(1)", "").compile();
+		Map<String, Double> counters = Statics.initCounters(Arrays.asList(ip));
+		equals("say 1 a", Statics.changeCommand(ip, "say a", counters));
+		equals("say 2 b", Statics.changeCommand(ip, "say b", counters));
+		equals("say ;*(n,1);+(n,1) ;:(1)", ip.target);
+		
+		ip = new InterpretedPattern("a;?(\\d*)", "b;:1(-;:(1)):!():;", "").compile();
+		equals("b-5 b", Statics.changeCommand(ip, "a5 a", null));
+		
+		ip = new InterpretedPattern("x;?(.*?);?(y)", "[;:(1)|;:(2)]", "").compile();
+		equals("[;:(2)|y]", Statics.changeCommand(ip, "x;:(2)y", null));
+		
+		ip = new InterpretedPattern("id ;?(\\w)", "id ;*(n,1);+(n,2)=;+(n,2);*(m,1);:1(/;+(m,1)):(z):;", "").compile();
+		counters = Statics.initCounters(Arrays.asList(ip));
+		equals("id 1=1 id 3=3/2", Statics.changeCommand(ip, "id a id z", counters));
+		equals("5.0 3.0", counters.get("n") + " " + counters.get("m"));
+	}
+	
+	@Test
+	public void testPrefilter() {
+		RuleSet ruleSet = new RuleSet(Arrays.asList(
+			new InterpretedPattern("testfor ;?(.*)", "execute if entity ;:(1)", "").compile(),
+			new InterpretedPattern("say ;?(.*) world", "tellraw @a ;:(1)", "").compile(),
+			new InterpretedPattern("say ;?((?i)hello)", "say bye", "").compile(),
+			new InterpretedPattern(";?(.*)", ";:(1)", "").compile()));
+		equals("{2, 3}", ruleSet.candidates("tp @p ~ ~ ~").toString());
+		equals("{0, 2, 3}", ruleSet.candidates("testfor @a").toString());
+		equals("{1, 2, 3}", ruleSet.candidates("say hello world").toString());
+		equals("execute if entity @a", ruleSet.apply("testfor @a", null).after);
+	}
+	
+	@Test
+	public void testCommandSearch() {
+		BlockIndex index = new BlockIndex();
+		index.put("world", 0, 5, 0, "tp @a[score_x_min=1] ~ ~ ~");
+		index.put("world", 1, 5, 0, "say score_x_min=2");
+		index.put("world", 2, 5, 0, "say hello");
+		index.put("world", 3, 5, 0, "say score");
+		index.put("world", 1, 5, 0, "say score_y=2");
+		equals("1", "" + index.search("world", CommandSearch.text("score_x"), 0, 0, 0, 15, 255, 15).size());
+		equals("3", "" + index.search("world", CommandSearch.text("sc"), 0, 0, 0, 15, 255, 15).size());
+		CommandSearch search = CommandSearch.pattern("score_;?(\\w)=;?(\\d)");
+		equals("say score_y=2", index.search("world", search, 0, 0, 0, 15, 255, 15).get(0).command);
+		equals("2", "" + search.count("score_a=1,score_b=2"));
+	}
+	
+	@Test
+	public void testDiffBuffer() throws IOException {
+		File folder = Files.createTempDirectory("cc-dry-run").toFile();
+		File export = new File(folder, "export.txt");
+		try (DiffBuffer diffs = new DiffBuffer(folder, 1000)) {
+			for (int i = 0; i < 20; i++)
+				diffs.add(new DiffBuffer.Diff(i, 5, -i, "say " + i, "tell @a " + i, i == 3 ? Arrays.asList("note \u00fc") : Collections.emptyList()));
+			equals("20 true", diffs.size() + " " + diffs.isSpilled());
+			List<DiffBuffer.Diff> page = diffs.get(2, 3);
+			equals("3 3 -3 say 3 tell @a 3 [note \u00fc]", page.size() + " " + page.get(1).x + " " + page.get(1).z + " " + page.get(1).before + " " + page.get(1).after + " " + page.get(1).notifications);
+			equals("0", "" + diffs.get(20, 10).size());
+			diffs.export(export);
+		}
+		List<String> lines = Files.readAllLines(export.toPath());
+		equals("61 @ 19 5 -19 + tell @a 19", lines.size() + " " + lines.get(58) + " " + lines.get(60));
+		export.delete();
+		equals("0", "" + folder.list().length);
+		folder.delete();
+	}
+	
+	@Test
+	public void testCorrections() throws IOException {
+		File folder = Files.createTempDirectory("cc-undo").toFile();
+		Corrections corrections = new Corrections(folder);
+		Corrections.Correction first = corrections.makeNew();
+		first.add("world", 1, 2, 3, "", "say a", "say b");
+		corrections.finish(first);
+		Corrections.Correction second = corrections.makeNew();
+		second.add("world", -100, 64, 7, "", "tp @p ~ ~ ~", "teleport @p ~ ~ ~");
+		second.add("world_nether", 0, 0, -1, "", "say \u00fc", "say \u00e4");
+		corrections.finish(second);
+		
+		corrections = new Corrections(folder);
+		equals("2", "" + corrections.size());
+		equals("2", "" + corrections.getLast().size());
+		try (Corrections.Replay replay = corrections.getLast().replay()) {
+			equals("world[-100, 64, 7]: tp @p ~ ~ ~ -> teleport @p ~ ~ ~", replay.next().toString());
+			equals("world_nether[0, 0, -1]: say \u00fc -> say \u00e4", replay.next().toString());
+			equals("null", "" + replay.next());
+		}
+		// journals of earlier runs are counted by the replay that reads them to the end
+		Corrections reloaded = new Corrections(folder);
+		try (Corrections.Replay replay = reloaded.getLast().replay()) {
+			while (replay.next() != null)
+				;
+		}
+		equals("2", "" + reloaded.getLast().size());
+		
+		Corrections.Correction crashed = corrections.makeNew();
+		crashed.add("world", 5, 5, 5, "", "say c", "say d");
+		crashed.flush();
+		equals("3 1", new Corrections(folder).size() + " " + new Corrections(folder).getLast().size());
+		corrections.finish(crashed);
+		
+		corrections.setRetention(1, 0);
+		equals("1", "" + corrections.size());
+		corrections.undone();
+		equals("0", "" + folder.list().length);
+		folder.delete();
+	}
+	
+	@Test
+	public void testRecordStore() {
+		RecordStore store = new RecordStore(1);
+		store.add("world", -30000000, 0, 29999999, "say \u00fc");
+		store.add("world_nether", 12, 255, -1, "");
+		store.add("world", 0, -1, 0, "tp @p ~ ~ ~");
+		equals("3", "" + store.size());
+		equals("world -30000000 0 29999999 say \u00fc", store.getWorld(0) + " " + store.getX(0) + " " + store.getY(0) + " " + store.getZ(0) + " " + store.getCommand(0));
+		equals("world_nether 12 255 -1 ", store.getWorld(1) + " " + store.getX(1) + " " + store.getY(1) + " " + store.getZ(1) + " " + store.getCommand(1));
+		equals("world 0 -1 0 tp @p ~ ~ ~", store.getWorld(2) + " " + store.getX(2) + " " + store.getY(2) + " " + store.getZ(2) + " " + store.getCommand(2));
+	}
+	
+	@Test
+	public void testConfigErrors() {
+		List<String> errors = new ArrayList<>(), warnings = new ArrayList<>();
+		List<InterpretedPattern> rules = Statics.processFile("# rules\n\"a;?(b\" : \"c\"\n\n\"say\" : \"tell\"\n\"x\"\n: \"y\"\n\";?([z)\" : \"\"\n\t\"open\" : \"y\" z\n", errors, warnings);
+		equals("2", "" + rules.size());
+		equals("2", "" + errors.size());
+		equals("line 2, column 1: unbalanced brackets in \"a;?(b\"", errors.get(0));
+		assertTrue(errors.get(1), errors.get(1).startsWith("line 7, column 1: Unclosed character class"));
+		equals("[line 8, column 15: unexpected text after the target]", warnings.toString());
+	}
+	
+	@Test
+	public void testConfigParser() throws IOException {
+		File folder = Files.createTempDirectory("config").toFile();
+		File rules = new File(folder, "rules");
+		rules.mkdir();
+		Files.write(new File(folder, "config.yml").toPath(), Arrays.asList("\"a\" : \"b\"", "  #include \"rules/more.yml\"", "\"c\"", "\t: \"d\" |", "\"e\"", "#include \"missing.yml\""));
+		Files.write(new File(rules, "more.yml").toPath(), Arrays.asList("\"x\"y\" : \"z\"", "", "\"w\" :", "", "\"v\"", "#include \"more.yml\""));
+		List<String> warnings = new ArrayList<>();
+		ConfigParser parser = new ConfigParser(warnings);
+		List<ConfigParser.Entry> entries = parser.parse(new File(folder, "config.yml"));
+		StringBuilder sb = new StringBuilder();
+		entries.forEach(entry -> sb.append(entry.getPosition()).append(" ").append(entry.pattern).append(">").append(entry.target).append(">").append(entry.assertion).append(";"));
+		equals("line 1, column 1 a>b>;rules" + File.separator + "more.yml line 1, column 1 x\"y>z>;line 3, column 1 c>d>e;", sb.toString());
+		equals("[rules" + File.separator + "more.yml line 3, column 6: expected a quoted target after :, rules" + File.separator + "more.yml line 5, column 4: expected : after the pattern, rules" + File.separator
+				+ "more.yml line 6, column 11: more.yml includes itself, line 6, column 11: cannot include missing.yml, there is no such file]", warnings.toString());
+		// the config watcher reloads when any of them changes, also when the missing one is created
+		equals("[config.yml, more.yml, missing.yml]", parser.getFiles().stream().map(File::getName).collect(Collectors.toList()).toString());
+	}
+	
+	/**
+	 * Compares the config parser with the regular expression Statics.processFile read the config
+	 * with before, on random configs made of the parts of an entry.
+	 */
+	@Test
+	public void testConfigParserDifferential() throws IOException {
+		Pattern legacy = Pattern.compile("(?<=^|\\n)[ \\t]*\"(.+)\"[ \\t]*\\n?[ \\t]*:[ \\t]*\\n?[ \\t]*\"(.*?)\"(?:[ \\t]*\\n?[ \\t]*\\|[ \\t]*\\n?[ \\t]*\"(.*)\")?[ \\t]*(?=$|\\n)");
+		String[] tokens = { "\"", "\"", "\" : \"", "\" | \"", " ", "\t", "\n", "\n", ":", "|", "a", "b", "#" };
+		Random random = new Random(17);
+		for (int n = 0; n < 20000; n++) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = random.nextInt(24); i > 0; i--)
+				sb.append(tokens[random.nextInt(tokens.length)]);
+			String config = sb.toString();
+			List<String> expected = new ArrayList<>();
+			Matcher matcher = legacy.matcher(config.isEmpty() || config.endsWith("\n") ? config : config + "\n");
+			while (matcher.find())
+				expected.add(matcher.group(1) + ">" + matcher.group(2) + ">" + (matcher.group(3) == null ? "" : matcher.group(3)));
+			List<String> actual = new ConfigParser(new ArrayList<>()).parse(config).stream().map(entry -> entry.pattern + ">" + entry.target + ">" + entry.assertion)
+				.collect(Collectors.toList());
+			equals(config + " " + expected, config + " " + actual);
+		}
+	}
+	
+	@Test
+	public void testRuleCache() throws IOException {
+		String config = "\";?([\\[,]{1});?(?: *);>(g|gamemode)<;;?(?: *)=;?(?: *);>(0|s|survival)|(1|c|creative)<;;?([\\],]{1})\" : \";:(1);:(2)=;:(3);:(4)\"\n"
+			+ "\"a;?(b\" : \"c\"\n\"say ;?(\\w+)\" : \"tell ;:(1);*(n,2);+(n,1)\" | \"tell\"\n";
+		File file = new File(Files.createTempDirectory("cache").toFile(), "rules.cache");
+		List<ConfigParser.Entry> entries = new ConfigParser(new ArrayList<>()).parse(config);
+		List<String> errors = new ArrayList<>(), cachedErrors = new ArrayList<>();
+		RuleCache cache = new RuleCache(file);
+		List<InterpretedPattern> rules = cache.compile(entries, errors);
+		assertTrue("first load compiles", !cache.wasCached());
+		List<InterpretedPattern> cached = cache.compile(new ConfigParser(new ArrayList<>()).parse(config), cachedErrors);
+		assertTrue("second load is cached", cache.wasCached());
+		equals(errors.toString(), cachedErrors.toString());
+		equals("2", "" + cached.size());
+		for (int i = 0; i < rules.size(); i++) {
+			equals(rules.get(i).pattern, cached.get(i).pattern);
+			equals(rules.get(i).getRequiredLiterals().toString(), cached.get(i).getRequiredLiterals().toString());
+		}
+		equals("@a[gamemode=creative]", Statics.changeCommand(cached.get(0), "@a[g=1]", null));
+		equals(Statics.changeCommand(rules.get(1), "say hello", new RuleSet(rules).initCounters()), Statics.changeCommand(cached.get(1), "say hello", new RuleSet(cached).initCounters()));
+
+		cache.compile(new ConfigParser(new ArrayList<>()).parse(config.replace("tell", "msg")), new ArrayList<>());
+		assertTrue("changed entries are compiled again", !cache.wasCached());
+		equals("[rules.cache]", Arrays.toString(file.getParentFile().list()));
+	}
+	
+	@Test
+	public void testMetrics() throws IOException {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++)
+			histogram.record(i * 1000L);
+		equals("1000", "" + histogram.getCount());
+		equals("1000000", "" + histogram.getMax());
+		assertTrue("p50 " + histogram.getPercentile(0.5), histogram.getPercentile(0.5) >= 500000 && histogram.getPercentile(0.5) <= 500000 * 1.125);
+		assertTrue("p99 " + histogram.getPercentile(0.99), histogram.getPercentile(0.99) >= 990000 && histogram.getPercentile(0.99) <= 1000000);
+		equals("0", "" + new LatencyHistogram().getPercentile(0.5));
+		
+		InterpretedPattern ip = new InterpretedPattern("say ;?(\\w+)", "tell ;:(1)", "").compile();
+		InterpretedPattern quoted = new InterpretedPattern("\"a,b\"", "c", "").compile();
+		Statics.changeCommand(ip, "say a", null);
+		Statics.changeCommand(ip, "kill", null);
+		equals("2", "" + ip.stats.evaluations.sum());
+		equals("1", "" + ip.stats.matches.sum());
+		
+		File folder = Files.createTempDirectory("metrics").toFile();
+		Metrics.dump(folder, Arrays.asList(ip, quoted));
+		List<String> csv = Files.readAllLines(new File(folder, "metrics.csv").toPath());
+		equals("8", "" + csv.size());
+		assertTrue(csv.get(6), csv.get(6).startsWith("rule,say (\\w+),2,"));
+		assertTrue(csv.get(7), csv.get(7).startsWith("rule,\"\"\"a,b\"\"\",0,"));
+		assertTrue(new String(Files.readAllBytes(new File(folder, "metrics.json").toPath())).contains("\"pattern\": \"\\\"a,b\\\"\""));
+	}
+	
+	@Test
+	public void testRuleFusion() {
+		List<InterpretedPattern> rules = Arrays.asList(
+			new InterpretedPattern("sign", "oak_sign", "").compile(),
+			new InterpretedPattern("ender;?(man|_dragon)", "END;:(1)", "").compile(),
+			new InterpretedPattern("lit_pumpkin", "jack_o_lantern", "").compile(),
+			new InterpretedPattern("pumpkin", "carved_pumpkin", "").compile(),
+			new InterpretedPattern("wool;?( 14| 1)", "wool;:(1)!", "").compile(),
+			new InterpretedPattern("@;?(\\w)", "@;:(1)", "").compile(),
+			new InterpretedPattern("snow", "snow_block", "").compile(),
+			new InterpretedPattern("lapis", "lapis_block", "(say)").compile());
+		RuleSet ruleSet = new RuleSet(rules);
+		equals("1-3 4-5", ruleSet.getFusions().stream().map(fusion -> fusion.from + 1 + "-" + fusion.to).collect(Collectors.joining(" ")));
+		List<String> explanation = ruleSet.explainFusion();
+		assertTrue(explanation.get(0), explanation.get(0).endsWith("is fused with rules 1 to 3."));
+		assertTrue(explanation.get(3), explanation.get(3).endsWith("is fused with rules 4 to 5."));
+		assertTrue(explanation.get(5), explanation.get(5).contains("matches more than"));
+		assertTrue(explanation.get(6), explanation.get(6).endsWith("it no rule next to it can be fused with it."));
+		assertTrue(explanation.get(7), explanation.get(7).contains("has an assertion"));
+		
+		String[] tokens = { "sign", "ender", "man", "_dragon", "lit_", "pumpkin", "wool", " 1", "4", "@", "p", "snow", " ", "say", "lapis", "x" };
+		Random random = new Random(23);
+		for (int i = 0; i < 2000; i++) {
+			StringBuilder command = new StringBuilder();
+			for (int j = random.nextInt(12); j >= 0; j--)
+				command.append(tokens[random.nextInt(tokens.length)]);
+			String sequential = command.toString();
+			for (InterpretedPattern rule : rules)
+				sequential = Statics.changeCommand(rule, sequential, null);
+			equals(sequential, ruleSet.apply(command.toString(), null).after);
+		}
+		equals("[sign, pumpkin]", "" + ruleSet.apply("sign with pumpkin", null).changes);
+	}
+	
+	@Test
+	public void testApplyUntilStable() {
+		RuleSet chain = new RuleSet(Arrays.asList(new InterpretedPattern("beta", "gamma", "").compile(), new InterpretedPattern("alpha", "beta", "").compile()));
+		equals("say beta", chain.apply("say alpha", null).after);
+		Rewrite rewrite = chain.applyUntilStable("say alpha", null, 10);
+		equals("say gamma 3 true [alpha, beta]", rewrite.after + " " + rewrite.passes + " " + rewrite.stable + " " + rewrite.changes);
+		
+		RuleSet cycle = new RuleSet(Arrays.asList(new InterpretedPattern("x", "z", "").compile(), new InterpretedPattern("y", "x", "").compile(),
+			new InterpretedPattern("z", "y", "").compile()));
+		rewrite = cycle.applyUntilStable("tp x", null, 10);
+		equals("tp x 2 false true", rewrite.after + " " + rewrite.passes + " " + rewrite.stable + " " + rewrite.cyclic);
+		
+		RuleSet growing = new RuleSet(Arrays.asList(new InterpretedPattern("a", "aa", "").compile()));
+		rewrite = growing.applyUntilStable("a", null, 5);
+		equals("a 5 false false false", rewrite.after + " " + rewrite.passes + " " + rewrite.stable + " " + rewrite.cyclic + " " + rewrite.isChanged());
+		
+		List<InterpretedPattern> notifying = new ArrayList<>(chain.getRules());
+		notifying.add(new InterpretedPattern("testfor", "testfor;!(check)", "").compile());
+		rewrite = new RuleSet(notifying).applyUntilStable("testfor alpha", null, 10);
+		equals("testfor gamma 3 1", rewrite.after + " " + rewrite.passes + " " + rewrite.notifications.size());
+		equals("testfor>!< gamma", rewrite.notifications.get(0).normalText);
+	}
+	
+	@Test
+	public void testRewriteCache() {
+		RuleSet ruleSet = new RuleSet(Arrays.asList(new InterpretedPattern("score_;?(\\w+)_min=1", "scores={;:(1)=1..}", "").compile()));
+		RewriteCache<Rewrite> cache = new RewriteCache<>(1 << 20, RewriteCache::estimate);
+		for (int i = 0; i < 10; i++)
+			equals("testfor @a[scores={x=1..}]", cache.get(ruleSet, 1, "testfor @a[score_x_min=1]", command -> ruleSet.apply(command, null)).after);
+		equals("9 1 1", cache.getHits() + " " + cache.getMisses() + " " + cache.size());
+		
+		RuleSet reloaded = new RuleSet(ruleSet.getRules());
+		cache.get(reloaded, 1, "testfor @a[score_x_min=1]", command -> reloaded.apply(command, null));
+		cache.get(reloaded, 3, "testfor @a[score_x_min=1]", command -> reloaded.applyUntilStable(command, null, 3));
+		equals("9 3 3", cache.getHits() + " " + cache.getMisses() + " " + cache.size());
+		
+		cache.setMemoryLimit(16 * 1024);
+		for (int i = 0; i < 1000; i++)
+			cache.get(ruleSet, 1, "say " + i, command -> ruleSet.apply(command, null));
+		assertTrue(cache.getBytes() + " bytes", cache.getBytes() <= 16 * 1024 && cache.size() > 0);
+		cache.resetStats();
+		cache.get(ruleSet, 1, "say 999", command -> ruleSet.apply(command, null));
+		cache.get(ruleSet, 1, "say 0", command -> ruleSet.apply(command, null));
+		equals("1 1", cache.getHits() + " " + cache.getMisses());
+		
+		RewriteCache<String> off = new RewriteCache<>(0, text -> 0);
+		off.get(ruleSet, 1, "say a", command -> command);
+		equals("0 0", off.size() + " " + off.getHits());
+		
+		RuleSet quarantining = new RuleSet(Arrays.asList(new InterpretedPattern("a;?(.*);?(.*);?(.*);?(\\1)y", "b", "").compile()));
+		equals("b", cache.get(quarantining, 1, "axxy", command -> quarantining.apply(command, null)).after);
+		String evil = "a" + String.join("", Collections.nCopies(200, "x")) + " y";
+		equals("1", "" + cache.get(quarantining, 1, evil, command -> quarantining.apply(command, null)).timeouts.size());
+		equals("axxy 1", cache.get(quarantining, 1, "axxy", command -> quarantining.apply(command, null)).after + " " + quarantining.getEpoch());
+		try {
+			cache.get(new RuleSet(Arrays.asList(new InterpretedPattern("say ;?(\\w+)", "say ;*(n,1);+(n,1) ;:(1)", "").compile())), 1, "a", command -> null);
+			fail("rule sets with counters are cached");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void testRegionLocks() {
+		RegionLocks locks = new RegionLocks();
+		Object first = "first", second = "second";
+		assertNull(locks.tryLock(first, "world", 0, 0, 0, 15, 255, 15));
+		equals("first", "" + locks.tryLock(second, "world", 15, 10, 15, 30, 20, 30));
+		assertNull(locks.tryLock(second, "world", 16, 0, 0, 30, 255, 15));
+		assertNull(locks.tryLock(second, "world_nether", 0, 0, 0, 15, 255, 15));
+		assertNull(locks.tryLock(first, "world", 5, 0, 5, 10, 255, 10));
+		equals("second first null", locks.getOwner("world", 16, 0, 0) + " " + locks.getOwner("world", 15, 0, 15) + " " + locks.getOwner("world", 40, 0, 0));
+		locks.unlock(first);
+		assertNull(locks.tryLock(second, "world", 0, 0, 0, 15, 255, 15));
+	}
+	
+	@Test
+	public void testBlockIndex() throws IOException {
+		BlockIndex index = new BlockIndex();
+		index.indexChunk("world", 0, 0, Arrays.asList(new BlockIndex.Entry(1, 5, 1, "say a"), new BlockIndex.Entry(15, 5, 15, "say b")));
+		index.indexChunk("world", 1, 0, Arrays.asList());
+		index.put("world", -17, 70, 3, "say c");
+		index.remove("world", 15, 5, 15);
+		equals("true false true", index.isIndexed("world", 1, 0) + " " + index.hasBlocks("world", 1, 0) + " " + index.hasBlocks("world", -2, 0));
+		equals("1", "" + index.query("world", 0, 0, 0, 20, 255, 20).size());
+		equals("2", "" + index.query("world", -30000000, 0, -30000000, 30000000, 255, 30000000).size());
+		
+		File file = File.createTempFile("cc-index", ".dat");
+		index.save(file);
+		index = BlockIndex.load(file);
+		file.delete();
+		equals("say c", index.query("world", -20, 0, 0, -10, 255, 10).get(0).command);
+		equals("2 true false", index.size() + " " + index.isIndexed("world", 1, 0) + " " + index.isDirty());
+	}
+	
+	@Test
+	public void testBlockIndexLoadedChunks() {
+		BlockIndex index = new BlockIndex();
+		index.indexChunk("world", 0, 0, Arrays.asList(new BlockIndex.Entry(1, 5, 1, "say a")));
+		index.indexChunk("world", 1, 0, Arrays.asList());
+		Set<Long> loaded = new HashSet<>();
+		equals("[0]", Arrays.toString(index.chunksToRead("world", 0, 0, 31, 15, loaded, false)));
+		equals("[]", Arrays.toString(index.chunksToRead("world", 0, 0, 31, 15, loaded, true)));
+		
+		// a /setblock in the loaded chunk raises no event, so the chunk is read again although it was indexed empty
+		loaded.add(BlockIndex.chunkKey(1, 0));
+		long[] chunks = index.chunksToRead("world", 0, 0, 31, 15, loaded, true);
+		equals("1 " + BlockIndex.chunkKey(1, 0), chunks.length + " " + chunks[0]);
+		index.indexChunk("world", 1, 0, Arrays.asList(new BlockIndex.Entry(20, 5, 1, "say b")));
+		equals("say b", index.query("world", 16, 0, 0, 31, 255, 15).get(0).command);
+		
+		// areas too large to enumerate still read the loaded chunks
+		index.indexChunk("world", 1, 0, Arrays.asList());
+		equals("2", "" + index.chunksToRead("world", -30000000, -30000000, 30000000, 30000000, loaded, false).length);
+		equals("1", "" + index.chunksToRead("world", -30000000, -30000000, 30000000, 30000000, loaded, true).length);
+	}
+	
 	private void equals(String actual, String expected) {
 		ec.checkThat(expected, CoreMatchers.equalTo(actual));
 	}